@@ -4,19 +4,193 @@
  */
 package zipkin.module.storage.splunk;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.stereotype.Component;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.DependencyLink;
+import zipkin2.storage.ServiceAndSpanNames;
+import zipkin2.storage.StorageComponent;
+import zipkin2.storage.splunk.SplunkStorage;
+import zipkin2.storage.splunk.internal.MetadataSnapshots;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-@Component
+/**
+ * Refreshes service names, span names and dependency links in the background, publishing them to
+ * the {@link MetadataSnapshots} the query API serves, so the UI never waits on Splunk for them.
+ * Also syncs autocomplete values with the KV store other servers save theirs to.
+ *
+ * <p>The scheduled method only checks which refreshes are due. Searches run on the storage's query
+ * threads, so a slow Splunk never holds up the scheduler thread. A refresh still running when it
+ * is next due is skipped rather than overlapped, and each interval gets a random jitter, so
+ * servers restarted together don't search in lockstep.
+ */
 public class ZipkinSplunkScheduledTasks {
 
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss");
+    static final Logger LOG = LoggerFactory.getLogger(ZipkinSplunkScheduledTasks.class);
+
+    final StorageComponent storage;
+    final MetadataSnapshots snapshots;
+    final Refresh names;
+    final Refresh dependencies;
+    final Refresh autocompleteSave;
+    final long dependenciesLookback;
+
+    ZipkinSplunkScheduledTasks(StorageComponent storage, MetadataSnapshots snapshots,
+                               long namesRefreshInterval, long dependenciesRefreshInterval,
+                               long autocompleteSaveInterval, long refreshJitter,
+                               long dependenciesLookback) {
+        this.storage = storage;
+        this.snapshots = snapshots;
+        this.names = new Refresh(namesRefreshInterval, refreshJitter);
+        this.dependencies = new Refresh(dependenciesRefreshInterval, refreshJitter);
+        this.autocompleteSave = new Refresh(autocompleteSaveInterval, refreshJitter);
+        this.dependenciesLookback = dependenciesLookback;
+    }
+
+    @Scheduled(fixedDelay = 1000L)
+    public void refreshDue() {
+        if (names.start()) start(names, "names", this::refreshNames);
+        if (dependencies.start()) start(dependencies, "dependencies", this::refreshDependencies);
+        if (autocompleteSave.start()) {
+            start(autocompleteSave, "autocomplete values", this::saveAutocompleteTags);
+        }
+    }
+
+    /** Creating a call may connect to Splunk, so failures can happen before any callback. */
+    static void start(Refresh refresh, String name, Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOG.warn("Could not refresh {}", name, e);
+            refresh.finish();
+        }
+    }
+
+    /** Splunk reads every name with one search; other storage is asked service by service. */
+    void refreshNames() {
+        if (storage instanceof SplunkStorage) {
+            ((SplunkStorage) storage).refreshNames().enqueue(
+                    new RefreshCallback<MetadataSnapshots.Names>(names, "names") {
+                        @Override void publish(MetadataSnapshots.Names value) {
+                            snapshots.publish(value);
+                        }
+                    });
+            return;
+        }
+        long refreshedAt = System.currentTimeMillis();
+        ServiceAndSpanNames store = storage.serviceAndSpanNames();
+        store.getServiceNames().enqueue(new RefreshCallback<List<String>>(names, "names") {
+            @Override void publish(List<String> serviceNames) throws Exception {
+                // Already on a query thread, so read the names of each service in turn.
+                Map<String, List<String>> spanNames = new LinkedHashMap<>();
+                Map<String, List<String>> remoteServiceNames = new LinkedHashMap<>();
+                for (String serviceName : serviceNames) {
+                    spanNames.put(serviceName, sorted(store.getSpanNames(serviceName).execute()));
+                    remoteServiceNames.put(serviceName,
+                            sorted(store.getRemoteServiceNames(serviceName).execute()));
+                }
+                snapshots.publish(new MetadataSnapshots.Names(sorted(serviceNames), spanNames,
+                        remoteServiceNames, refreshedAt));
+            }
+        });
+    }
+
+    void refreshDependencies() {
+        long endTs = System.currentTimeMillis();
+        Call<List<DependencyLink>> call =
+                storage.spanStore().getDependencies(endTs, dependenciesLookback);
+        if (call == null) { // not supported by this data model
+            dependencies.finish();
+            return;
+        }
+        call.enqueue(new RefreshCallback<List<DependencyLink>>(dependencies, "dependencies") {
+            @Override void publish(List<DependencyLink> links) {
+                snapshots.publish(new MetadataSnapshots.Dependencies(
+                        new ArrayList<>(links), endTs, dependenciesLookback));
+            }
+        });
+    }
+
+    /** Saves the values autocomplete suggests and loads those of other servers. */
+    void saveAutocompleteTags() {
+        if (!(storage instanceof SplunkStorage)) {
+            autocompleteSave.finish();
+            return;
+        }
+        ((SplunkStorage) storage).saveAutocompleteTags().enqueue(
+                new RefreshCallback<Void>(autocompleteSave, "autocomplete values") {
+                    @Override void publish(Void value) {
+                    }
+                });
+    }
+
+    static List<String> sorted(List<String> names) {
+        List<String> result = new ArrayList<>(names);
+        result.sort(null);
+        return result;
+    }
+
+    /** When a refresh is next due, and whether one is running. */
+    static final class Refresh {
+        final long interval;
+        final long jitter;
+        final AtomicBoolean running = new AtomicBoolean();
+        volatile long dueAt;
+
+        /** The first refresh is within the jitter of startup. */
+        Refresh(long interval, long jitter) {
+            this.interval = interval;
+            this.jitter = jitter;
+            this.dueAt = System.currentTimeMillis() + jitter();
+        }
+
+        /** Returns true if due and not already running, marking it running. */
+        boolean start() {
+            if (interval <= 0L || System.currentTimeMillis() < dueAt) return false;
+            return running.compareAndSet(false, true);
+        }
+
+        void finish() {
+            dueAt = System.currentTimeMillis() + interval + jitter();
+            running.set(false);
+        }
+
+        long jitter() {
+            return jitter > 0L ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0L;
+        }
+    }
+
+    abstract static class RefreshCallback<V> implements Callback<V> {
+        final Refresh refresh;
+        final String name;
+
+        RefreshCallback(Refresh refresh, String name) {
+            this.refresh = refresh;
+            this.name = name;
+        }
+
+        abstract void publish(V value) throws Exception;
+
+        @Override public void onSuccess(V value) {
+            try {
+                publish(value);
+            } catch (Exception e) {
+                onError(e);
+                return;
+            }
+            refresh.finish();
+        }
 
-    @Scheduled(fixedRate = 5000)
-    public void reportCurrentTime() {
-        System.out.println("The time is now"+dateFormat.format(new Date()));
+        @Override public void onError(Throwable t) {
+            LOG.warn("Could not refresh {}", name, t);
+            refresh.finish();
+        }
     }
 }
@@ -8,6 +8,8 @@ import com.linecorp.armeria.common.HttpStatus;
 import com.linecorp.armeria.server.HttpService;
 import com.linecorp.armeria.server.RedirectService;
 import com.linecorp.armeria.spring.ArmeriaServerConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
@@ -18,6 +20,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import zipkin2.storage.StorageComponent;
 import zipkin2.storage.splunk.SplunkStorage;
+import zipkin2.storage.splunk.internal.MetadataSnapshots;
 import zipkin2.storage.splunk.internal.ZipkinSplunkQueryApiV2;
 
 import java.time.Duration;
@@ -32,13 +35,18 @@ import java.util.function.Function;
 @ConditionalOnMissingBean(StorageComponent.class)
 public class ZipkinSplunkStorageModule {
 
+    static final Logger LOG = LoggerFactory.getLogger(ZipkinSplunkStorageModule.class);
+
     @Autowired
     ZipkinSplunkStorageProperties storageProperties;
 
     @Bean
     @ConditionalOnMissingBean
-    StorageComponent storage(ZipkinSplunkStorageProperties properties) {
-        return SplunkStorage.builder()
+    StorageComponent storage(ZipkinSplunkStorageProperties properties,
+            @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys,
+            @Value("${zipkin.storage.autocomplete-cardinality:20000}") int autocompleteCardinality,
+            @Value("${zipkin.query.timeout:11s}") Duration queryTimeout) {
+        SplunkStorage.Builder builder = SplunkStorage.builder()
                 .host(properties.getHost())
                 .port(properties.getPort())
                 .scheme(properties.getScheme())
@@ -49,18 +57,89 @@ public class ZipkinSplunkStorageModule {
                 .sourceType(properties.getSourceType())
                 .dataModel(properties.getDataModel())
                 .token(properties.getToken())
-                .build();
+                .queuedMaxSpans(properties.getQueuedMaxSpans())
+                .messageMaxSpans(properties.getMessageMaxSpans())
+                .messageTimeout(properties.getMessageTimeout())
+                .attachPoolSize(properties.getAttachPoolSize())
+                .attachIdleTimeout(properties.getAttachIdleTimeout())
+                .ingestMode(properties.getIngestMode())
+                .hecEndpoint(properties.getHecEndpoint())
+                .hecAck(properties.isHecAck())
+                .hecAckTimeout(properties.getHecAckTimeout())
+                .hecBatchBytes(properties.getHecBatchBytes())
+                .hecMaxInFlight(properties.getHecMaxInFlight())
+                .spoolMaxBytes(properties.getSpoolMaxBytes())
+                .spoolSegmentBytes(properties.getSpoolSegmentBytes())
+                .indexerCooldown(properties.getIndexerCooldown())
+                .indexedFields(properties.isIndexedFields())
+                .queryThreads(properties.getQueryThreads())
+                .queryQueueSize(properties.getQueryQueueSize())
+                .searchMode(properties.getSearchMode())
+                .searchPageSize(properties.getSearchPageSize())
+                .traceCacheMaxTraces(properties.getTraceCacheMaxTraces())
+                .traceCacheMaxSpans(properties.getTraceCacheMaxSpans())
+                .traceCacheTtl(properties.getTraceCacheTtl())
+                .nameCatalog(properties.isNameCatalog())
+                .nameCatalogSeedLimit(properties.getNameCatalogSeedLimit())
+                .autocompleteCollection(properties.getAutocompleteCollection())
+                .autocompleteKeys(autocompleteKeys)
+                .autocompleteCardinality(autocompleteCardinality)
+                .queryCacheMaxEntries(properties.getQueryCacheMaxEntries())
+                .queryCacheMaxSpans(properties.getQueryCacheMaxSpans())
+                .queryCacheBucket(properties.getQueryCacheBucket())
+                .queryCacheSettledTtl(properties.getQueryCacheSettledTtl())
+                .timeSlice(properties.getTimeSlice())
+                .timeSliceConcurrency(properties.getTimeSliceConcurrency())
+                .maxLookback(properties.getMaxLookback())
+                .maxUnfilteredLookback(properties.getMaxUnfilteredLookback())
+                .queryTimeout(queryTimeout.toMillis())
+                .urlRemoteServiceName(properties.getUrlRemoteServiceName());
+        if (properties.getIndexers() != null && !properties.getIndexers().isEmpty()) {
+            builder.indexers(properties.getIndexers());
+        }
+        if (properties.getHecUrl() != null && !properties.getHecUrl().isEmpty()) {
+            builder.hecUrl(properties.getHecUrl());
+        }
+        if (properties.getHecToken() != null && !properties.getHecToken().isEmpty()) {
+            builder.hecToken(properties.getHecToken());
+        }
+        if (properties.getSpoolDirectory() != null && !properties.getSpoolDirectory().isEmpty()) {
+            builder.spoolDirectory(properties.getSpoolDirectory());
+        }
+        return builder.build();
     }
+    /** Snapshots older than three refresh intervals are ignored, as refreshes are failing. */
+    @Bean
+    @ConditionalOnMissingBean
+    MetadataSnapshots metadataSnapshots(ZipkinSplunkStorageProperties properties) {
+        return new MetadataSnapshots(
+                3 * (properties.getNamesRefreshInterval() + properties.getRefreshJitter()),
+                3 * (properties.getDependenciesRefreshInterval() + properties.getRefreshJitter()));
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    ZipkinSplunkScheduledTasks zipkinSplunkScheduledTasks(StorageComponent storage,
+            MetadataSnapshots snapshots, ZipkinSplunkStorageProperties properties,
+            @Value("${zipkin.query.lookback:86400000}") long defaultLookback) {
+        return new ZipkinSplunkScheduledTasks(storage, snapshots,
+                properties.getNamesRefreshInterval(), properties.getDependenciesRefreshInterval(),
+                properties.getAutocompleteSaveInterval(), properties.getRefreshJitter(),
+                defaultLookback);
+    }
+
     @Bean
     @ConditionalOnMissingBean
     ZipkinSplunkQueryApiV2 zipkinSplunkQueryApiV2(StorageComponent storage,
                                                   @Value("${zipkin.storage.type:mem}") String storageType,
                                                   @Value("${zipkin.query.lookback:86400000}") long defaultLookback,
                                                   @Value("${zipkin.query.names-max-age:300}") int namesMaxAge,
-                                                  @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys
+                                                  @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys,
+                                                  MetadataSnapshots snapshots
                                         ){
         return new
-                ZipkinSplunkQueryApiV2(storage,storageType,defaultLookback,namesMaxAge,autocompleteKeys);
+                ZipkinSplunkQueryApiV2(storage,storageType,defaultLookback,namesMaxAge,autocompleteKeys,
+                snapshots);
     }
 
 
@@ -68,7 +147,7 @@ public class ZipkinSplunkStorageModule {
     @ConditionalOnMissingBean
     ArmeriaServerConfigurator zipkinServerConfigurator(Optional<ZipkinSplunkQueryApiV2> zipkinSplunkQueryApiV2,
                                                        @Value("${zipkin.query.timeout:11s}") Duration queryTimeout) {
-        System.out.println("zipKinSplunkApiV2" + zipkinSplunkQueryApiV2.isPresent());
+        LOG.debug("Splunk query API present: {}", zipkinSplunkQueryApiV2.isPresent());
         return sb -> {
             zipkinSplunkQueryApiV2.ifPresent(h -> {
                 Function<HttpService, HttpService>
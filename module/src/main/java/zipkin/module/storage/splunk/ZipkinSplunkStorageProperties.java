@@ -23,6 +23,48 @@ public class ZipkinSplunkStorageProperties implements Serializable {
     private String sourceType;
     private String source;
     private String dataModel;
+    private int queuedMaxSpans = 100000;
+    private int messageMaxSpans = 5000;
+    private long messageTimeout = 1000L;
+    private int attachPoolSize = 2;
+    private long attachIdleTimeout = 60000L;
+    private String ingestMode = "attach";
+    private String hecUrl;
+    private String hecToken;
+    private String hecEndpoint = "event";
+    private boolean hecAck;
+    private long hecAckTimeout = 30000L;
+    private int hecBatchBytes = 1048576;
+    private int hecMaxInFlight = 4;
+    private String spoolDirectory;
+    private long spoolMaxBytes = 1073741824L;
+    private int spoolSegmentBytes = 67108864;
+    private String indexers;
+    private long indexerCooldown = 30000L;
+    private boolean indexedFields;
+    private int queryThreads = 8;
+    private int queryQueueSize = 256;
+    private String searchMode = "oneshot";
+    private int searchPageSize = 100;
+    private int traceCacheMaxTraces = 1000;
+    private long traceCacheMaxSpans = 100000L;
+    private long traceCacheTtl = 60000L;
+    private boolean nameCatalog = true;
+    private int nameCatalogSeedLimit = 10000;
+    private long namesRefreshInterval = 60000L;
+    private long dependenciesRefreshInterval = 300000L;
+    private long refreshJitter = 10000L;
+    private String autocompleteCollection = "zipkin_autocomplete";
+    private long autocompleteSaveInterval = 300000L;
+    private int queryCacheMaxEntries = 256;
+    private long queryCacheMaxSpans = 100000L;
+    private long queryCacheBucket = 30000L;
+    private long queryCacheSettledTtl = 3600000L;
+    private long timeSlice = 86400000L;
+    private int timeSliceConcurrency = 4;
+    private long maxLookback = 0L;
+    private long maxUnfilteredLookback = 86400000L;
+    private String urlRemoteServiceName = "last_segment";
 
     public String getScheme() {
 
@@ -118,4 +160,340 @@ public class ZipkinSplunkStorageProperties implements Serializable {
     public void setToken(String token) {
         this.token = token;
     }
+
+    public int getQueuedMaxSpans() {
+        return queuedMaxSpans;
+    }
+
+    public void setQueuedMaxSpans(int queuedMaxSpans) {
+        this.queuedMaxSpans = queuedMaxSpans;
+    }
+
+    public int getMessageMaxSpans() {
+        return messageMaxSpans;
+    }
+
+    public void setMessageMaxSpans(int messageMaxSpans) {
+        this.messageMaxSpans = messageMaxSpans;
+    }
+
+    public long getMessageTimeout() {
+        return messageTimeout;
+    }
+
+    public void setMessageTimeout(long messageTimeout) {
+        this.messageTimeout = messageTimeout;
+    }
+
+    public int getAttachPoolSize() {
+        return attachPoolSize;
+    }
+
+    public void setAttachPoolSize(int attachPoolSize) {
+        this.attachPoolSize = attachPoolSize;
+    }
+
+    public long getAttachIdleTimeout() {
+        return attachIdleTimeout;
+    }
+
+    public void setAttachIdleTimeout(long attachIdleTimeout) {
+        this.attachIdleTimeout = attachIdleTimeout;
+    }
+
+    public String getIngestMode() {
+        return ingestMode;
+    }
+
+    public void setIngestMode(String ingestMode) {
+        this.ingestMode = ingestMode;
+    }
+
+    public String getHecUrl() {
+        return hecUrl;
+    }
+
+    public void setHecUrl(String hecUrl) {
+        this.hecUrl = hecUrl;
+    }
+
+    public String getHecToken() {
+        return hecToken;
+    }
+
+    public void setHecToken(String hecToken) {
+        this.hecToken = hecToken;
+    }
+
+    public String getHecEndpoint() {
+        return hecEndpoint;
+    }
+
+    public void setHecEndpoint(String hecEndpoint) {
+        this.hecEndpoint = hecEndpoint;
+    }
+
+    public boolean isHecAck() {
+        return hecAck;
+    }
+
+    public void setHecAck(boolean hecAck) {
+        this.hecAck = hecAck;
+    }
+
+    public long getHecAckTimeout() {
+        return hecAckTimeout;
+    }
+
+    public void setHecAckTimeout(long hecAckTimeout) {
+        this.hecAckTimeout = hecAckTimeout;
+    }
+
+    public int getHecBatchBytes() {
+        return hecBatchBytes;
+    }
+
+    public void setHecBatchBytes(int hecBatchBytes) {
+        this.hecBatchBytes = hecBatchBytes;
+    }
+
+    public int getHecMaxInFlight() {
+        return hecMaxInFlight;
+    }
+
+    public void setHecMaxInFlight(int hecMaxInFlight) {
+        this.hecMaxInFlight = hecMaxInFlight;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+
+    public int getSpoolSegmentBytes() {
+        return spoolSegmentBytes;
+    }
+
+    public void setSpoolSegmentBytes(int spoolSegmentBytes) {
+        this.spoolSegmentBytes = spoolSegmentBytes;
+    }
+
+    public String getIndexers() {
+        return indexers;
+    }
+
+    public void setIndexers(String indexers) {
+        this.indexers = indexers;
+    }
+
+    public long getIndexerCooldown() {
+        return indexerCooldown;
+    }
+
+    public void setIndexerCooldown(long indexerCooldown) {
+        this.indexerCooldown = indexerCooldown;
+    }
+
+    public boolean isIndexedFields() {
+        return indexedFields;
+    }
+
+    public void setIndexedFields(boolean indexedFields) {
+        this.indexedFields = indexedFields;
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+    }
+
+    public int getQueryQueueSize() {
+        return queryQueueSize;
+    }
+
+    public void setQueryQueueSize(int queryQueueSize) {
+        this.queryQueueSize = queryQueueSize;
+    }
+
+    public String getSearchMode() {
+        return searchMode;
+    }
+
+    public void setSearchMode(String searchMode) {
+        this.searchMode = searchMode;
+    }
+
+    public int getSearchPageSize() {
+        return searchPageSize;
+    }
+
+    public void setSearchPageSize(int searchPageSize) {
+        this.searchPageSize = searchPageSize;
+    }
+
+    public int getTraceCacheMaxTraces() {
+        return traceCacheMaxTraces;
+    }
+
+    public void setTraceCacheMaxTraces(int traceCacheMaxTraces) {
+        this.traceCacheMaxTraces = traceCacheMaxTraces;
+    }
+
+    public long getTraceCacheMaxSpans() {
+        return traceCacheMaxSpans;
+    }
+
+    public void setTraceCacheMaxSpans(long traceCacheMaxSpans) {
+        this.traceCacheMaxSpans = traceCacheMaxSpans;
+    }
+
+    public long getTraceCacheTtl() {
+        return traceCacheTtl;
+    }
+
+    public void setTraceCacheTtl(long traceCacheTtl) {
+        this.traceCacheTtl = traceCacheTtl;
+    }
+
+    public boolean isNameCatalog() {
+        return nameCatalog;
+    }
+
+    public void setNameCatalog(boolean nameCatalog) {
+        this.nameCatalog = nameCatalog;
+    }
+
+    public int getNameCatalogSeedLimit() {
+        return nameCatalogSeedLimit;
+    }
+
+    public void setNameCatalogSeedLimit(int nameCatalogSeedLimit) {
+        this.nameCatalogSeedLimit = nameCatalogSeedLimit;
+    }
+
+    public long getNamesRefreshInterval() {
+        return namesRefreshInterval;
+    }
+
+    public void setNamesRefreshInterval(long namesRefreshInterval) {
+        this.namesRefreshInterval = namesRefreshInterval;
+    }
+
+    public long getDependenciesRefreshInterval() {
+        return dependenciesRefreshInterval;
+    }
+
+    public void setDependenciesRefreshInterval(long dependenciesRefreshInterval) {
+        this.dependenciesRefreshInterval = dependenciesRefreshInterval;
+    }
+
+    public long getRefreshJitter() {
+        return refreshJitter;
+    }
+
+    public void setRefreshJitter(long refreshJitter) {
+        this.refreshJitter = refreshJitter;
+    }
+
+    public String getAutocompleteCollection() {
+        return autocompleteCollection;
+    }
+
+    public void setAutocompleteCollection(String autocompleteCollection) {
+        this.autocompleteCollection = autocompleteCollection;
+    }
+
+    public long getAutocompleteSaveInterval() {
+        return autocompleteSaveInterval;
+    }
+
+    public void setAutocompleteSaveInterval(long autocompleteSaveInterval) {
+        this.autocompleteSaveInterval = autocompleteSaveInterval;
+    }
+
+    public int getQueryCacheMaxEntries() {
+        return queryCacheMaxEntries;
+    }
+
+    public void setQueryCacheMaxEntries(int queryCacheMaxEntries) {
+        this.queryCacheMaxEntries = queryCacheMaxEntries;
+    }
+
+    public long getQueryCacheMaxSpans() {
+        return queryCacheMaxSpans;
+    }
+
+    public void setQueryCacheMaxSpans(long queryCacheMaxSpans) {
+        this.queryCacheMaxSpans = queryCacheMaxSpans;
+    }
+
+    public long getQueryCacheBucket() {
+        return queryCacheBucket;
+    }
+
+    public void setQueryCacheBucket(long queryCacheBucket) {
+        this.queryCacheBucket = queryCacheBucket;
+    }
+
+    public long getQueryCacheSettledTtl() {
+        return queryCacheSettledTtl;
+    }
+
+    public void setQueryCacheSettledTtl(long queryCacheSettledTtl) {
+        this.queryCacheSettledTtl = queryCacheSettledTtl;
+    }
+
+    public long getTimeSlice() {
+        return timeSlice;
+    }
+
+    public void setTimeSlice(long timeSlice) {
+        this.timeSlice = timeSlice;
+    }
+
+    public int getTimeSliceConcurrency() {
+        return timeSliceConcurrency;
+    }
+
+    public void setTimeSliceConcurrency(int timeSliceConcurrency) {
+        this.timeSliceConcurrency = timeSliceConcurrency;
+    }
+
+    public long getMaxLookback() {
+        return maxLookback;
+    }
+
+    public void setMaxLookback(long maxLookback) {
+        this.maxLookback = maxLookback;
+    }
+
+    public long getMaxUnfilteredLookback() {
+        return maxUnfilteredLookback;
+    }
+
+    public void setMaxUnfilteredLookback(long maxUnfilteredLookback) {
+        this.maxUnfilteredLookback = maxUnfilteredLookback;
+    }
+
+    public String getUrlRemoteServiceName() {
+        return urlRemoteServiceName;
+    }
+
+    public void setUrlRemoteServiceName(String urlRemoteServiceName) {
+        this.urlRemoteServiceName = urlRemoteServiceName;
+    }
 }
\ No newline at end of file
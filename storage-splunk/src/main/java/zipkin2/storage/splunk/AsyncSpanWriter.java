@@ -0,0 +1,270 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Coalesces spans from many {@link SplunkSpanConsumer#accept} calls into large writes.
+ *
+ * <p>Collector threads only offer into a bounded queue, so they never wait on Splunk. A batch is
+ * queued whole or not at all, so the spans a collector counts as dropped are the ones that were
+ * never queued. A single flusher thread drains the queue and hands a batch to the {@link
+ * SpanSender} once it holds {@code messageMaxSpans} spans or the oldest span in it has waited
+ * {@code messageTimeout}.
+ *
+ * <p>With a {@link SpanSpool}, batches that fail to send are appended to disk instead of dropped.
+ * While the spool holds anything, new batches go there too, so Splunk receives spans in order, and
+ * the spool is replayed once a write succeeds again. Retries back off up to {@link
+ * #MAX_RETRY_BACKOFF_MILLIS} so an outage doesn't turn into a busy loop.
+ */
+final class AsyncSpanWriter implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(AsyncSpanWriter.class);
+
+    static final long MIN_RETRY_BACKOFF_MILLIS = 500L;
+    static final long MAX_RETRY_BACKOFF_MILLIS = 30000L;
+
+    /** Receives batches drained by the flusher thread. */
+    interface SpanSender extends Closeable {
+        void send(List<Span> spans) throws IOException;
+    }
+
+    /** Thrown by a {@link SpanSender} that wrote only part of a batch. */
+    static final class PartialSendException extends IOException {
+        private static final long serialVersionUID = 0L;
+
+        final List<Span> unsent;
+
+        PartialSendException(String message, List<Span> unsent, Throwable cause) {
+            super(message, cause);
+            this.unsent = unsent;
+        }
+    }
+
+    final BlockingQueue<Span> queue;
+    /** Queue slots taken by offered batches, released as the flusher drains them. */
+    final AtomicInteger reserved = new AtomicInteger();
+    final int queuedMaxSpans;
+    final SpanSender sender;
+    final int messageMaxSpans;
+    final long messageTimeoutNanos;
+    final SpanSpool spool; // nullable
+
+    final AtomicLong droppedSpans = new AtomicLong();
+    final AtomicLong sentSpans = new AtomicLong();
+    final AtomicLong failedSpans = new AtomicLong();
+
+    long retryBackoffMillis = MIN_RETRY_BACKOFF_MILLIS; // flusher thread only
+    long retryAtMillis; // flusher thread only
+
+    volatile Thread flusher;
+    volatile boolean closed;
+
+    AsyncSpanWriter(SpanSender sender, int queuedMaxSpans, int messageMaxSpans,
+                    long messageTimeoutMillis, SpanSpool spool) {
+        this.queue = new ArrayBlockingQueue<>(queuedMaxSpans);
+        this.queuedMaxSpans = queuedMaxSpans;
+        this.sender = sender;
+        this.messageMaxSpans = messageMaxSpans;
+        this.messageTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(messageTimeoutMillis);
+        this.spool = spool;
+    }
+
+    /** Returns the count of spans dropped: none, or all when they don't fit in the queue. */
+    int offer(List<Span> spans) {
+        if (closed) throw new IllegalStateException("closed");
+        startFlusher();
+        int count = spans.size();
+        if (!reserve(count)) {
+            droppedSpans.addAndGet(count);
+            return count;
+        }
+        // reserved slots are free in the queue, so this doesn't fail
+        for (int i = 0; i < count; i++) queue.add(spans.get(i));
+        return 0;
+    }
+
+    boolean reserve(int count) {
+        while (true) {
+            int current = reserved.get();
+            if (current + count > queuedMaxSpans) return false;
+            if (reserved.compareAndSet(current, current + count)) return true;
+        }
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    void startFlusher() {
+        if (flusher != null) return;
+        synchronized (this) {
+            if (flusher != null) return;
+            Thread thread = new Thread(this::flushLoop, "zipkin-splunk-flusher");
+            thread.setDaemon(true);
+            thread.start();
+            flusher = thread;
+        }
+    }
+
+    void flushLoop() {
+        List<Span> batch = new ArrayList<>(messageMaxSpans);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                if (!fill(batch)) {
+                    replaySpool(); // idle: catch up on anything spooled during an outage
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                // close() interrupts us; drain what is left before exiting
+                queue.drainTo(batch, messageMaxSpans);
+            }
+            if (!batch.isEmpty()) flush(batch);
+        }
+    }
+
+    /** Blocks until a batch is full or the oldest span in it reaches the message timeout. */
+    boolean fill(List<Span> batch) throws InterruptedException {
+        Span first = queue.poll(1, TimeUnit.SECONDS);
+        if (first == null) return false;
+        batch.add(first);
+        long deadline = System.nanoTime() + messageTimeoutNanos;
+        while (batch.size() < messageMaxSpans) {
+            if (queue.drainTo(batch, messageMaxSpans - batch.size()) > 0) continue;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            Span next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) break;
+            batch.add(next);
+        }
+        return true;
+    }
+
+    void flush(List<Span> batch) {
+        reserved.addAndGet(-batch.size()); // drained from the queue
+        try {
+            if (spool != null && !replaySpool()) {
+                spool(batch); // keep order behind what is already spooled
+                return;
+            }
+            try {
+                sender.send(batch);
+                sentSpans.addAndGet(batch.size());
+                onSendSuccess();
+            } catch (Exception e) {
+                List<Span> unsent = e instanceof PartialSendException
+                        ? ((PartialSendException) e).unsent
+                        : batch;
+                sentSpans.addAndGet(batch.size() - unsent.size());
+                onSendFailure();
+                if (spool != null) {
+                    LOG.debug("Spooling {} spans after failing to write them to Splunk",
+                            unsent.size(), e);
+                    spool(unsent);
+                } else {
+                    failedSpans.addAndGet(unsent.size());
+                    LOG.warn("Dropped {} spans after failing to write them to Splunk",
+                            unsent.size(), e);
+                }
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /** Returns true when the spool is empty, meaning new batches can be sent directly. */
+    boolean replaySpool() {
+        if (spool == null) return true;
+        try {
+            ByteBuffer record;
+            while ((record = spool.peek()) != null) {
+                if (System.currentTimeMillis() < retryAtMillis) return false;
+                List<Span> spans;
+                try {
+                    spans = SpanBytesDecoder.JSON_V2.decodeList(record);
+                } catch (RuntimeException e) {
+                    LOG.warn("Skipping unreadable record in the spool in {}", spool.directory, e);
+                    spool.commit();
+                    continue;
+                }
+                try {
+                    sender.send(spans);
+                } catch (PartialSendException e) {
+                    // keep only what wasn't written, at the end, rather than resend the record
+                    spool.commit();
+                    sentSpans.addAndGet(spans.size() - e.unsent.size());
+                    spool(e.unsent);
+                    onSendFailure();
+                    return false;
+                } catch (Exception e) {
+                    LOG.debug("Splunk is still unavailable; {} bytes spooled",
+                            spool.sizeInBytes(), e);
+                    onSendFailure();
+                    return false;
+                }
+                spool.commit();
+                sentSpans.addAndGet(spans.size());
+                onSendSuccess();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not read the spool in {}", spool.directory, e);
+            return false;
+        }
+    }
+
+    void spool(List<Span> batch) {
+        try {
+            if (spool.append(SpanBytesEncoder.JSON_V2.encodeList(batch))) {
+                return;
+            }
+            LOG.warn("Dropped {} spans: spool in {} is full", batch.size(), spool.directory);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Dropped {} spans: could not write the spool in {}", batch.size(),
+                    spool.directory, e);
+        }
+        failedSpans.addAndGet(batch.size());
+    }
+
+    void onSendSuccess() {
+        retryBackoffMillis = MIN_RETRY_BACKOFF_MILLIS;
+        retryAtMillis = 0L;
+    }
+
+    void onSendFailure() {
+        retryAtMillis = System.currentTimeMillis() + retryBackoffMillis;
+        retryBackoffMillis = Math.min(retryBackoffMillis * 2, MAX_RETRY_BACKOFF_MILLIS);
+    }
+
+    @Override public void close() throws IOException {
+        closed = true;
+        Thread thread = flusher;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.NANOSECONDS.toMillis(messageTimeoutNanos) + 5000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sender.close();
+        if (spool != null) spool.close();
+    }
+}
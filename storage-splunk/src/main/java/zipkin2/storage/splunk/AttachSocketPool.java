@@ -0,0 +1,234 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.splunk.Args;
+import com.splunk.Index;
+import com.splunk.Service;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived {@link Index#attach(Args)} streams for one index, so ingest doesn't pay a REST index
+ * lookup and a TCP/TLS handshake per batch.
+ *
+ * <p>Borrowing a stream only runs checks that don't block, so a batch never waits on a probe. A
+ * timer probes streams idle longer than {@link #PROBE_AFTER_IDLE_MILLIS} for a server-side close,
+ * and closes those idle longer than {@code idleTimeout}, even when nothing is being written. A
+ * stream is replaced when a write fails. A failed write isn't retried, as part of it may already
+ * have been indexed. The {@link Index} is looked up once and again only after a connect failure.
+ */
+final class AttachSocketPool implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(AttachSocketPool.class);
+
+    /** Streams used more recently than this are assumed open, as probing one blocks briefly. */
+    static final long PROBE_AFTER_IDLE_MILLIS = 1000L;
+
+    /** Probes and evicts idle streams of every pool. */
+    static final ScheduledThreadPoolExecutor MAINTENANCE = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "zipkin-splunk-attach-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        MAINTENANCE.setRemoveOnCancelPolicy(true);
+    }
+
+    final Supplier<Service> splunk;
+    final String indexName;
+    final Args indexArgs;
+    final int maxIdle;
+    final long idleTimeoutNanos;
+
+    /** Most recently used first. */
+    final Deque<PooledSocket> idle = new ArrayDeque<>(); // guarded by this
+    final ScheduledFuture<?> maintenance;
+    volatile Index index;
+    boolean closed; // guarded by this
+
+    AttachSocketPool(Supplier<Service> splunk, String indexName, Args indexArgs, int maxIdle,
+                     long idleTimeoutMillis) {
+        this.splunk = splunk;
+        this.indexName = indexName;
+        this.indexArgs = indexArgs;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        long period = Math.min(PROBE_AFTER_IDLE_MILLIS, idleTimeoutMillis);
+        this.maintenance = MAINTENANCE.scheduleWithFixedDelay(
+                () -> maintain(System.nanoTime()), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    PooledSocket borrow() throws IOException {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (closed) throw new IOException("closed");
+            evictIdle(now);
+            PooledSocket socket;
+            while ((socket = idle.pollFirst()) != null) {
+                if (socket.isHealthy()) return socket;
+                socket.close();
+            }
+        }
+        return connect();
+    }
+
+    /**
+     * Evicts streams idle too long and probes the rest of those idle past {@link
+     * #PROBE_AFTER_IDLE_MILLIS}. Probes run outside the lock, so borrowers don't wait on them:
+     * meanwhile, they only see streams used more recently.
+     */
+    void maintain(long now) {
+        List<PooledSocket> probed = new ArrayList<>();
+        long probeAfterNanos = TimeUnit.MILLISECONDS.toNanos(PROBE_AFTER_IDLE_MILLIS);
+        synchronized (this) {
+            evictIdle(now);
+            PooledSocket socket;
+            while ((socket = idle.peekLast()) != null
+                    && now - socket.lastUsedNanos >= probeAfterNanos) {
+                probed.add(idle.pollLast());
+            }
+        }
+        for (int i = probed.size() - 1; i >= 0; i--) { // most recently used first
+            PooledSocket socket = probed.get(i);
+            if (!socket.probe()) {
+                LOG.debug("Closing attach stream to {} closed by the server", indexName);
+            } else {
+                synchronized (this) {
+                    if (!closed && idle.size() < maxIdle) {
+                        idle.addLast(socket);
+                        continue;
+                    }
+                }
+            }
+            socket.close();
+        }
+    }
+
+    /** Returns a stream after a successful write. */
+    void release(PooledSocket socket) {
+        socket.lastUsedNanos = System.nanoTime();
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(socket);
+                return;
+            }
+        }
+        socket.close();
+    }
+
+    /** Discards a stream after a failed write. */
+    void invalidate(PooledSocket socket) {
+        socket.close();
+    }
+
+    PooledSocket connect() throws IOException {
+        Index index = this.index;
+        if (index == null) {
+            index = splunk.get().getIndexes().get(indexName);
+            if (index == null) throw new IOException("index " + indexName + " doesn't exist");
+            this.index = index;
+        }
+        try {
+            return new PooledSocket(index.attach(indexArgs));
+        } catch (IOException | RuntimeException e) {
+            this.index = null; // look it up again next time
+            throw e;
+        }
+    }
+
+    void evictIdle(long now) {
+        PooledSocket socket;
+        while ((socket = idle.peekLast()) != null
+                && now - socket.lastUsedNanos > idleTimeoutNanos) {
+            idle.pollLast();
+            LOG.debug("Closing attach stream to {} idle for {}ms", indexName,
+                    TimeUnit.NANOSECONDS.toMillis(now - socket.lastUsedNanos));
+            socket.close();
+        }
+    }
+
+    synchronized int idleCount() {
+        return idle.size();
+    }
+
+    @Override public void close() {
+        maintenance.cancel(false);
+        synchronized (this) {
+            closed = true;
+            PooledSocket socket;
+            while ((socket = idle.pollFirst()) != null) socket.close();
+        }
+    }
+
+    static final class PooledSocket {
+        final Socket socket;
+        final OutputStream out;
+        long lastUsedNanos = System.nanoTime();
+
+        PooledSocket(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        /**
+         * Returns false if the stream is known to be unusable, without blocking. The receiver never
+         * writes back, so anything readable means an error or a close is on its way.
+         */
+        boolean isHealthy() {
+            if (socket.isClosed() || !socket.isConnected()) return false;
+            if (socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+            try {
+                return socket.getInputStream().available() == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Returns false if the server closed the stream. A close only shows as a readable EOF, so
+         * this blocks for up to a millisecond reading.
+         */
+        boolean probe() {
+            if (!isHealthy()) return false;
+            try {
+                socket.setSoTimeout(1);
+                InputStream in = socket.getInputStream();
+                return in.read() != -1;
+            } catch (SocketTimeoutException expected) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    socket.setSoTimeout(0);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
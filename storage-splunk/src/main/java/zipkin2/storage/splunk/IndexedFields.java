@@ -0,0 +1,200 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.List;
+import java.util.Locale;
+import zipkin2.Span;
+import zipkin2.internal.WriteBuffer;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.splunk.internal.JsonStrings;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index-time fields written with each HEC event, and the queries that read them.
+ *
+ * <p>Search-time extraction with {@code spath} scans the raw JSON of every event in range. These
+ * fields instead land in the index, so {@code tstats} answers name queries from index metadata
+ * alone and {@code trace_id::<id>} finds a trace without touching unrelated events.
+ *
+ * <p>An event may hold several spans in the otel data model, so each field holds the distinct
+ * values of its spans. Values are strings, as HEC requires.
+ */
+final class IndexedFields implements WriteBuffer.Writer<List<Span>> {
+
+    static final String TRACE_ID = "trace_id";
+    static final String LOCAL_SERVICE = "local_service";
+    static final String REMOTE_SERVICE = "remote_service";
+    static final String SPAN_NAME = "span_name";
+    static final String DURATION = "duration";
+    static final String ERROR = "error";
+
+    static final byte[] FIELDS = ",\"fields\":{".getBytes(UTF_8);
+    static final byte[] ERROR_TRUE = ("\"" + ERROR + "\":\"true\"").getBytes(UTF_8);
+
+    /** In the order of {@link #value(Span, int)}. */
+    static final String[] NAMES = {TRACE_ID, LOCAL_SERVICE, REMOTE_SERVICE, SPAN_NAME, DURATION};
+    static final byte[][] KEYS = new byte[NAMES.length][];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) KEYS[i] = ("\"" + NAMES[i] + "\":[").getBytes(UTF_8);
+    }
+
+    @Override public int sizeInBytes(List<Span> spans) {
+        int size = FIELDS.length + 1; // }
+        boolean first = true;
+        for (int field = 0; field < NAMES.length; field++) {
+            int values = 0;
+            for (int i = 0, length = spans.size(); i < length; i++) {
+                String value = distinctValue(spans, i, field);
+                if (value == null) continue;
+                if (values++ > 0) size++; // ,
+                size += JsonStrings.sizeInBytes(value);
+            }
+            if (values == 0) continue;
+            if (!first) size++;
+            first = false;
+            size += KEYS[field].length + 1; // ]
+        }
+        if (hasError(spans)) {
+            if (!first) size++;
+            size += ERROR_TRUE.length;
+        }
+        return size;
+    }
+
+    @Override public void write(List<Span> spans, WriteBuffer b) {
+        b.write(FIELDS);
+        boolean first = true;
+        for (int field = 0; field < NAMES.length; field++) {
+            int values = 0;
+            for (int i = 0, length = spans.size(); i < length; i++) {
+                String value = distinctValue(spans, i, field);
+                if (value == null) continue;
+                if (values++ == 0) {
+                    if (!first) b.writeByte(',');
+                    first = false;
+                    b.write(KEYS[field]);
+                } else {
+                    b.writeByte(',');
+                }
+                JsonStrings.write(value, b);
+            }
+            if (values > 0) b.writeByte(']');
+        }
+        if (hasError(spans)) {
+            if (!first) b.writeByte(',');
+            b.write(ERROR_TRUE);
+        }
+        b.writeByte('}');
+    }
+
+    static String value(Span span, int field) {
+        switch (field) {
+            case 0:
+                return span.traceId();
+            case 1:
+                return span.localServiceName();
+            case 2:
+                return span.remoteServiceName();
+            case 3:
+                return span.name();
+            default:
+                return span.durationAsLong() != 0L ? Long.toString(span.durationAsLong()) : null;
+        }
+    }
+
+    /** Returns the field of span {@code i}, or null if it is absent or an earlier span has it. */
+    static String distinctValue(List<Span> spans, int i, int field) {
+        String value = value(spans.get(i), field);
+        if (value == null) return null;
+        // Events hold at most a few hundred spans, so a scan beats allocating a set.
+        for (int j = 0; j < i; j++) {
+            if (value.equals(value(spans.get(j), field))) return null;
+        }
+        return value;
+    }
+
+    static boolean hasError(List<Span> spans) {
+        for (int i = 0, length = spans.size(); i < length; i++) {
+            if (spans.get(i).tags().containsKey(ERROR)) return true;
+        }
+        return false;
+    }
+
+    /** Names of services, or of fields of spans in one service, from index metadata. */
+    static String namesQuery(SplunkStorage storage, String field, String serviceName) {
+        StringBuilder query = new StringBuilder("| tstats count where ");
+        appendSource(query, storage);
+        if (storage.defaultLookback > 0) {
+            query.append(" earliest=-").append(storage.defaultLookback / 1000).append('s');
+        }
+        if (serviceName != null) {
+            query.append(' ').append(LOCAL_SERVICE).append('=').append(quote(serviceName));
+        }
+        return query.append(" by ").append(field).toString();
+    }
+
+    /** The newest combinations of service, span and remote service names, to seed a catalog. */
+    static String seedNamesQuery(SplunkStorage storage, int limit) {
+        StringBuilder query = new StringBuilder("| tstats fillnull_value=\"\"")
+                .append(" max(_time) as _time where ");
+        appendSource(query, storage);
+        query.append(" earliest=-").append(storage.defaultLookback / 1000).append('s');
+        return query.append(" by ").append(LOCAL_SERVICE).append(' ').append(SPAN_NAME)
+                .append(' ').append(REMOTE_SERVICE)
+                .append(" | sort 0 -_time | head ").append(limit).toString();
+    }
+
+    /** Events of one trace, found by index term instead of raw-text search. */
+    static String traceQuery(SplunkStorage storage, String traceId) {
+        StringBuilder query = new StringBuilder("search ");
+        appendSource(query, storage);
+        return query.append(' ').append(TRACE_ID).append("::")
+                .append(Span.normalizeTraceId(traceId.toLowerCase(Locale.ROOT))).toString();
+    }
+
+    /**
+     * The newest matching trace IDs, from index metadata alone. Tag queries need the raw JSON, so
+     * callers only use this when {@link QueryRequest#annotationQuery()} is empty.
+     */
+    static String traceIdsQuery(SplunkStorage storage, QueryRequest request) {
+        StringBuilder ids = new StringBuilder("| tstats max(_time) as _time");
+        boolean byDuration = request.minDuration() != null || request.maxDuration() != null;
+        if (byDuration) ids.append(" max(").append(DURATION).append(") as ").append(DURATION);
+        ids.append(" where ");
+        appendSource(ids, storage);
+        ids.append(" earliest=").append((request.endTs() - request.lookback()) / 1000)
+                .append(" latest=").append(request.endTs() / 1000);
+        appendFilter(ids, LOCAL_SERVICE, request.serviceName());
+        appendFilter(ids, REMOTE_SERVICE, request.remoteServiceName());
+        appendFilter(ids, SPAN_NAME, request.spanName());
+        ids.append(" by ").append(TRACE_ID);
+        if (request.minDuration() != null) {
+            ids.append(" | where ").append(DURATION).append(">=").append(request.minDuration());
+        }
+        if (request.maxDuration() != null) {
+            ids.append(" | where ").append(DURATION).append("<=").append(request.maxDuration());
+        }
+        return ids.append(" | sort 0 -_time | head ").append(request.limit())
+                .append(" | fields ").append(TRACE_ID).toString();
+    }
+
+    static void appendSource(StringBuilder query, SplunkStorage storage) {
+        query.append("index=").append(quote(storage.indexName))
+                .append(" sourcetype=").append(quote(storage.sourceType));
+    }
+
+    static void appendFilter(StringBuilder query, String field, String value) {
+        if (value == null || value.equalsIgnoreCase("all")) return;
+        query.append(' ').append(field).append('=').append(quote(value));
+    }
+
+    /** Quotes a value for SPL, so user input can't end the string and add commands. */
+    static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
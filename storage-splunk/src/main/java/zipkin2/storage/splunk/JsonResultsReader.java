@@ -0,0 +1,218 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.splunk.Args;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Streams rows of a search requested with {@code output_mode=json}, one field at a time.
+ *
+ * <p>Unlike {@code ResultsReaderXml}, no map is built per row: callers walk the fields of each
+ * row and read only the values they need. {@link #nextUtf8()} hands a value to a span decoder as
+ * UTF-8 in a reused buffer, so {@code _raw} is never copied into a {@code String}.
+ *
+ * <pre>{@code
+ * while (results.nextResult()) {
+ *   if (results.seek("_raw")) spans.add(DECODER.decodeOne(results.nextUtf8()));
+ * }
+ * }</pre>
+ */
+final class JsonResultsReader implements Closeable {
+
+    static final JsonFactory JSON_FACTORY = new JsonFactory();
+    /** A buffer grown past this by an unusual value is dropped rather than retained. */
+    static final int MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    /** Arguments for {@code oneshotSearch} so it returns every row as JSON. */
+    static Args outputArgs() {
+        Args args = new Args();
+        args.add("output_mode", "json");
+        args.add("count", 0);
+        return args;
+    }
+
+    final JsonParser parser;
+    final CharsetEncoder encoder = UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    ByteBuffer utf8 = ByteBuffer.allocate(8192);
+
+    boolean inResults, inRow, inArray;
+    /** True when the parser is on a field value nobody read yet. */
+    boolean pendingValue;
+
+    JsonResultsReader(InputStream in) throws IOException {
+        this.parser = JSON_FACTORY.createParser(in);
+    }
+
+    JsonResultsReader(byte[] page) throws IOException {
+        this.parser = JSON_FACTORY.createParser(page);
+    }
+
+    /** Advances to the next row, returning false once there are none. */
+    boolean nextResult() throws IOException {
+        if (!inResults && !seekResults()) return false;
+        while (inRow) nextField(); // skip what is left of the previous row
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.START_OBJECT) {
+            inRow = true;
+            return true;
+        }
+        if (token == JsonToken.END_ARRAY) inResults = false;
+        return false;
+    }
+
+    /** Advances to the next field of the row, returning its name or null at the end of the row. */
+    String nextField() throws IOException {
+        if (!inRow) return null;
+        skipPendingValue();
+        JsonToken token = parser.nextToken();
+        if (token != JsonToken.FIELD_NAME) {
+            inRow = false;
+            return null;
+        }
+        String name = parser.currentName();
+        parser.nextToken();
+        pendingValue = true;
+        return name;
+    }
+
+    /** Advances to the named field of the row, returning false if the row has none. */
+    boolean seek(String field) throws IOException {
+        for (String name; (name = nextField()) != null; ) {
+            if (name.equals(field)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next value of the current field, or null once all were read. Multi-valued fields
+     * return each value in turn.
+     */
+    String nextText() throws IOException {
+        return nextString() ? parser.getText() : null;
+    }
+
+    /**
+     * Like {@link #nextText()}, but returns UTF-8 bytes in a buffer only valid until the next call
+     * to this reader.
+     */
+    ByteBuffer nextUtf8() throws IOException {
+        if (!nextString()) return null;
+        char[] chars = parser.getTextCharacters();
+        int offset = parser.getTextOffset(), length = parser.getTextLength();
+        int maxBytes = length * 3; // UTF-8 never needs more than 3 bytes per UTF-16 char
+        if (utf8.capacity() < maxBytes) {
+            utf8 = ByteBuffer.allocate(maxBytes);
+        } else if (utf8.capacity() > MAX_RETAINED_BYTES && maxBytes <= MAX_RETAINED_BYTES) {
+            utf8 = ByteBuffer.allocate(Math.max(maxBytes, 8192));
+        }
+        utf8.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(chars, offset, length), utf8, true);
+        encoder.flush(utf8);
+        utf8.flip();
+        return utf8;
+    }
+
+    /** Positions the parser on the next string of the current field. */
+    boolean nextString() throws IOException {
+        if (pendingValue) {
+            pendingValue = false;
+            JsonToken token = parser.currentToken();
+            if (token == JsonToken.START_ARRAY) {
+                inArray = true;
+            } else if (token == JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return false;
+            } else {
+                return token != JsonToken.VALUE_NULL;
+            }
+        }
+        while (inArray) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                inArray = false;
+            } else if (token.isScalarValue()) {
+                if (token != JsonToken.VALUE_NULL) return true;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    void skipPendingValue() throws IOException {
+        if (pendingValue) {
+            pendingValue = false;
+            parser.skipChildren();
+        }
+        while (inArray) {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_ARRAY) {
+                inArray = false;
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /** Skips to the "results" array, failing if Splunk reported an error first. */
+    boolean seekResults() throws IOException {
+        if (parser.currentToken() == null && parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            token = parser.nextToken();
+            if (name.equals("results") && token == JsonToken.START_ARRAY) {
+                inResults = true;
+                return true;
+            } else if (name.equals("messages") && token == JsonToken.START_ARRAY) {
+                checkMessages();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+    void checkMessages() throws IOException {
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String type = null, text = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                parser.nextToken();
+                if (name.equals("type")) {
+                    type = parser.getText();
+                } else if (name.equals("text")) {
+                    text = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if ("FATAL".equals(type) || "ERROR".equals(type)) {
+                throw new IOException("Splunk search failed: " + text);
+            }
+        }
+    }
+
+    @Override public void close() throws IOException {
+        parser.close();
+    }
+}
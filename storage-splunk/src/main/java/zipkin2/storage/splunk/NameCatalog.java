@@ -0,0 +1,266 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.splunk.internal.MetadataSnapshots;
+
+/**
+ * Service, span and remote service names seen in the last {@code windowMillis}, so the UI's name
+ * queries answer from memory instead of scanning the index.
+ *
+ * <p>Names come from spans passing through {@link SplunkSpanConsumer}, and from a search of the
+ * window aggregated by name, so names ingested by other servers or before a restart are there too.
+ * The search runs before the first query, and again on each {@link #seed()}, so the catalog keeps
+ * up with what other servers ingest. A name not seen for the window drops out when next read.
+ */
+final class NameCatalog {
+
+    static final Logger LOG = LoggerFactory.getLogger(NameCatalog.class);
+
+    /** Names kept per map, so high-cardinality span names can't exhaust memory. */
+    static final int MAX_NAMES = 10_000;
+    static final long SEED_RETRY_MILLIS = 60_000L;
+
+    static final class ServiceNames {
+        final AtomicLong lastSeen = new AtomicLong();
+        final Map<String, AtomicLong> spanNames = new ConcurrentHashMap<>();
+        final Map<String, AtomicLong> remoteServiceNames = new ConcurrentHashMap<>();
+    }
+
+    /** Runs the seed search, recording what it finds. */
+    interface Seeder {
+        void seed(NameCatalog catalog) throws IOException;
+    }
+
+    final long windowMillis;
+    final Seeder seeder;
+    final Map<String, ServiceNames> services = new ConcurrentHashMap<>();
+
+    final Object seedLock = new Object();
+    volatile boolean seeded;
+    long retrySeedAt; // guarded by seedLock
+
+    NameCatalog(long windowMillis, Seeder seeder) {
+        this.windowMillis = windowMillis;
+        this.seeder = seeder;
+    }
+
+    void record(List<Span> spans) {
+        long now = System.currentTimeMillis();
+        for (int i = 0, length = spans.size(); i < length; i++) {
+            Span span = spans.get(i);
+            long timestamp = span.timestampAsLong() != 0L ? span.timestampAsLong() / 1000L : now;
+            record(span.localServiceName(), span.name(), span.remoteServiceName(),
+                    Math.min(timestamp, now));
+        }
+    }
+
+    /** Records names seen at {@code timestampMillis}. Only the service name is required. */
+    void record(String serviceName, String spanName, String remoteServiceName,
+                long timestampMillis) {
+        if (serviceName == null || serviceName.isEmpty()) return;
+        ServiceNames names = services.get(serviceName);
+        if (names == null) {
+            if (services.size() >= MAX_NAMES) return;
+            names = services.computeIfAbsent(serviceName, name -> new ServiceNames());
+        }
+        touch(names.lastSeen, timestampMillis);
+        touch(names.spanNames, spanName, timestampMillis);
+        touch(names.remoteServiceNames, remoteServiceName, timestampMillis);
+    }
+
+    static void touch(Map<String, AtomicLong> names, String name, long timestampMillis) {
+        if (name == null || name.isEmpty()) return;
+        AtomicLong lastSeen = names.get(name);
+        if (lastSeen == null) {
+            if (names.size() >= MAX_NAMES) return;
+            lastSeen = names.computeIfAbsent(name, n -> new AtomicLong());
+        }
+        touch(lastSeen, timestampMillis);
+    }
+
+    static void touch(AtomicLong lastSeen, long timestampMillis) {
+        for (long previous; (previous = lastSeen.get()) < timestampMillis; ) {
+            if (lastSeen.compareAndSet(previous, timestampMillis)) return;
+        }
+    }
+
+    List<String> serviceNames() {
+        long cutoff = cutoff();
+        List<String> result = new ArrayList<>();
+        for (Iterator<Map.Entry<String, ServiceNames>> i = services.entrySet().iterator();
+             i.hasNext(); ) {
+            Map.Entry<String, ServiceNames> entry = i.next();
+            if (entry.getValue().lastSeen.get() < cutoff) {
+                i.remove();
+            } else {
+                result.add(entry.getKey());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    List<String> spanNames(String serviceName) {
+        ServiceNames names = serviceName != null ? services.get(serviceName) : null;
+        return names != null ? live(names.spanNames) : Collections.emptyList();
+    }
+
+    List<String> remoteServiceNames(String serviceName) {
+        ServiceNames names = serviceName != null ? services.get(serviceName) : null;
+        return names != null ? live(names.remoteServiceNames) : Collections.emptyList();
+    }
+
+    List<String> live(Map<String, AtomicLong> names) {
+        long cutoff = cutoff();
+        List<String> result = new ArrayList<>();
+        for (Iterator<Map.Entry<String, AtomicLong>> i = names.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, AtomicLong> entry = i.next();
+            if (entry.getValue().get() < cutoff) {
+                i.remove();
+            } else {
+                result.add(entry.getKey());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    long cutoff() {
+        return System.currentTimeMillis() - windowMillis;
+    }
+
+    /**
+     * Runs the seed search unless it already succeeded. Concurrent callers wait for it, and a
+     * failed seed is retried after {@link #SEED_RETRY_MILLIS}, answering from memory meanwhile.
+     */
+    void ensureSeeded() {
+        if (seeded) return;
+        synchronized (seedLock) {
+            if (seeded || System.currentTimeMillis() < retrySeedAt) return;
+            try {
+                seed();
+            } catch (IOException | RuntimeException e) {
+                retrySeedAt = System.currentTimeMillis() + SEED_RETRY_MILLIS;
+                LOG.warn("Could not seed service and span names", e);
+            }
+        }
+    }
+
+    /** The names in the catalog, as the query API serves them. */
+    MetadataSnapshots.Names snapshot(long refreshedAt) {
+        List<String> serviceNames = serviceNames();
+        Map<String, List<String>> spanNames = new LinkedHashMap<>();
+        Map<String, List<String>> remoteServiceNames = new LinkedHashMap<>();
+        for (String serviceName : serviceNames) {
+            spanNames.put(serviceName, spanNames(serviceName));
+            remoteServiceNames.put(serviceName, remoteServiceNames(serviceName));
+        }
+        return new MetadataSnapshots.Names(serviceNames, spanNames, remoteServiceNames,
+                refreshedAt);
+    }
+
+    /** Runs the seed search again, adding names ingested elsewhere since the last one. */
+    void seed() throws IOException {
+        seeder.seed(this);
+        seeded = true;
+        LOG.debug("Seeded names of {} services", services.size());
+    }
+
+    /** A name query answered from the catalog, searching Splunk only to seed it. */
+    static final class NamesCall extends Call.Base<List<String>> {
+        final SplunkStorage storage;
+        final Function<NameCatalog, List<String>> names;
+
+        NamesCall(SplunkStorage storage, Function<NameCatalog, List<String>> names) {
+            this.storage = storage;
+            this.names = names;
+        }
+
+        @Override protected List<String> doExecute() {
+            NameCatalog catalog = storage.nameCatalog;
+            catalog.ensureSeeded();
+            return names.apply(catalog);
+        }
+
+        /** Answers inline once seeded, as there is nothing to wait for. */
+        @Override protected void doEnqueue(Callback<List<String>> callback) {
+            if (storage.nameCatalog.seeded) {
+                callback.onSuccess(doExecute());
+                return;
+            }
+            executeOnQueryThread(storage, this::doExecute, callback);
+        }
+
+        @Override public Call<List<String>> clone() {
+            return new NamesCall(storage, names);
+        }
+    }
+
+    /**
+     * Reads every name in the lookback with one aggregated search, instead of a search per service.
+     * Re-seeds the storage's catalog, or fills a new one when the catalog is off.
+     */
+    static final class RefreshCall extends Call.Base<MetadataSnapshots.Names> {
+        final SplunkStorage storage;
+
+        RefreshCall(SplunkStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override protected MetadataSnapshots.Names doExecute() throws IOException {
+            long refreshedAt = System.currentTimeMillis();
+            NameCatalog catalog = storage.nameCatalog != null
+                    ? storage.nameCatalog
+                    : new NameCatalog(storage.defaultLookback, storage::seedNames);
+            catalog.seed();
+            return catalog.snapshot(refreshedAt);
+        }
+
+        @Override protected void doEnqueue(Callback<MetadataSnapshots.Names> callback) {
+            executeOnQueryThread(storage, this::doExecute, callback);
+        }
+
+        @Override public Call<MetadataSnapshots.Names> clone() {
+            return new RefreshCall(storage);
+        }
+    }
+
+    /** Runs a search on a query thread, as callers of {@code enqueue} mustn't block. */
+    static <V> void executeOnQueryThread(SplunkStorage storage, Callable<V> search,
+                                         Callback<V> callback) {
+        try {
+            storage.queryExecutor.execute(() -> {
+                V result;
+                try {
+                    result = search.call();
+                } catch (Throwable e) {
+                    Call.propagateIfFatal(e);
+                    callback.onError(e);
+                    return;
+                }
+                callback.onSuccess(result);
+            });
+        } catch (RuntimeException e) {
+            callback.onError(e);
+        }
+    }
+}
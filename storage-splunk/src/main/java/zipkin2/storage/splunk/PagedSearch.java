@@ -0,0 +1,167 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.splunk.Args;
+import com.splunk.Job;
+import com.splunk.Service;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a search as a job and reads its results a page at a time, instead of one oneshot response
+ * that Splunk buffers in full and caps at its oneshot limits.
+ *
+ * <p>Pages are read while the job runs: until it is done, rows are read from its preview as its
+ * count grows, then the rest from its results. Searches paged are streaming, so the preview is a
+ * prefix of the results. While the caller decodes a page, the next one is fetched on a query
+ * thread. If no query thread picks the fetch up before the caller needs it, the caller fetches it
+ * itself, so paging never waits on a saturated executor. {@link #close()} cancels the job, which
+ * also stops a search whose remaining results the caller no longer needs.
+ */
+final class PagedSearch implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(PagedSearch.class);
+
+    static final long MIN_POLL_MILLIS = 50L;
+    static final long MAX_POLL_MILLIS = 1000L;
+
+    final Job job;
+    final int pageSize;
+    final QueryExecutor executor;
+    final BooleanSupplier canceled;
+    /** Rows that can be read so far, from the preview until the job is done. */
+    int available;
+    boolean done;
+    int nextOffset;
+    Page prefetched;
+
+    PagedSearch(Job job, int pageSize, QueryExecutor executor, BooleanSupplier canceled) {
+        this.job = job;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        this.canceled = canceled;
+    }
+
+    /** Creates a job for the query, without waiting for it to run. */
+    static PagedSearch start(Service splunk, String query, int pageSize, QueryExecutor executor,
+                             BooleanSupplier canceled) {
+        return new PagedSearch(splunk.getJobs().create(query), pageSize, executor, canceled);
+    }
+
+    /**
+     * Returns the next page of results as JSON, or null once all were read. Waits while the job
+     * has no rows past the last page, then starts fetching the page after it.
+     */
+    byte[] nextPage() throws IOException {
+        Page page = prefetched;
+        prefetched = null;
+        if (page == null) {
+            if (!awaitRows()) return null;
+            page = newPage();
+        }
+        if (nextOffset < available) {
+            prefetched = newPage();
+            try {
+                executor.execute(prefetched);
+            } catch (RejectedExecutionException e) {
+                // the caller fetches it when needed
+            }
+        }
+        return page.get();
+    }
+
+    Page newPage() {
+        Page page = new Page(nextOffset, Math.min(pageSize, available - nextOffset), !done);
+        nextOffset += page.count;
+        return page;
+    }
+
+    /** Polls the job until it has rows not read yet, returning false if it finished without. */
+    boolean awaitRows() throws IOException {
+        long pollMillis = MIN_POLL_MILLIS;
+        while (nextOffset >= available) {
+            if (done) return false;
+            if (canceled.getAsBoolean()) throw new IOException("Canceled");
+            job.refresh();
+            if (job.isReady()) {
+                done = job.isDone();
+                available = done ? job.getResultCount() : job.getResultPreviewCount();
+                if (done) LOG.debug("Job {} done with {} results", job.getSid(), available);
+                if (done || nextOffset < available) continue;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for job " + job.getSid());
+            }
+            pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+        }
+        return true;
+    }
+
+    /** Cancels the job without waiting, so a deadline can close a search without blocking. */
+    @Override public void close() {
+        executor.cancelOnSplunk(() -> {
+            try {
+                job.cancel(); // also removes the job's results from the search head
+            } catch (RuntimeException e) {
+                LOG.debug("Could not cancel job {}", job.getSid(), e);
+            }
+        });
+    }
+
+    /** One page, fetched by whichever thread claims it first. */
+    final class Page implements Runnable {
+        final int offset, count;
+        /** True to read the preview of a job still running. */
+        final boolean preview;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        Page(int offset, int count, boolean preview) {
+            this.offset = offset;
+            this.count = count;
+            this.preview = preview;
+        }
+
+        @Override public void run() {
+            if (!claimed.compareAndSet(false, true)) return;
+            Args args = JsonResultsReader.outputArgs();
+            args.add("offset", offset);
+            args.add("count", count);
+            try (InputStream in = preview ? job.getResultsPreview(args) : job.getResults(args)) {
+                result.complete(in.readAllBytes());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        byte[] get() throws IOException {
+            run(); // fetches inline unless a query thread already claimed it
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading job " + job.getSid());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+
+/**
+ * Least-recently-used cache of {@code getTraces} results, keyed by the request with its time range
+ * widened to whole buckets.
+ *
+ * <p>The UI sets {@code endTs} to the current time, so requests are never equal as sent. Rounding
+ * the end up, and the start down, to {@code bucketMillis} makes repeated searches within a bucket
+ * equal, at the cost of searching up to a bucket more at each end. A window ending within {@link
+ * TraceCache#SETTLED_AFTER_MILLIS} may still gain spans, so its results expire after a bucket; an
+ * older window's results expire after {@code settledTtlMillis}.
+ */
+final class QueryCache {
+
+    static final class Entry {
+        final List<List<Span>> traces;
+        final int spanCount;
+        final long expiresAtMillis;
+
+        Entry(List<List<Span>> traces, int spanCount, long expiresAtMillis) {
+            this.traces = traces;
+            this.spanCount = spanCount;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    final int maxEntries;
+    final long maxSpans;
+    final long bucketMillis;
+    final long settledTtlMillis;
+
+    /** In access order, so iteration starts at the least recently used. Guarded by this. */
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    long spanCount; // guarded by this
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    QueryCache(int maxEntries, long maxSpans, long bucketMillis, long settledTtlMillis) {
+        this.maxEntries = maxEntries;
+        this.maxSpans = maxSpans;
+        this.bucketMillis = bucketMillis;
+        this.settledTtlMillis = settledTtlMillis;
+    }
+
+    /**
+     * Returns cached traces if present, otherwise the search for the bucketed request, caching
+     * what it returns.
+     */
+    Call<List<List<Span>>> getTraces(QueryRequest request,
+                                     Function<QueryRequest, Call<List<List<Span>>>> search) {
+        if (maxEntries == 0) return search.apply(request);
+        QueryRequest bucketed = bucketed(request);
+        String key = bucketed.toString(); // QueryRequest doesn't implement equals
+        List<List<Span>> traces = get(key);
+        if (traces != null) return Call.create(traces);
+        return search.apply(bucketed).map(result -> {
+            put(key, bucketed.endTs(), result);
+            return result;
+        });
+    }
+
+    QueryRequest bucketed(QueryRequest request) {
+        long endTs = ceil(request.endTs());
+        long startTs = Math.max(0L, request.endTs() - request.lookback());
+        startTs = startTs - startTs % bucketMillis;
+        return request.toBuilder().endTs(endTs).lookback(endTs - startTs).build();
+    }
+
+    long ceil(long millis) {
+        long remainder = millis % bucketMillis;
+        return remainder == 0L ? millis : millis - remainder + bucketMillis;
+    }
+
+    List<List<Span>> get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAtMillis > now) {
+                hits.incrementAndGet();
+                return entry.traces;
+            }
+            if (entry != null) {
+                entries.remove(key);
+                spanCount -= entry.spanCount;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String key, long endTs, List<List<Span>> traces) {
+        int spans = 0;
+        for (List<Span> trace : traces) spans += trace.size();
+        if (spans > maxSpans) return;
+        long now = System.currentTimeMillis();
+        long expiresAtMillis = now - endTs < TraceCache.SETTLED_AFTER_MILLIS
+                ? now + bucketMillis
+                : now + settledTtlMillis;
+        List<List<Span>> copy = new ArrayList<>(traces.size());
+        for (List<Span> trace : traces) copy.add(Collections.unmodifiableList(trace));
+        Entry entry = new Entry(Collections.unmodifiableList(copy), spans, expiresAtMillis);
+        synchronized (this) {
+            Entry replaced = entries.put(key, entry);
+            if (replaced != null) spanCount -= replaced.spanCount;
+            spanCount += spans;
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxEntries || spanCount > maxSpans) {
+                Entry evicted = eldest.next().getValue();
+                eldest.remove();
+                spanCount -= evicted.spanCount;
+            }
+        }
+    }
+}
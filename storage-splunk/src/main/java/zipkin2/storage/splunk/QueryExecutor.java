@@ -0,0 +1,119 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs Splunk searches for {@code Call.enqueue}, so callers never block on Splunk.
+ *
+ * <p>Both the threads and the queue are bounded: a search that doesn't fit is rejected rather than
+ * piling up behind a slow Splunk. Counters expose load, rejections and time spent waiting. A
+ * single timer thread cancels searches still running at their deadline. It only flags them and
+ * closes their responses: canceling a search on Splunk is an HTTP request, so runs on a thread of
+ * its own, where a slow Splunk can't delay other deadlines.
+ */
+final class QueryExecutor implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
+
+    final ThreadPoolExecutor executor;
+    final AtomicLong completedQueries = new AtomicLong();
+    final AtomicLong rejectedQueries = new AtomicLong();
+    final AtomicLong queueWaitNanos = new AtomicLong();
+    final AtomicLong timedOutQueries = new AtomicLong();
+    final ScheduledThreadPoolExecutor deadlines;
+    final ThreadPoolExecutor splunkCancels;
+
+    QueryExecutor(int threads, int queueSize) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "zipkin-splunk-query-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.deadlines = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "zipkin-splunk-query-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deadlines.setRemoveOnCancelPolicy(true); // most searches finish before the deadline
+        this.splunkCancels = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "zipkin-splunk-query-cancel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.splunkCancels.allowCoreThreadTimeOut(true);
+    }
+
+    /** Runs the task, unless the returned future is canceled first. */
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return deadlines.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Throws {@link java.util.concurrent.RejectedExecutionException} when saturated. */
+    void execute(Runnable task) {
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                queueWaitNanos.addAndGet(System.nanoTime() - queuedAt);
+                try {
+                    task.run();
+                } finally {
+                    completedQueries.incrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            rejectedQueries.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Cancels a search on Splunk without blocking the caller. When too many cancels are queued,
+     * this one is dropped, leaving Splunk to expire the search.
+     */
+    void cancelOnSplunk(Runnable cancel) {
+        try {
+            splunkCancels.execute(cancel);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Dropped a search cancel, as too many are queued");
+        }
+    }
+
+    int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    int activeThreads() {
+        return executor.getActiveCount();
+    }
+
+    @Override public void close() {
+        deadlines.shutdownNow();
+        splunkCancels.shutdown(); // lets queued cancels free Splunk
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Searches still running after shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Span;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Routes each span to one of several indexers by its trace ID, over a consistent-hash ring, so a
+ * trace lands on one indexer and ingest scales with the number of nodes.
+ *
+ * <p>Each node owns {@link #VIRTUAL_NODES} points on the ring to even out the load. A node that
+ * fails a write is ejected for {@code cooldownMillis}: its spans move to the next healthy node
+ * clockwise, and only its share of traces moves. Once the cooldown passes it is tried again. When
+ * a node writes part of its shard before failing, only the {@link
+ * AsyncSpanWriter.PartialSendException#unsent unsent} spans are retried elsewhere.
+ *
+ * <p>Not thread-safe: only the flusher thread sends.
+ */
+final class ShardedSpanSender implements AsyncSpanWriter.SpanSender {
+
+    static final Logger LOG = LoggerFactory.getLogger(ShardedSpanSender.class);
+
+    static final int VIRTUAL_NODES = 128;
+
+    static final class Node {
+        final String name;
+        final AsyncSpanWriter.SpanSender sender;
+        long ejectedUntilMillis;
+
+        Node(String name, AsyncSpanWriter.SpanSender sender) {
+            this.name = name;
+            this.sender = sender;
+        }
+
+        boolean isHealthy(long now) {
+            return now >= ejectedUntilMillis;
+        }
+
+        @Override public String toString() {
+            return name;
+        }
+    }
+
+    final Node[] nodes;
+    final long cooldownMillis;
+    /** Sorted ring positions, each owned by the node at the same index of {@link #owners}. */
+    final long[] points;
+    final int[] owners;
+
+    ShardedSpanSender(List<Node> nodes, long cooldownMillis) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("nodes are empty");
+        this.nodes = nodes.toArray(new Node[0]);
+        this.cooldownMillis = cooldownMillis;
+
+        long[] entries = new long[this.nodes.length * VIRTUAL_NODES];
+        for (int node = 0, i = 0; node < this.nodes.length; node++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                entries[i++] = hash(this.nodes[node].name + '#' + v);
+            }
+        }
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(entries[a], entries[b]));
+        this.points = new long[entries.length];
+        this.owners = new int[entries.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = entries[order[i]];
+            owners[i] = order[i] / VIRTUAL_NODES;
+        }
+    }
+
+    @Override public void send(List<Span> spans) throws IOException {
+        List<Span> pending = spans;
+        Exception lastError = null;
+        // Each round ejects at least one node, so this ends within nodes.length rounds.
+        for (int round = 0; round < nodes.length; round++) {
+            long now = System.currentTimeMillis();
+            List<List<Span>> shards = partition(pending, now);
+            List<Span> failed = new ArrayList<>();
+            for (int node = 0; node < nodes.length; node++) {
+                List<Span> shard = shards.get(node);
+                if (shard == null) continue;
+                try {
+                    nodes[node].sender.send(shard);
+                    nodes[node].ejectedUntilMillis = 0L;
+                } catch (IOException | RuntimeException e) {
+                    lastError = e;
+                    // Only retry what the node didn't write, or spans would be indexed twice.
+                    failed.addAll(e instanceof AsyncSpanWriter.PartialSendException
+                            ? ((AsyncSpanWriter.PartialSendException) e).unsent : shard);
+                    eject(nodes[node], now, e);
+                }
+            }
+            if (failed.isEmpty()) return;
+            pending = failed;
+            if (!hasHealthyNode(System.currentTimeMillis())) break;
+        }
+        throw new AsyncSpanWriter.PartialSendException(
+                "Failed to write " + pending.size() + " of " + spans.size() + " spans to any indexer",
+                pending, lastError);
+    }
+
+    /** Returns spans grouped by the index of their node, or null where a node gets none. */
+    List<List<Span>> partition(List<Span> spans, long now) {
+        List<List<Span>> shards = new ArrayList<>(nodes.length);
+        for (int i = 0; i < nodes.length; i++) shards.add(null);
+        for (int i = 0, length = spans.size(); i < length; i++) {
+            Span span = spans.get(i);
+            int node = route(span.traceId(), now);
+            List<Span> shard = shards.get(node);
+            if (shard == null) shards.set(node, shard = new ArrayList<>());
+            shard.add(span);
+        }
+        return shards;
+    }
+
+    /** Returns the first healthy node clockwise of the trace, or its owner if all are ejected. */
+    int route(String traceId, long now) {
+        int start = Arrays.binarySearch(points, traceIdHash(traceId));
+        if (start < 0) start = -start - 1;
+        if (start == points.length) start = 0;
+        for (int i = 0; i < points.length; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (nodes[owner].isHealthy(now)) return owner;
+        }
+        return owners[start];
+    }
+
+    void eject(Node node, long now, Exception cause) {
+        if (node.isHealthy(now)) {
+            LOG.warn("Ejecting indexer {} for {}ms after a failed write", node, cooldownMillis,
+                    cause);
+        }
+        node.ejectedUntilMillis = now + cooldownMillis;
+    }
+
+    boolean hasHealthyNode(long now) {
+        for (Node node : nodes) {
+            if (node.isHealthy(now)) return true;
+        }
+        return false;
+    }
+
+    /** Trace IDs are random, so the low 64 bits only need mixing to spread over the ring. */
+    static long traceIdHash(String traceId) {
+        long result = 0L;
+        for (int i = Math.max(0, traceId.length() - 16), length = traceId.length(); i < length; i++) {
+            result = (result << 4) | Character.digit(traceId.charAt(i), 16);
+        }
+        return mix(result);
+    }
+
+    /** FNV-1a over the UTF-8 bytes of a node point name. */
+    static long hash(String value) {
+        long result = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(UTF_8)) {
+            result ^= b & 0xff;
+            result *= 0x100000001b3L;
+        }
+        return mix(result);
+    }
+
+    /** The MurmurHash3 64-bit finalizer. */
+    static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb93fe53ec27bL;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    @Override public void close() throws IOException {
+        IOException error = null;
+        for (Node node : nodes) {
+            try {
+                node.sender.close();
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Coalesces identical searches running at the same time, so a dashboard opened by many users runs
+ * each search once instead of once per user.
+ *
+ * <p>The first caller of a key runs the search while later callers wait for its result. Each
+ * caller gets its own copy of the result list, as callers may sort it in place. If the first
+ * caller is canceled, a waiter runs the search instead of failing with it.
+ */
+final class SingleFlight {
+
+    interface Search<T> {
+        List<T> run() throws IOException;
+    }
+
+    /** How often a waiter checks whether it was canceled. */
+    static final long CANCEL_CHECK_MILLIS = 100L;
+
+    final ConcurrentHashMap<String, CompletableFuture<List<?>>> flights =
+            new ConcurrentHashMap<>();
+    final AtomicLong coalesced = new AtomicLong();
+
+    <T> List<T> run(String key, BooleanSupplier canceled, Search<T> search) throws IOException {
+        while (true) {
+            CompletableFuture<List<?>> flight = new CompletableFuture<>();
+            CompletableFuture<List<?>> existing = flights.putIfAbsent(key, flight);
+            if (existing == null) return lead(key, flight, canceled, search);
+            coalesced.incrementAndGet();
+            try {
+                return copy(await(existing, canceled));
+            } catch (CancellationException e) {
+                if (canceled.getAsBoolean()) throw new IOException("Canceled", e);
+                // the leader was canceled, so search again, maybe leading this time
+            }
+        }
+    }
+
+    <T> List<T> lead(String key, CompletableFuture<List<?>> flight, BooleanSupplier canceled,
+                     Search<T> search) throws IOException {
+        try {
+            List<T> result = search.run();
+            flight.complete(result);
+            return copy(result);
+        } catch (Throwable e) {
+            flight.completeExceptionally(canceled.getAsBoolean()
+                    ? new CancellationException("Canceled")
+                    : e);
+            throw e;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    static List<?> await(CompletableFuture<List<?>> flight, BooleanSupplier canceled)
+            throws IOException {
+        while (true) {
+            if (canceled.getAsBoolean()) throw new IOException("Canceled");
+            try {
+                return flight.get(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // check for cancel again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a search");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CancellationException) throw (CancellationException) cause;
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> List<T> copy(List<?> result) {
+        return new ArrayList<>((List<T>) result);
+    }
+}
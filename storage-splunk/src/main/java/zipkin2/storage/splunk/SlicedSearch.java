@@ -0,0 +1,181 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.storage.splunk.SplunkSpanStore.RawSplunkSearchCall;
+
+/**
+ * Splits a long time range into slices searched in parallel, so no single search has to cover a
+ * week of events before the query timeout.
+ *
+ * <p>Slices are started newest first, up to {@code concurrency} at once. The calling thread
+ * searches slices too, so a saturated query executor slows the search down rather than leaving it
+ * waiting on helpers that never start. Once the newest slices found so far hold enough results,
+ * slices still running are canceled and older ones are never started.
+ */
+final class SlicedSearch<T> {
+
+    static final Logger LOG = LoggerFactory.getLogger(SlicedSearch.class);
+
+    interface SliceCall<T> {
+        RawSplunkSearchCall<T> create(long endTs, long lookback);
+    }
+
+    /** How often the caller checks whether it was canceled while slices run. */
+    static final long CANCEL_CHECK_MILLIS = 100L;
+
+    /** Returns {@code [endTs, lookback]} of each slice, newest first. */
+    static List<long[]> slices(long endTs, long lookback, long sliceMillis) {
+        List<long[]> slices = new ArrayList<>();
+        long start = Math.max(0L, endTs - lookback);
+        for (long end = endTs; end > start; end -= sliceMillis) {
+            slices.add(new long[] {end, Math.min(sliceMillis, end - start)});
+        }
+        return slices;
+    }
+
+    final SplunkStorage storage;
+    final List<long[]> slices;
+    final SliceCall<T> sliceCall;
+    final Predicate<List<List<T>>> enough;
+    final BooleanSupplier canceled;
+
+    final List<List<T>> results; // guarded by this
+    final List<RawSplunkSearchCall<T>> running = new ArrayList<>(); // guarded by this
+    int next, workers; // guarded by this
+    boolean done; // guarded by this
+    Throwable error; // guarded by this
+
+    /**
+     * @param enough whether results of the newest slices, in order, are all that is needed
+     * @param canceled whether the caller was canceled
+     */
+    SlicedSearch(SplunkStorage storage, List<long[]> slices, SliceCall<T> sliceCall,
+                 Predicate<List<List<T>>> enough, BooleanSupplier canceled) {
+        this.storage = storage;
+        this.slices = slices;
+        this.sliceCall = sliceCall;
+        this.enough = enough;
+        this.canceled = canceled;
+        this.results = new ArrayList<>(Collections.nCopies(slices.size(), null));
+    }
+
+    /** Returns results of the newest slices, newest first, stopping once they are enough. */
+    List<List<T>> run() throws IOException {
+        int helpers = Math.min(storage.timeSliceConcurrency, slices.size()) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                storage.queryExecutor.execute(this::help);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Searching slices with {} of {} threads", i + 1, helpers + 1);
+                break;
+            }
+        }
+        help();
+        // helpers still queued find no slices left, so only wait for those running
+        awaitWorkers();
+
+        synchronized (this) {
+            List<List<T>> newest = newest();
+            if (canceled.getAsBoolean()) throw new IOException("Canceled");
+            if (error != null && newest.size() < slices.size() && !enough.test(newest)) {
+                if (error instanceof IOException) throw (IOException) error;
+                if (error instanceof RuntimeException) throw (RuntimeException) error;
+                if (error instanceof Error) throw (Error) error;
+                throw new IOException(error);
+            }
+            return newest;
+        }
+    }
+
+    /** Stops the search, as when the caller is canceled. */
+    synchronized void cancel() {
+        finish();
+    }
+
+    /** Searches slices until none are left or the search is done. */
+    void help() {
+        synchronized (this) {
+            workers++;
+        }
+        try {
+            while (true) {
+                int slice;
+                synchronized (this) {
+                    if (done || next == slices.size()) return;
+                    slice = next++;
+                }
+                long[] range = slices.get(slice);
+                RawSplunkSearchCall<T> call = sliceCall.create(range[0], range[1]);
+                synchronized (this) {
+                    if (done) return;
+                    running.add(call);
+                }
+                List<T> result;
+                try {
+                    result = call.search();
+                } catch (Throwable e) {
+                    synchronized (this) {
+                        running.remove(call);
+                        if (!done && error == null) error = e;
+                        finish();
+                    }
+                    return;
+                }
+                synchronized (this) {
+                    running.remove(call);
+                    results.set(slice, result);
+                    if (!done && enough.test(newest())) finish();
+                }
+            }
+        } finally {
+            synchronized (this) {
+                workers--;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Stops starting slices, and cancels those running. Called with the lock held. */
+    void finish() {
+        done = true;
+        for (RawSplunkSearchCall<T> call : running) call.cancel();
+    }
+
+    void awaitWorkers() throws IOException {
+        synchronized (this) {
+            while (workers > 0) {
+                if (!done && canceled.getAsBoolean()) finish();
+                try {
+                    wait(CANCEL_CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    finish();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for slices");
+                }
+            }
+        }
+    }
+
+    /** Results of slices completed without a gap since the newest. Called with the lock held. */
+    List<List<T>> newest() {
+        List<List<T>> newest = new ArrayList<>();
+        for (List<T> result : results) {
+            if (result == null) break;
+            newest.add(result);
+        }
+        return newest;
+    }
+}
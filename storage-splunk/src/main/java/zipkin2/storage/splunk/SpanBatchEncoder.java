@@ -0,0 +1,130 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import zipkin2.Span;
+import zipkin2.internal.V2SpanWriter;
+import zipkin2.internal.WriteBuffer;
+import zipkin2.storage.splunk.internal.OtelResourceSpansWriter;
+
+/**
+ * Encodes a batch of spans into one reusable buffer, so the write path doesn't allocate a
+ * {@code byte[]} per span and a whole batch reaches the socket in one write.
+ *
+ * <p>A batch is first split into events of type {@code E}: one per span in the zipkin data model,
+ * or one per service in the otel model. Sizes come from {@link WriteBuffer.Writer#sizeInBytes},
+ * so the buffer only grows when a batch is larger than any before it. Not thread-safe: senders
+ * only encode on the flusher thread.
+ */
+final class SpanBatchEncoder<E> {
+
+    static final byte[] CRLF = {'\r', '\n'};
+    static final int INITIAL_BYTES = 8192;
+    /** A buffer grown past this by an unusual batch is dropped rather than retained. */
+    static final int MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    /** Writes spans as JSON_V2, one per line. */
+    static SpanBatchEncoder<Span> zipkin(byte[] delimiter) {
+        return new SpanBatchEncoder<>(spans -> spans, delimited(new V2SpanWriter(), delimiter));
+    }
+
+    /** Writes one OTLP ResourceSpans document per line for each service in the batch. */
+    static SpanBatchEncoder<List<Span>> otel(byte[] delimiter) {
+        return new SpanBatchEncoder<>(OtelResourceSpansWriter::groupByService,
+                delimited(new OtelResourceSpansWriter(), delimiter));
+    }
+
+    /** Writes what the data model reads back, one event per line as the attach stream expects. */
+    static SpanBatchEncoder<?> lineDelimited(SplunkStorage storage) {
+        return storage.otel ? otel(CRLF) : zipkin(CRLF);
+    }
+
+    static <E> WriteBuffer.Writer<E> delimited(WriteBuffer.Writer<E> writer, byte[] delimiter) {
+        return new WriteBuffer.Writer<E>() {
+            @Override public int sizeInBytes(E value) {
+                return writer.sizeInBytes(value) + delimiter.length;
+            }
+
+            @Override public void write(E value, WriteBuffer buffer) {
+                writer.write(value, buffer);
+                buffer.write(delimiter);
+            }
+        };
+    }
+
+    final Function<List<Span>, List<E>> toEvents;
+    final WriteBuffer.Writer<E> writer;
+    List<E> events;
+    byte[] buffer = new byte[INITIAL_BYTES];
+    int length;
+
+    SpanBatchEncoder(Function<List<Span>, List<E>> toEvents, WriteBuffer.Writer<E> writer) {
+        this.toEvents = toEvents;
+        this.writer = writer;
+    }
+
+    /** Encodes all spans, returning the count of bytes now in {@link #buffer}. */
+    int encode(List<Span> spans) {
+        prepare(spans);
+        encode(0, Integer.MAX_VALUE);
+        return length;
+    }
+
+    /** Splits spans into events, returning how many there are to {@link #encode(int, int)}. */
+    int prepare(List<Span> spans) {
+        events = toEvents.apply(spans);
+        return events.size();
+    }
+
+    /**
+     * Encodes prepared events starting at {@code from} until the next would exceed {@code
+     * maxBytes}. At least one event is always encoded. Returns the index after the last encoded.
+     */
+    int encode(int from, int maxBytes) {
+        int size = 0, to = from;
+        for (int count = events.size(); to < count; to++) {
+            int eventSize = writer.sizeInBytes(events.get(to));
+            if (to > from && size + eventSize > maxBytes) break;
+            size += eventSize;
+        }
+        if (buffer.length < size) {
+            buffer = new byte[size];
+        } else if (buffer.length > MAX_RETAINED_BYTES && size <= MAX_RETAINED_BYTES) {
+            buffer = new byte[Math.max(size, INITIAL_BYTES)];
+        }
+        // V2SpanWriter counts two bytes too many per U+2028 or U+2029, so writing can stop short
+        // of size. Zeroing first finds where: every event ends with a byte that isn't zero.
+        Arrays.fill(buffer, 0, size, (byte) 0);
+        WriteBuffer out = WriteBuffer.wrap(buffer, 0);
+        for (int i = from; i < to; i++) {
+            writer.write(events.get(i), out);
+        }
+        while (size > 0 && buffer[size - 1] == 0) size--;
+        length = size;
+        return to;
+    }
+
+    /** Adds the spans of prepared events {@code from} until {@code to} to the list. */
+    @SuppressWarnings("unchecked")
+    void addSpans(int from, int to, List<Span> out) {
+        for (int i = from; i < to; i++) {
+            E event = events.get(i);
+            if (event instanceof Span) {
+                out.add((Span) event);
+            } else {
+                out.addAll((List<Span>) event);
+            }
+        }
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only write-ahead spool of encoded span batches, kept in memory-mapped segment files.
+ *
+ * <p>Each segment starts with a header holding the offset of the first unsent record. A record is
+ * its length followed by its bytes. The bytes are forced to disk before the length is written and
+ * forced in turn, so an append survives an OS or power failure once it returns, and recovery, which
+ * scans records until it finds a zero length, never replays a half-written one. The read offset
+ * only advances once a batch was written to Splunk, and isn't forced, so after such a failure
+ * records written since the last flush of the header are replayed again: replay is at-least-once.
+ *
+ * <p>Segments rotate at {@code segmentBytes}; a segment is unmapped and deleted once fully
+ * replayed. Appends that would take the spool past {@code maxBytes} are refused.
+ */
+final class SpanSpool implements Closeable {
+
+    static final Logger LOG = LoggerFactory.getLogger(SpanSpool.class);
+
+    static final String SUFFIX = ".spool";
+    static final int MAGIC = 0x5a53504c; // ZSPL
+    /** magic (4), reserved (4), read offset (8) */
+    static final int HEADER_BYTES = 16;
+    static final int READ_OFFSET_POSITION = 8;
+    static final int LENGTH_BYTES = 4;
+
+    /** Unmaps a buffer, or null when the JVM doesn't allow it and only GC unmaps. */
+    static final Method INVOKE_CLEANER;
+    static final Object UNSAFE;
+
+    static {
+        Method invokeCleaner = null;
+        Object unsafe = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception | LinkageError e) {
+            LOG.debug("Can't unmap spool segments, so deleted ones hold disk until GC", e);
+        }
+        INVOKE_CLEANER = invokeCleaner;
+        UNSAFE = unsafe;
+    }
+
+    final Path directory;
+    final long maxBytes;
+    final int segmentBytes;
+
+    final ArrayDeque<Segment> segments = new ArrayDeque<>(); // guarded by this
+    long nextSequence; // guarded by this
+
+    SpanSpool(Path directory, long maxBytes, int segmentBytes) throws IOException {
+        if (segmentBytes <= HEADER_BYTES + LENGTH_BYTES) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) files.add(file);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = Segment.open(file, sequence);
+            if (segment == null) { // unmapped by open
+                LOG.warn("Deleting unreadable spool segment {}", file);
+                Files.deleteIfExists(file);
+                continue;
+            }
+            segments.addLast(segment);
+            nextSequence = sequence + 1;
+        }
+        // Only the last segment is appended to; fully replayed ones before it are garbage.
+        while (segments.size() > 1 && segments.peekFirst().isConsumed()) {
+            segments.pollFirst().delete();
+        }
+        if (!segments.isEmpty()) {
+            LOG.info("Recovered {} spool segments from {}", segments.size(), directory);
+        }
+    }
+
+    /** Returns false if the spool is full. */
+    synchronized boolean append(byte[] record) throws IOException {
+        int recordBytes = LENGTH_BYTES + record.length;
+        if (HEADER_BYTES + recordBytes > segmentBytes) return false;
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePosition + recordBytes > segmentBytes) {
+            if ((long) (segments.size() + 1) * segmentBytes > maxBytes) return false;
+            tail = Segment.create(directory.resolve(fileName(nextSequence)), nextSequence,
+                    segmentBytes);
+            nextSequence++;
+            segments.addLast(tail);
+        }
+        tail.append(record);
+        return true;
+    }
+
+    /**
+     * Returns the oldest unsent record without removing it, or null if there is none. The record is
+     * a view of a mapped segment, so must not be read after {@link #commit()}.
+     */
+    synchronized ByteBuffer peek() throws IOException {
+        Segment head = head();
+        if (head == null) return null;
+        int length = head.buffer.getInt(head.readPosition);
+        return head.buffer.slice(head.readPosition + LENGTH_BYTES, length).asReadOnlyBuffer();
+    }
+
+    /** Marks the record returned by {@link #peek()} as written to Splunk. */
+    synchronized void commit() throws IOException {
+        Segment head = head();
+        if (head == null) return;
+        head.readPosition += LENGTH_BYTES + head.buffer.getInt(head.readPosition);
+        head.buffer.putLong(READ_OFFSET_POSITION, head.readPosition);
+        head();
+    }
+
+    /** Drops fully replayed segments, returning the first with unsent records. */
+    Segment head() throws IOException {
+        Segment head;
+        while ((head = segments.peekFirst()) != null && head.isConsumed()) {
+            if (segments.size() == 1) return null; // still appending to it
+            segments.pollFirst();
+            head.delete();
+        }
+        return head;
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isConsumed()) return false;
+        }
+        return true;
+    }
+
+    /** Disk held by the spool, including unused space in mapped segments. */
+    synchronized long sizeInBytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    static String fileName(long sequence) {
+        return String.format("%020d%s", sequence, SUFFIX);
+    }
+
+    @Override public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.buffer.force(); // read offsets
+            unmap(segment.buffer);
+        }
+        segments.clear();
+    }
+
+    /** Unmaps now rather than at GC, so a deleted segment frees its disk. Unsafe if still read. */
+    static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception e) {
+            LOG.debug("Could not unmap a spool segment", e);
+        }
+    }
+
+    static final class Segment {
+        final Path path;
+        final long sequence;
+        final MappedByteBuffer buffer;
+        int readPosition;
+        int writePosition;
+
+        Segment(Path path, long sequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long sequence, int segmentBytes) throws IOException {
+            Segment segment = new Segment(path, sequence, map(path, segmentBytes));
+            segment.buffer.putInt(0, MAGIC);
+            segment.readPosition = segment.writePosition = HEADER_BYTES;
+            segment.buffer.putLong(READ_OFFSET_POSITION, HEADER_BYTES);
+            return segment;
+        }
+
+        /** Returns null if the file isn't a spool segment. */
+        static Segment open(Path path, long sequence) throws IOException {
+            long size = Files.size(path);
+            if (size <= HEADER_BYTES || size > Integer.MAX_VALUE) return null;
+            Segment segment = new Segment(path, sequence, map(path, (int) size));
+            MappedByteBuffer buffer = segment.buffer;
+            if (buffer.getInt(0) != MAGIC) {
+                unmap(buffer);
+                return null;
+            }
+            int position = HEADER_BYTES;
+            while (position + LENGTH_BYTES <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + LENGTH_BYTES + length > buffer.capacity()) break;
+                position += LENGTH_BYTES + length;
+            }
+            segment.writePosition = position;
+            long readPosition = buffer.getLong(READ_OFFSET_POSITION);
+            segment.readPosition = (int) Math.max(HEADER_BYTES, Math.min(readPosition, position));
+            return segment;
+        }
+
+        static MappedByteBuffer map(Path path, int size) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(size);
+                return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        void append(byte[] record) {
+            buffer.put(writePosition + LENGTH_BYTES, record);
+            buffer.force(writePosition + LENGTH_BYTES, record.length);
+            // Writing the length last commits the record.
+            buffer.putInt(writePosition, record.length);
+            buffer.force(writePosition, LENGTH_BYTES);
+            writePosition += LENGTH_BYTES + record.length;
+        }
+
+        void delete() throws IOException {
+            unmap(buffer);
+            Files.deleteIfExists(path);
+        }
+
+        boolean isConsumed() {
+            return readPosition >= writePosition;
+        }
+    }
+}
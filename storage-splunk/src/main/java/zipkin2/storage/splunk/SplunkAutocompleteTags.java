@@ -0,0 +1,407 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.splunk.Args;
+import com.splunk.HttpException;
+import com.splunk.RequestMessage;
+import com.splunk.ResponseMessage;
+import com.splunk.Service;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.AutocompleteTags;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Values of the configured autocomplete keys, counted as spans pass through {@link
+ * SplunkSpanConsumer}, so autocomplete never searches Splunk.
+ *
+ * <p>Each key keeps its most frequent values: once a key has twice {@code cardinality} values, it
+ * is pruned back to the {@code cardinality} most frequent. Counts are shared through a KV store
+ * collection with a document per key and value. Each {@link #save()} reloads the collection, so
+ * servers that ingest nothing still pick up new values, then adds the counts of this server since
+ * its last save to the documents it touched. Saves of two servers racing on one document can lose
+ * one's increment, which only skews a count.
+ */
+final class SplunkAutocompleteTags implements AutocompleteTags {
+
+    static final Logger LOG = LoggerFactory.getLogger(SplunkAutocompleteTags.class);
+
+    /** App namespace of the KV store collection. */
+    static final String KV_STORE_APP = "search";
+    /** Longer values are more likely IDs than anything worth suggesting. */
+    static final int MAX_VALUE_LENGTH = 256;
+    /** Splunk's default limit on documents per batch_save. */
+    static final int MAX_DOCUMENTS_PER_SAVE = 1000;
+    static final long LOAD_RETRY_MILLIS = 60_000L;
+
+    final SplunkStorage storage;
+    final List<String> keys;
+    final int cardinality;
+    final String collection;
+    /** Counts as last loaded, plus those counted here since. Replaced per key on load. */
+    final Map<String, Map<String, LongAdder>> values = new ConcurrentHashMap<>();
+    /** Counted here since the last save, swapped out by each save. Guarded by countLock. */
+    Map<String, Map<String, LongAdder>> unsaved;
+    /**
+     * Held shared while counting, and exclusively while {@link #unsaved} is swapped or merged into
+     * {@link #values}, so no count lands in a map already drained or replaced.
+     */
+    final ReadWriteLock countLock = new ReentrantReadWriteLock();
+
+    final Object loadLock = new Object();
+    volatile boolean loaded;
+    long retryLoadAt; // guarded by loadLock
+
+    SplunkAutocompleteTags(SplunkStorage storage, List<String> keys, int cardinality,
+                           String collection) {
+        this.storage = storage;
+        this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+        this.cardinality = cardinality;
+        this.collection = collection;
+        for (String key : keys) values.put(key, new ConcurrentHashMap<>());
+        this.unsaved = newIndex();
+    }
+
+    Map<String, Map<String, LongAdder>> newIndex() {
+        Map<String, Map<String, LongAdder>> index = new ConcurrentHashMap<>();
+        for (String key : keys) index.put(key, new ConcurrentHashMap<>());
+        return index;
+    }
+
+    void record(List<Span> spans) {
+        countLock.readLock().lock();
+        try {
+            for (int i = 0, length = spans.size(); i < length; i++) {
+                Map<String, String> tags = spans.get(i).tags();
+                if (tags.isEmpty()) continue;
+                for (int k = 0, keyCount = keys.size(); k < keyCount; k++) {
+                    String value = tags.get(keys.get(k));
+                    if (value == null) continue;
+                    increment(values.get(keys.get(k)), value, 1L);
+                    increment(unsaved.get(keys.get(k)), value, 1L);
+                }
+            }
+        } finally {
+            countLock.readLock().unlock();
+        }
+    }
+
+    void increment(Map<String, LongAdder> counts, String value, long count) {
+        if (counts == null || value.isEmpty() || value.length() > MAX_VALUE_LENGTH) return;
+        LongAdder counter = counts.get(value);
+        if (counter == null) {
+            if (counts.size() >= 2 * cardinality) prune(counts);
+            counter = counts.computeIfAbsent(value, v -> new LongAdder());
+        }
+        counter.add(count);
+    }
+
+    /** Drops all but the {@link #cardinality} most frequent values. */
+    void prune(Map<String, LongAdder> counts) {
+        synchronized (counts) {
+            if (counts.size() < 2 * cardinality) return; // another thread pruned
+            List<Map.Entry<String, Long>> top = top(counts, counts.size());
+            for (int i = cardinality; i < top.size(); i++) counts.remove(top.get(i).getKey());
+        }
+    }
+
+    /** Returns up to {@code limit} values, most frequent first. */
+    static List<Map.Entry<String, Long>> top(Map<String, LongAdder> counts, int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.size());
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            entries.add(Map.entry(entry.getKey(), entry.getValue().sum()));
+        }
+        entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return entries.size() > limit ? entries.subList(0, limit) : entries;
+    }
+
+    @Override public Call<List<String>> getKeys() {
+        return Call.create(keys);
+    }
+
+    @Override public Call<List<String>> getValues(String key) {
+        if (key == null) throw new NullPointerException("key == null");
+        if (!values.containsKey(key)) return Call.emptyList();
+        return new IndexCall<List<String>>(this) {
+            @Override List<String> run() {
+                autocompleteTags.ensureLoaded();
+                List<String> result = new ArrayList<>();
+                for (Map.Entry<String, Long> entry : top(values.get(key), cardinality)) {
+                    result.add(entry.getKey());
+                }
+                return result;
+            }
+        };
+    }
+
+    /** Reloads the shared counts, then adds to them what was counted here since the last save. */
+    Call<Void> save() {
+        return new IndexCall<Void>(this) {
+            @Override Void run() throws IOException {
+                autocompleteTags.sync();
+                return null;
+            }
+        };
+    }
+
+    String dataPath() {
+        return "/servicesNS/nobody/" + KV_STORE_APP + "/storage/collections/data/" + collection;
+    }
+
+    /**
+     * Adds saved counts to those in memory unless already done. A failed load is retried after
+     * {@link #LOAD_RETRY_MILLIS}, answering from memory meanwhile.
+     */
+    boolean ensureLoaded() {
+        if (loaded) return true;
+        synchronized (loadLock) {
+            if (loaded) return true;
+            if (System.currentTimeMillis() < retryLoadAt) return false;
+            try {
+                loadOrCreate();
+            } catch (IOException | RuntimeException e) {
+                retryLoadAt = System.currentTimeMillis() + LOAD_RETRY_MILLIS;
+                LOG.warn("Could not load autocomplete values from collection {}", collection, e);
+            }
+            return loaded;
+        }
+    }
+
+    /** Loads the saved counts, creating the collection if there is none yet. */
+    Map<String, Map<String, Long>> loadOrCreate() throws IOException {
+        Map<String, Map<String, Long>> saved;
+        try {
+            saved = load();
+        } catch (HttpException e) {
+            if (e.getStatus() != 404) throw e;
+            createCollection(); // so nothing to load
+            saved = Collections.emptyMap();
+        }
+        loaded = true;
+        return saved;
+    }
+
+    /**
+     * Reads the saved counts, replacing those in memory with them plus what this server counted
+     * since its last save.
+     */
+    Map<String, Map<String, Long>> load() throws IOException {
+        Args args = new Args();
+        args.add("output_mode", "json");
+        ResponseMessage response = storage.splunk().get(dataPath(), args);
+        Map<String, Map<String, Long>> saved = new LinkedHashMap<>();
+        int documents = 0;
+        try (InputStream in = response.getContent();
+             JsonParser parser = JsonResultsReader.JSON_FACTORY.createParser(in)) {
+            if (parser.nextToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    String key = null, value = null;
+                    long count = 0L;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String name = parser.currentName();
+                        parser.nextToken();
+                        if (name.equals("key")) {
+                            key = parser.getValueAsString();
+                        } else if (name.equals("value")) {
+                            value = parser.getValueAsString();
+                        } else if (name.equals("count")) {
+                            count = parser.getValueAsLong();
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    if (key != null && value != null && count > 0L && values.containsKey(key)) {
+                        saved.computeIfAbsent(key, k -> new LinkedHashMap<>()).merge(value, count,
+                                Long::sum);
+                        documents++;
+                    }
+                }
+            }
+        }
+        countLock.writeLock().lock();
+        try {
+            for (String key : keys) {
+                Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+                saved.getOrDefault(key, Collections.emptyMap()).forEach(
+                        (value, count) -> increment(counts, value, count));
+                unsaved.get(key).forEach((value, count) -> increment(counts, value, count.sum()));
+                values.put(key, counts);
+            }
+        } finally {
+            countLock.writeLock().unlock();
+        }
+        LOG.debug("Loaded {} autocomplete values from collection {}", documents, collection);
+        return saved;
+    }
+
+    void createCollection() {
+        Args args = new Args();
+        args.add("name", collection);
+        storage.splunk().post("/servicesNS/nobody/" + KV_STORE_APP
+                + "/storage/collections/config", args);
+        LOG.info("Created KV store collection {} for autocomplete values", collection);
+    }
+
+    /**
+     * Reloads the saved counts, then upserts the documents of values counted here since the last
+     * save with their sum. Nothing is written when nothing was counted, such as on query-only
+     * servers. Counts that fail to save are kept for the next save.
+     */
+    void sync() throws IOException {
+        Map<String, Map<String, Long>> saved = loadOrCreate();
+        Map<String, Map<String, LongAdder>> drained;
+        countLock.writeLock().lock();
+        try {
+            drained = unsaved;
+            unsaved = newIndex();
+        } finally {
+            countLock.writeLock().unlock();
+        }
+        try {
+            saveAll(saved, drained);
+        } catch (IOException | RuntimeException e) {
+            countLock.readLock().lock();
+            try {
+                for (Map.Entry<String, Map<String, LongAdder>> key : drained.entrySet()) {
+                    key.getValue().forEach((value, count) ->
+                            increment(unsaved.get(key.getKey()), value, count.sum()));
+                }
+            } finally {
+                countLock.readLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    void saveAll(Map<String, Map<String, Long>> saved, Map<String, Map<String, LongAdder>> drained)
+            throws IOException {
+        List<String> batches = new ArrayList<>();
+        StringWriter json = null;
+        JsonGenerator generator = null;
+        int documents = 0;
+        for (String key : keys) {
+            Map<String, Long> savedCounts = saved.getOrDefault(key, Collections.emptyMap());
+            for (Map.Entry<String, Long> entry : top(drained.get(key), 2 * cardinality)) {
+                if (documents % MAX_DOCUMENTS_PER_SAVE == 0) {
+                    if (generator != null) batches.add(close(generator, json));
+                    json = new StringWriter();
+                    generator = JsonResultsReader.JSON_FACTORY.createGenerator(json);
+                    generator.writeStartArray();
+                }
+                generator.writeStartObject();
+                generator.writeStringField("_key", key + '=' + entry.getKey());
+                generator.writeStringField("key", key);
+                generator.writeStringField("value", entry.getKey());
+                generator.writeNumberField("count",
+                        savedCounts.getOrDefault(entry.getKey(), 0L) + entry.getValue());
+                generator.writeEndObject();
+                documents++;
+            }
+        }
+        if (generator == null) return; // nothing counted since the last save
+
+        batches.add(close(generator, json));
+        Service splunk = storage.splunk();
+        for (String batch : batches) {
+            RequestMessage request = new RequestMessage("POST");
+            request.getHeader().put("Content-Type", "application/json");
+            request.setContent(batch);
+            splunk.send(dataPath() + "/batch_save", request);
+        }
+        for (String key : keys) prune(splunk, key, saved.get(key));
+        LOG.debug("Saved {} autocomplete values to collection {}", documents, collection);
+    }
+
+    /**
+     * Deletes documents of values too rare to be kept in memory, so the collection stays bounded
+     * as values come and go.
+     */
+    void prune(Service splunk, String key, Map<String, Long> savedCounts) throws IOException {
+        if (savedCounts == null || savedCounts.size() <= 2 * cardinality) return;
+        List<Long> counts = new ArrayList<>(savedCounts.values());
+        counts.sort(Collections.reverseOrder());
+        long minCount = counts.get(2 * cardinality - 1);
+        StringWriter json = new StringWriter();
+        try (JsonGenerator generator = JsonResultsReader.JSON_FACTORY.createGenerator(json)) {
+            generator.writeStartObject();
+            generator.writeStringField("key", key);
+            generator.writeObjectFieldStart("count");
+            generator.writeNumberField("$lt", minCount);
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        splunk.send(dataPath() + "?query=" + URLEncoder.encode(json.toString(), UTF_8),
+                new RequestMessage("DELETE"));
+    }
+
+    static String close(JsonGenerator generator, StringWriter json) throws IOException {
+        generator.writeEndArray();
+        generator.close();
+        return json.toString();
+    }
+
+    /** Runs on a query thread when enqueued, as loading or saving reaches Splunk. */
+    abstract static class IndexCall<V> extends Call.Base<V> {
+        final SplunkAutocompleteTags autocompleteTags;
+
+        IndexCall(SplunkAutocompleteTags autocompleteTags) {
+            this.autocompleteTags = autocompleteTags;
+        }
+
+        abstract V run() throws IOException;
+
+        @Override protected V doExecute() throws IOException {
+            return run();
+        }
+
+        @Override protected void doEnqueue(Callback<V> callback) {
+            try {
+                autocompleteTags.storage.queryExecutor.execute(() -> {
+                    V result;
+                    try {
+                        result = run();
+                    } catch (Throwable e) {
+                        propagateIfFatal(e);
+                        callback.onError(e);
+                        return;
+                    }
+                    callback.onSuccess(result);
+                });
+            } catch (RuntimeException e) {
+                callback.onError(e);
+            }
+        }
+
+        @Override public Call<V> clone() {
+            IndexCall<V> outer = this;
+            return new IndexCall<V>(autocompleteTags) {
+                @Override V run() throws IOException {
+                    return outer.run();
+                }
+            };
+        }
+    }
+}
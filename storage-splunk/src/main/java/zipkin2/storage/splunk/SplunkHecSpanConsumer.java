@@ -0,0 +1,384 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.linecorp.armeria.client.WebClient;
+import com.linecorp.armeria.common.AggregatedHttpResponse;
+import com.linecorp.armeria.common.HttpData;
+import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.RequestHeaders;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import zipkin2.Span;
+import zipkin2.internal.JsonEscaper;
+import zipkin2.internal.V2SpanWriter;
+import zipkin2.internal.WriteBuffer;
+import zipkin2.storage.splunk.internal.OtelResourceSpansWriter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes spans to the HTTP Event Collector (HEC) instead of the management port, so ingest can be
+ * spread across indexers behind a load balancer.
+ *
+ * <p>Each batch is split into gzip-compressed requests of at most {@code hecBatchBytes}
+ * uncompressed, sent concurrently up to {@code hecMaxInFlight}. A request answered 503, which HEC
+ * sends while its queues are full, is sent again after a backoff. When {@code hecAck} is set, a
+ * request is only considered written once the indexers acknowledge it. Only spans of requests that
+ * failed are handed back to be retried.
+ */
+public class SplunkHecSpanConsumer extends SplunkSpanConsumer {
+
+    SplunkHecSpanConsumer(SplunkStorage storage) {
+        super(storage, newHecSender(storage));
+    }
+
+    /** Posts to the only HEC endpoint, or shards across them by trace ID. */
+    static AsyncSpanWriter.SpanSender newHecSender(SplunkStorage storage) {
+        if (storage.hecUrls.isEmpty()) throw new IllegalArgumentException("hecUrl == null");
+        if (storage.hecUrls.size() == 1) return new HecSender(storage, storage.hecUrls.get(0));
+        List<ShardedSpanSender.Node> nodes = new ArrayList<>();
+        for (String hecUrl : storage.hecUrls) {
+            nodes.add(new ShardedSpanSender.Node(hecUrl, new HecSender(storage, hecUrl)));
+        }
+        return new ShardedSpanSender(nodes, storage.indexerCooldown);
+    }
+
+    static class HecSender implements AsyncSpanWriter.SpanSender {
+        static final JsonFactory JSON_FACTORY = new JsonFactory();
+        static final long ACK_POLL_MILLIS = 200L;
+        /** Times a request answered 503 is sent again, doubling the backoff each time. */
+        static final int MAX_BUSY_RETRIES = 3;
+        static final long BUSY_BACKOFF_MILLIS = 500L;
+        static final byte[] NEWLINE = {'\n'};
+        static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        static final int GZIP_OVERHEAD_BYTES = GZIP_HEADER.length + 8;
+
+        final WebClient client;
+        final String authorization;
+        final String channel = UUID.randomUUID().toString();
+        final String path;
+        final boolean raw;
+        final boolean ack;
+        final long ackTimeoutMillis;
+        final int batchBytes;
+        final Semaphore inFlight;
+        final SpanBatchEncoder<?> encoder;
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final CRC32 crc = new CRC32();
+
+        HecSender(SplunkStorage storage, String hecUrl) {
+            if (storage.hecToken == null) throw new IllegalArgumentException("hecToken == null");
+            this.client = WebClient.builder(hecUrl)
+                    .responseTimeout(Duration.ofMillis(storage.hecAckTimeout))
+                    .build();
+            this.authorization = "Splunk " + storage.hecToken;
+            this.raw = storage.hecEndpoint.equalsIgnoreCase("raw");
+            this.path = raw
+                    ? "/services/collector/raw?index=" + encode(storage.indexName)
+                    + "&source=" + encode(storage.source)
+                    + "&sourcetype=" + encode(storage.sourceType)
+                    : "/services/collector/event";
+            this.ack = storage.hecAck;
+            this.ackTimeoutMillis = storage.hecAckTimeout;
+            this.batchBytes = storage.hecBatchBytes;
+            this.inFlight = new Semaphore(storage.hecMaxInFlight);
+            this.encoder = raw ? rawEncoder(storage) : eventEncoder(storage);
+        }
+
+        static SpanBatchEncoder<?> rawEncoder(SplunkStorage storage) {
+            return storage.otel ? SpanBatchEncoder.otel(NEWLINE) : SpanBatchEncoder.zipkin(NEWLINE);
+        }
+
+        static SpanBatchEncoder<?> eventEncoder(SplunkStorage storage) {
+            if (storage.otel) {
+                return new SpanBatchEncoder<>(OtelResourceSpansWriter::groupByService,
+                        new HecEventWriter<>(storage, new OtelResourceSpansWriter(),
+                                spans -> spans.get(0).timestampAsLong(), spans -> spans));
+            }
+            return new SpanBatchEncoder<>(spans -> spans,
+                    new HecEventWriter<>(storage, new V2SpanWriter(), Span::timestampAsLong,
+                            Collections::singletonList));
+        }
+
+        /**
+         * Sends a batch as one or more requests. When only some fail, or aren't acknowledged, the
+         * spans of those are thrown in a {@link AsyncSpanWriter.PartialSendException}, so that
+         * spans HEC accepted aren't sent again.
+         */
+        @Override public void send(List<Span> spans) throws IOException {
+            List<ByteBuf> bodies = new ArrayList<>();
+            List<CompletableFuture<AggregatedHttpResponse>> requests = new ArrayList<>();
+            List<Integer> starts = new ArrayList<>(); // first event of each request
+            try {
+                int count = encoder.prepare(spans);
+                for (int i = 0; i < count; ) {
+                    starts.add(i);
+                    i = encoder.encode(i, batchBytes);
+                    ByteBuf body = gzip(encoder.buffer, encoder.length);
+                    bodies.add(body);
+                    requests.add(post(body));
+                }
+
+                Map<Long, Integer> ackIds = new LinkedHashMap<>(); // to the request acknowledged
+                BitSet failed = new BitSet();
+                IOException error = null;
+                for (int i = 0; i < requests.size(); i++) {
+                    try {
+                        AggregatedHttpResponse response = await(requests.get(i));
+                        for (int retry = 0; retry < MAX_BUSY_RETRIES && isBusy(response); retry++) {
+                            sleep(BUSY_BACKOFF_MILLIS << retry);
+                            response = await(post(bodies.get(i)));
+                        }
+                        if (!response.status().isSuccess()) {
+                            throw new IOException("HEC responded " + response.status() + ": "
+                                    + response.contentUtf8());
+                        }
+                        if (ack) ackIds.put(readLong(response.contentUtf8(), "ackId"), i);
+                    } catch (IOException e) {
+                        failed.set(i);
+                        if (error == null) error = e;
+                        else error.addSuppressed(e);
+                    }
+                }
+                if (!ackIds.isEmpty()) {
+                    try {
+                        awaitAcks(ackIds.keySet()); // leaves the IDs not acknowledged
+                    } catch (IOException e) {
+                        for (int request : ackIds.values()) failed.set(request);
+                        if (error == null) error = e;
+                        else error.addSuppressed(e);
+                    }
+                }
+                if (error == null) return;
+                if (failed.cardinality() == requests.size()) throw error;
+
+                List<Span> unsent = new ArrayList<>();
+                for (int i = failed.nextSetBit(0); i >= 0; i = failed.nextSetBit(i + 1)) {
+                    int end = i + 1 < starts.size() ? starts.get(i + 1) : count;
+                    encoder.addSpans(starts.get(i), end, unsent);
+                }
+                throw new AsyncSpanWriter.PartialSendException(failed.cardinality() + " of "
+                        + requests.size() + " HEC requests failed", unsent, error);
+            } finally {
+                for (ByteBuf body : bodies) body.release();
+            }
+        }
+
+        /** Posts a body, which stays ours to release so it can be posted again. */
+        CompletableFuture<AggregatedHttpResponse> post(ByteBuf body) throws IOException {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for an in-flight slot");
+            }
+            RequestHeaders headers = RequestHeaders.builder(HttpMethod.POST, path)
+                    .set(HttpHeaderNames.AUTHORIZATION, authorization)
+                    .set(HttpHeaderNames.CONTENT_ENCODING, "gzip")
+                    .set("X-Splunk-Request-Channel", channel)
+                    .contentType(MediaType.JSON_UTF_8)
+                    .build();
+            return client.execute(HttpRequest.of(headers, HttpData.wrap(body.retainedDuplicate())))
+                    .aggregate()
+                    .whenComplete((response, error) -> inFlight.release());
+        }
+
+        /** Polls the ack endpoint until every request is durably indexed or the timeout passes. */
+        void awaitAcks(Set<Long> pending) throws IOException {
+            long deadline = System.currentTimeMillis() + ackTimeoutMillis;
+            while (!pending.isEmpty()) {
+                StringBuilder query = new StringBuilder("{\"acks\":[");
+                for (Long ackId : pending) query.append(ackId).append(',');
+                query.setCharAt(query.length() - 1, ']');
+                query.append('}');
+                RequestHeaders headers = RequestHeaders.builder(HttpMethod.POST,
+                                "/services/collector/ack?channel=" + channel)
+                        .set(HttpHeaderNames.AUTHORIZATION, authorization)
+                        .set("X-Splunk-Request-Channel", channel)
+                        .contentType(MediaType.JSON_UTF_8)
+                        .build();
+                AggregatedHttpResponse response = await(client.execute(
+                        HttpRequest.of(headers, HttpData.ofUtf8(query.toString()))).aggregate());
+                if (!response.status().isSuccess()) {
+                    throw new IOException("HEC ack responded " + response.status());
+                }
+                pending.removeAll(readAcked(response.contentUtf8()));
+                if (pending.isEmpty()) return;
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException(pending.size() + " HEC requests weren't acknowledged");
+                }
+                sleep(ACK_POLL_MILLIS);
+            }
+        }
+
+        /** HEC answers 503 while its queues are full, before it accepts any of the request. */
+        static boolean isBusy(AggregatedHttpResponse response) {
+            return response.status().equals(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        static void sleep(long millis) throws InterruptedIOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for HEC");
+            }
+        }
+
+        static AggregatedHttpResponse await(CompletableFuture<AggregatedHttpResponse> future)
+                throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for HEC");
+            } catch (ExecutionException e) {
+                throw new IOException("HEC request failed", e.getCause());
+            }
+        }
+
+        /**
+         * Compresses into a pooled buffer, released once the batch is sent. The deflater is reused
+         * across requests, which only works because senders run on the flusher thread.
+         */
+        ByteBuf gzip(byte[] body, int length) {
+            ByteBuf out = ByteBufAllocator.DEFAULT.buffer(length / 4 + GZIP_OVERHEAD_BYTES);
+            out.writeBytes(GZIP_HEADER);
+            deflater.reset();
+            deflater.setInput(body, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureWritable(Math.max(1024, length / 8));
+                ByteBuffer window = out.nioBuffer(out.writerIndex(), out.writableBytes());
+                out.writerIndex(out.writerIndex() + deflater.deflate(window));
+            }
+            crc.reset();
+            crc.update(body, 0, length);
+            out.writeIntLE((int) crc.getValue());
+            out.writeIntLE(length);
+            return out;
+        }
+
+        /** Reads a top-level numeric field, like {@code ackId} in {"text":"Success","ackId":7}. */
+        static long readLong(String json, String field) throws IOException {
+            try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+                while (parser.nextToken() != null) {
+                    if (parser.currentToken() == JsonToken.FIELD_NAME
+                            && field.equals(parser.currentName())) {
+                        parser.nextToken();
+                        return parser.getValueAsLong();
+                    }
+                }
+            }
+            throw new IOException("missing " + field + " in " + json);
+        }
+
+        /** Reads the acknowledged IDs from {"acks":{"7":true,"8":false}}. */
+        static Set<Long> readAcked(String json) throws IOException {
+            Set<Long> acked = new HashSet<>();
+            try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+                while (parser.nextToken() != null) {
+                    if (parser.currentToken() == JsonToken.FIELD_NAME
+                            && !"acks".equals(parser.currentName())
+                            && parser.nextToken() == JsonToken.VALUE_TRUE) {
+                        acked.add(Long.parseLong(parser.currentName()));
+                    }
+                }
+            }
+            return acked;
+        }
+
+        static String encode(String value) {
+            return URLEncoder.encode(value, UTF_8);
+        }
+
+        @Override public void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Wraps each event in a HEC envelope, carrying the span timestamp as the event time and, with
+     * {@code indexedFields}, the {@link IndexedFields} of its spans.
+     */
+    static final class HecEventWriter<E> implements WriteBuffer.Writer<E> {
+        static final byte[] TIME_FIELD = {',', '"', 't', 'i', 'm', 'e', '"', ':'};
+
+        final WriteBuffer.Writer<E> eventWriter;
+        final ToLongFunction<E> timestamp;
+        final Function<E, List<Span>> spans;
+        final IndexedFields indexedFields; // nullable
+        final byte[] prefix;
+
+        HecEventWriter(SplunkStorage storage, WriteBuffer.Writer<E> eventWriter,
+                       ToLongFunction<E> timestamp, Function<E, List<Span>> spans) {
+            this.eventWriter = eventWriter;
+            this.timestamp = timestamp;
+            this.spans = spans;
+            this.indexedFields = storage.indexedFields ? new IndexedFields() : null;
+            this.prefix = ("{\"index\":\"" + JsonEscaper.jsonEscape(storage.indexName)
+                    + "\",\"source\":\"" + JsonEscaper.jsonEscape(storage.source)
+                    + "\",\"sourcetype\":\"" + JsonEscaper.jsonEscape(storage.sourceType)
+                    + "\",\"event\":").getBytes(UTF_8);
+        }
+
+        @Override public int sizeInBytes(E value) {
+            int size = prefix.length + eventWriter.sizeInBytes(value) + 1; // }
+            if (indexedFields != null) size += indexedFields.sizeInBytes(spans.apply(value));
+            long timestamp = this.timestamp.applyAsLong(value);
+            if (timestamp != 0L) {
+                size += TIME_FIELD.length + WriteBuffer.asciiSizeInBytes(timestamp / 1000000L) + 7;
+            }
+            return size;
+        }
+
+        @Override public void write(E value, WriteBuffer buffer) {
+            buffer.write(prefix);
+            eventWriter.write(value, buffer);
+            if (indexedFields != null) indexedFields.write(spans.apply(value), buffer);
+            long timestamp = this.timestamp.applyAsLong(value);
+            if (timestamp != 0L) {
+                // HEC expects epoch seconds with an optional fraction
+                buffer.write(TIME_FIELD);
+                buffer.writeAscii(timestamp / 1000000L);
+                buffer.writeByte('.');
+                long micros = timestamp % 1000000L;
+                for (long divisor = 100000L; divisor > 0; divisor /= 10) {
+                    buffer.writeByte('0' + (int) (micros / divisor % 10));
+                }
+            }
+            buffer.writeByte('}');
+        }
+    }
+}
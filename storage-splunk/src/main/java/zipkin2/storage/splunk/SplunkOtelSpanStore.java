@@ -4,30 +4,23 @@
  */
 package zipkin2.storage.splunk;
 
-import com.splunk.Event;
-import com.splunk.ResultsReaderXml;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Call;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
-import zipkin2.codec.BytesDecoder;
+import zipkin2.internal.DependencyLinker;
 import zipkin2.storage.QueryRequest;
-import zipkin2.storage.splunk.internal.OtelSpanBytesDecoder;
 
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class SplunkOtelSpanStore extends SplunkSpanStore{
 
     static final Logger LOG = LoggerFactory.getLogger(SplunkOtelSpanStore.class);
 
-    static final BytesDecoder<Span> DECODER = new OtelSpanBytesDecoder();
-
     private final long defaultLookback;
 
     private Call<List<String>> serviceNames;
@@ -39,66 +32,53 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
         this.defaultLookback = defaultLookback;
     }
 
-    // To test
-    @Override
-    public Call<List<List<Span>>> getTraces(QueryRequest request) {
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
         LOG.debug("getTraces query: {}", request);
-        String startQuery = "search * index=\"" + storage.indexName + "\" "
-                + " sourcetype=\"" + storage.sourceType + "\" "
-                + " earliest=-" + (request.lookback() / 1000) + ""
-                + " latest=" + (request.endTs() / 1000) + ""
-                + " | transaction scopeSpans{}.spans{}.traceId | ";
-        String endQuery = " sort -scopeSpans{}.spans{}.startTimeUnixNano | head " + request.limit();
-        StringBuilder queryBuilder = new StringBuilder(startQuery);
-        if (request.serviceName() != null && !request.serviceName().equalsIgnoreCase("all")) {
-            queryBuilder.append(" search \"resource.attributes{}.value.stringValue\" = \"")
-                    .append(request.serviceName())
-                    .append("\" | ");
-        }
-        if (request.spanName() != null && !request.spanName().equalsIgnoreCase("all")) {
-            queryBuilder.append(" search \"scopeSpans{}.spans{}.name\" = \"")
-                    .append(request.spanName())
-                    .append("\" | ");
-        }
-        if (request.remoteServiceName() != null && !request.remoteServiceName()
-                .equalsIgnoreCase("all")) {
-            queryBuilder.append(" where \'remoteEndpoint.serviceName\' = \"")
-                    .append(request.remoteServiceName())
-                    .append("\" | ");
-        }
-        for (Map.Entry<String, String> tag : request.annotationQuery().entrySet()) {
-            queryBuilder.append(" where \'tags.").append(tag.getKey()).append("\' = \"")
-                    .append(tag.getValue())
-                    .append("\" | ");
-        }
-        if (request.minDuration() != null) {
-            queryBuilder.append(" where duration > ")
-                    .append(request.minDuration())
-                    .append(" | ");
-        }
-        if (request.maxDuration() != null) {
-            queryBuilder.append(" where duration < ")
-                    .append(request.maxDuration())
-                    .append(" | ");
-        }
-        queryBuilder.append(endQuery);
-        final String query = queryBuilder.toString();
-        LOG.debug("getTraces query: {}", query);
-        return new GetTracesCallForOtel(storage,query);
+        return storage.queryCache.getTraces(TraceQueryPlanner.narrow(storage, request),
+                bucketed -> TraceQueryPlanner.getTraces(storage, bucketed,
+                        storage.otelDecoder::decodeAll));
     }
 
     @Override public Call<List<Span>> getTrace(String traceId) {
         LOG.debug("getTrace: {}", traceId);
-        final String query = "search * index=\"" + storage.indexName + "\" "
+        final String query = storage.indexedFields
+                ? IndexedFields.traceQuery(storage, traceId)
+                : "search * index=\"" + storage.indexName + "\" "
                 + "sourcetype=\"" + storage.sourceType + "\" "
                 + "scopeSpans{}.spans{}.traceId = " + traceId;
         LOG.debug("getTrace query: {}", query);
-        return new SplunkOtelSpanStore.GetTraceCall(storage, query, traceId);
+        return storage.traceCache.getTrace(traceId,
+                new SplunkOtelSpanStore.GetTraceCall(storage, query, traceId));
     }
 
 
+    @Override void seedNames(NameCatalog catalog) throws IOException {
+        seedNames(catalog, storage.otelDecoder::decodeAll);
+    }
+
+    /**
+     * The newest event per service and span name, decoded for their names. Remote service names
+     * are span attributes SPL can't pair with a span, so come from those events alone.
+     */
+    @Override String seedNamesQuery() {
+        return "search index=" + IndexedFields.quote(storage.indexName)
+                + " sourcetype=" + IndexedFields.quote(storage.sourceType)
+                + " earliest=-" + (storage.defaultLookback / 1000) + "s"
+                + " | stats latest(_raw) as _raw by \"resource.attributes{}.value.stringValue\""
+                + " \"scopeSpans{}.spans{}.name\""
+                + " | head " + storage.nameCatalogSeedLimit
+                + " | fields _raw";
+    }
+
     @Override public Call<List<String>> getServiceNames() {
         LOG.debug("getServiceNames {}",this.serviceNames);
+        if (storage.nameCatalog != null) {
+            return new NameCatalog.NamesCall(storage, NameCatalog::serviceNames);
+        }
+        if (storage.indexedFields) {
+            return new GetNamesCall(storage, IndexedFields.namesQuery(storage,
+                    IndexedFields.LOCAL_SERVICE, null), IndexedFields.LOCAL_SERVICE);
+        }
         final String query = getServiceNamesQueryBuilder();
         LOG.debug("getServiceNames query: {}", query);
         return new GetNamesCall(storage, query, "serviceName");
@@ -130,6 +110,14 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
 
     @Override public Call<List<String>> getRemoteServiceNames(String serviceName) {
         LOG.debug("getRemoteServiceNames");
+        if (storage.nameCatalog != null) {
+            return new NameCatalog.NamesCall(storage,
+                    catalog -> catalog.remoteServiceNames(serviceName));
+        }
+        if (storage.indexedFields) {
+            return new GetNamesCall(storage, IndexedFields.namesQuery(storage,
+                    IndexedFields.REMOTE_SERVICE, serviceName), IndexedFields.REMOTE_SERVICE);
+        }
         final String query = "search * index=\"" + storage.indexName + "\" "
                 + " sourcetype=\"" + storage.sourceType + "\" "
                 + "| eval serviceName=mvindex('resource.attributes{}.value.stringValue', 10) "
@@ -142,6 +130,13 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
     // All good
     @Override public Call<List<String>> getSpanNames(String serviceName) {
         LOG.debug("getSpanNames: {}",serviceName);
+        if (storage.nameCatalog != null) {
+            return new NameCatalog.NamesCall(storage, catalog -> catalog.spanNames(serviceName));
+        }
+        if (storage.indexedFields) {
+            return new GetNamesCall(storage, IndexedFields.namesQuery(storage,
+                    IndexedFields.SPAN_NAME, serviceName), IndexedFields.SPAN_NAME);
+        }
         final String query = "search * index=\"" + storage.indexName + "\" "
                 + " sourcetype=\"" + storage.sourceType + "\" "
                 + "resource.attributes{}.value.stringValue = " + serviceName + " "
@@ -151,39 +146,8 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
         return new GetNamesCall(storage, query, "scopeSpans{}.spans{}.name");
     }
 
-    static class GetTracesCallForOtel extends RawSplunkSearchCall<List<Span>> {
-
-        GetTracesCallForOtel(SplunkStorage storage, String query) {
-            super(storage, query);
-        }
-
-        @Override List<List<Span>> process(ResultsReaderXml results) {
-            LOG.debug("process: {}", results);
-            List<List<Span>> traces = new ArrayList<>();
-            for (Event event : results) {
-                String[] raws = event.get("_raw").split("\\n");
-                try {
-                    List<Span> trace = new ArrayList<>();
-                    for (String raw : raws) {
-                        byte[] bytes = raw.getBytes(UTF_8);
-                        Span span = DECODER.decodeOne(bytes);
-                        trace.add(span);
-                    }
-                    traces.add(trace);
-                }catch(RuntimeException exception){
-                    LOG.error("Exception while decoding a trace",exception);
-                }
-            }
-            LOG.trace("process: {}", traces);
-            return traces;
-        }
-
-        @Override public Call<List<List<Span>>> clone() {
-            return new SplunkOtelSpanStore.GetTracesCallForOtel(storage, query);
-        }
-    }
-
-    static class GetTraceCall extends SplunkSearchCall<Span> {
+    /** Decodes every span of the events found, dropping spans of other traces they hold. */
+    static class GetTraceCall extends RawSplunkSearchCall<Span> {
         final String traceId;
 
         GetTraceCall(SplunkStorage storage, String query, String traceId) {
@@ -191,10 +155,19 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
             this.traceId = traceId;
         }
 
-        @Override Span parse(Event event) {
-            final String raw = event.get("_raw");
-            final byte[] bytes = raw.getBytes(UTF_8);
-            return DECODER.decodeOne(bytes);
+        @Override List<Span> process(JsonResultsReader results) throws IOException {
+            String key = TraceCache.key(traceId);
+            List<Span> event = new ArrayList<>(), trace = new ArrayList<>();
+            while (results.nextResult()) {
+                if (!results.seek("_raw")) continue;
+                event.clear();
+                storage.otelDecoder.decodeAll(results.nextUtf8(), event);
+                for (int i = 0, length = event.size(); i < length; i++) {
+                    Span span = event.get(i);
+                    if (key == null || key.equals(span.traceId())) trace.add(span);
+                }
+            }
+            return trace;
         }
 
         @Override public Call<List<Span>> clone() {
@@ -203,27 +176,46 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
     }
 
     static class GetDependencyLinkCall extends SplunkSearchCall<DependencyLink> {
-        final long start;
-        final long end;
+        final long endTs;
+        final long lookback;
 
-        GetDependencyLinkCall(SplunkStorage storage, String query, long start ,long end) {
+        GetDependencyLinkCall(SplunkStorage storage, String query, long endTs, long lookback) {
             super(storage, query);
-            this.start = start;
-            this.end = end;
+            this.endTs = endTs;
+            this.lookback = lookback;
         }
 
 
         @Override
-        DependencyLink parse(Event event) {
+        DependencyLink parse(JsonResultsReader result) throws IOException {
+            String kind = null, parent = null, child = null, callCount = null;
+            for (String name; (name = result.nextField()) != null; ) {
+                switch (name) {
+                    case "scopeSpans{}.spans{}.kind":
+                        kind = result.nextText();
+                        break;
+                    case "parent":
+                        parent = result.nextText();
+                        break;
+                    case "child":
+                        child = result.nextText();
+                        break;
+                    case "callcount":
+                        callCount = result.nextText();
+                        break;
+                    default:
+                }
+            }
+            if (parent == null || child == null || callCount == null) return null;
             DependencyLink dependencyLink = null;
-            if(event.get("scopeSpans{}.spans{}.kind").equalsIgnoreCase("5")){
-                dependencyLink = DependencyLink.newBuilder().child(event.get("parent")).
-                        parent(event.get("child")).
-                        callCount(Long.parseLong(event.get("callcount"))).errorCount(0L).build();
+            if("5".equals(kind)){
+                dependencyLink = DependencyLink.newBuilder().child(parent).
+                        parent(child).
+                        callCount(Long.parseLong(callCount)).errorCount(0L).build();
             }else{
-                 dependencyLink = DependencyLink.newBuilder().parent(event.get("parent")).
-                        child(event.get("child")).
-                        callCount(Long.parseLong(event.get("callcount"))).errorCount(0L).build();
+                 dependencyLink = DependencyLink.newBuilder().parent(parent).
+                        child(child).
+                        callCount(Long.parseLong(callCount)).errorCount(0L).build();
             }
             LOG.debug("DependencyLink: {} ",dependencyLink);
             return dependencyLink;
@@ -231,12 +223,22 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
 
         @Override
         public Call<List<DependencyLink>> clone() {
-            return new GetDependencyLinkCall(storage,query,start,end);
+            return new GetDependencyLinkCall(storage, query, endTs, lookback);
+        }
+    }
+
+    @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+        LOG.debug("getDependencies: {} {}", endTs, lookback);
+        if (storage.maxLookback > 0L) lookback = Math.min(lookback, storage.maxLookback);
+        if (lookback > storage.timeSlice) {
+            return new SlicedDependenciesCall(storage, endTs, lookback);
         }
+        final String query = dependenciesQuery(storage, endTs, lookback);
+        LOG.debug("getDependencies query: {}", query);
+        return new GetDependencyLinkCall(storage, query, endTs, lookback);
     }
 
-    @Override public Call<List<DependencyLink>> getDependencies(long start, long end) {
-        LOG.debug("getDependencies: {} {}", start,end);
+    static String dependenciesQuery(SplunkStorage storage, long endTs, long lookback) {
         Character space = ' ';
         Character pipe = '|';
         StringBuilder queryBuilder = new StringBuilder("search * index=");
@@ -245,7 +247,8 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
         queryBuilder.append("sourcetype=");
         queryBuilder.append(storage.sourceType);
         queryBuilder.append(space);
-        queryBuilder.append("earliest=-86400s");
+        queryBuilder.append("earliest=").append((endTs - lookback) / 1000);
+        queryBuilder.append(" latest=").append(endTs / 1000);
         queryBuilder.append(space);
         queryBuilder.append("scopeSpans{}.spans{}.kind IN (3,4,5)");
         queryBuilder.append(space);
@@ -296,9 +299,49 @@ public class SplunkOtelSpanStore extends SplunkSpanStore{
         queryBuilder.append(space);
         queryBuilder.append(pipe);
         queryBuilder.append("stats count as callcount by parent child scopeSpans{}.spans{}.kind");
-        final String query = queryBuilder.toString();
-        LOG.debug("getTraces query: {}", query);
-        return new GetDependencyLinkCall(storage,query,start,end);
+        return queryBuilder.toString();
+    }
+
+    /** Searches each time slice of a long lookback in parallel, summing the links found. */
+    static final class SlicedDependenciesCall extends RawSplunkSearchCall<DependencyLink> {
+        final long endTs;
+        final long lookback;
+        volatile SlicedSearch<?> slicedSearch;
+
+        SlicedDependenciesCall(SplunkStorage storage, long endTs, long lookback) {
+            super(storage, dependenciesQuery(storage, endTs, lookback));
+            this.endTs = endTs;
+            this.lookback = lookback;
+        }
+
+        @Override List<DependencyLink> doSearch() throws IOException {
+            SlicedSearch<DependencyLink> search = new SlicedSearch<>(storage,
+                    SlicedSearch.slices(endTs, lookback, storage.timeSlice),
+                    (sliceEndTs, sliceLookback) -> new GetDependencyLinkCall(storage,
+                            dependenciesQuery(storage, sliceEndTs, sliceLookback),
+                            sliceEndTs, sliceLookback),
+                    slices -> false,
+                    this::isCanceled);
+            slicedSearch = search;
+            if (isCanceled()) search.cancel();
+            List<DependencyLink> links = new ArrayList<>();
+            for (List<DependencyLink> slice : search.run()) links.addAll(slice);
+            return DependencyLinker.merge(links);
+        }
+
+        @Override protected void doCancel() {
+            SlicedSearch<?> slicedSearch = this.slicedSearch;
+            if (slicedSearch != null) slicedSearch.cancel();
+            super.doCancel();
+        }
+
+        @Override List<DependencyLink> process(JsonResultsReader results) {
+            throw new AssertionError("doSearch() searches each slice");
+        }
+
+        @Override public Call<List<DependencyLink>> clone() {
+            return new SlicedDependenciesCall(storage, endTs, lookback);
+        }
     }
 
 }
@@ -7,77 +7,171 @@ package zipkin2.storage.splunk;
 import com.splunk.Args;
 import com.splunk.Index;
 import com.splunk.Service;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import zipkin2.Call;
 import zipkin2.Callback;
 import zipkin2.Span;
-import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.storage.SpanConsumer;
 
-import static java.nio.charset.StandardCharsets.*;
-import static zipkin2.storage.splunk.SplunkStorage.*;
+public class SplunkSpanConsumer implements SpanConsumer, Closeable {
 
-public class SplunkSpanConsumer implements SpanConsumer {
+    static final Logger LOG = LoggerFactory.getLogger(SplunkSpanConsumer.class);
 
     final SplunkStorage storage;
+    final AsyncSpanWriter writer;
 
-    SplunkSpanConsumer(SplunkStorage storage) {
+    SplunkSpanConsumer(SplunkStorage storage, AsyncSpanWriter.SpanSender sender) {
         this.storage = storage;
+        this.writer = new AsyncSpanWriter(sender, storage.queuedMaxSpans,
+                storage.messageMaxSpans, storage.messageTimeout, openSpool(storage));
+    }
+
+    SplunkSpanConsumer(SplunkStorage storage) {
+        this(storage, newAttachSender(storage));
+    }
+
+    /** Writes to the search head, or shards across {@link SplunkStorage#indexers} if set. */
+    static AsyncSpanWriter.SpanSender newAttachSender(SplunkStorage storage) {
+        if (storage.indexers.isEmpty()) return new IndexAttachSender(storage, storage::splunk);
+        List<ShardedSpanSender.Node> nodes = new ArrayList<>();
+        for (SplunkStorage.Indexer indexer : storage.indexers) {
+            nodes.add(new ShardedSpanSender.Node(indexer.name,
+                    new IndexAttachSender(storage, indexer)));
+        }
+        return new ShardedSpanSender(nodes, storage.indexerCooldown);
     }
 
     @Override public Call<Void> accept(List<Span> spans) {
         if (spans.isEmpty()) return Call.create(null);
-        return new SplunkIndexCall(storage, spans);
+        return new QueueSpansCall(this, spans);
     }
 
-    static class SplunkIndexCall extends Call.Base<Void> {
-        final SplunkStorage storage;
-        final Service splunk;
-        final Index index;
-        final Args indexArgs;
+    /** Counts names and autocomplete values of a batch the writer accepted. */
+    void record(List<Span> spans) {
+        if (storage.nameCatalog != null) storage.nameCatalog.record(spans);
+        if (!storage.autocompleteTags.keys.isEmpty()) storage.autocompleteTags.record(spans);
+    }
+
+    static SpanSpool openSpool(SplunkStorage storage) {
+        if (storage.spoolDirectory == null) return null;
+        try {
+            return new SpanSpool(Paths.get(storage.spoolDirectory), storage.spoolMaxBytes,
+                    storage.spoolSegmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(
+                    "Could not open the spool in " + storage.spoolDirectory, e);
+        }
+    }
+
+    /** Spans waiting for the flusher thread. */
+    public int queueDepth() {
+        return writer.queueDepth();
+    }
+
+    /** Spans rejected because their batch didn't fit in the queue. */
+    public long droppedSpans() {
+        return writer.droppedSpans.get();
+    }
+
+    /** Spans the flusher failed to write to Splunk. */
+    public long failedSpans() {
+        return writer.failedSpans.get();
+    }
+
+    /** Spans successfully written to Splunk. */
+    public long sentSpans() {
+        return writer.sentSpans.get();
+    }
+
+    /** Disk held by spans waiting to be replayed after a Splunk outage. */
+    public long spoolBytes() {
+        return writer.spool != null ? writer.spool.sizeInBytes() : 0L;
+    }
+
+    @Override public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Hands spans to the flusher without waiting on Splunk. Only a batch the queue took is recorded
+     * in the name catalog and autocomplete counts, so dropped spans don't show up in either.
+     */
+    static class QueueSpansCall extends Call.Base<Void> {
+        final SplunkSpanConsumer consumer;
         final List<Span> spans;
 
-        SplunkIndexCall(SplunkStorage storage, List<Span> spans) {
-            this.storage = storage;
-            this.splunk = storage.splunk();
-            this.index = splunk.getIndexes().get(storage.indexName);
-            this.indexArgs = storage.indexArgs;
+        QueueSpansCall(SplunkSpanConsumer consumer, List<Span> spans) {
+            this.consumer = consumer;
             this.spans = spans;
         }
 
-        @Override protected Void doExecute() throws IOException {
-            try (Socket socket = index.attach(indexArgs)) {
-                OutputStream os = socket.getOutputStream();
-                for (Span span : spans) {
-                    os.write(SpanBytesEncoder.JSON_V2.encode(span));
-                    os.write("\r\n".getBytes(UTF_8));
-                }
-                os.flush();
-            } catch (Exception e) {
-                e.printStackTrace();
+        @Override protected Void doExecute() {
+            int dropped = consumer.writer.offer(spans);
+            if (dropped > 0) {
+                throw new RejectedExecutionException(
+                        "Dropped " + dropped + " spans: ingest queue is full");
             }
+            consumer.record(spans);
             return null;
         }
 
         @Override protected void doEnqueue(Callback<Void> callback) {
-            try (Socket socket = index.attach(indexArgs)) {
-                OutputStream os = socket.getOutputStream();
-                for (Span span : spans) {
-                    os.write(ENCODER.encode(span));
-                    os.write("\r\n".getBytes(UTF_8));
-                }
-                callback.onSuccess(null);
-            } catch (Exception e) {
-                e.printStackTrace();
+            try {
+                callback.onSuccess(doExecute());
+            } catch (RuntimeException e) {
                 callback.onError(e);
             }
         }
 
         @Override public Call<Void> clone() {
-            return new SplunkIndexCall(storage, spans);
+            return new QueueSpansCall(consumer, spans);
+        }
+    }
+
+    /** Writes each batch over a pooled management-port {@link Index#attach(Args)} stream. */
+    static class IndexAttachSender implements AsyncSpanWriter.SpanSender {
+        final AttachSocketPool pool;
+        final SpanBatchEncoder<?> encoder;
+
+        IndexAttachSender(SplunkStorage storage, Supplier<Service> splunk) {
+            this.encoder = SpanBatchEncoder.lineDelimited(storage);
+            this.pool = new AttachSocketPool(splunk, storage.indexName, storage.indexArgs,
+                    storage.attachPoolSize, storage.attachIdleTimeout);
+        }
+
+        /**
+         * Writes on a stream that passed its health check. A write that fails isn't retried here,
+         * because the indexer may have received part of the batch before the stream broke.
+         */
+        @Override public void send(List<Span> spans) throws IOException {
+            encoder.encode(spans);
+            write(pool.borrow());
+        }
+
+        void write(AttachSocketPool.PooledSocket socket) throws IOException {
+            try {
+                OutputStream os = socket.out;
+                encoder.writeTo(os);
+                os.flush();
+            } catch (IOException | RuntimeException e) {
+                pool.invalidate(socket);
+                throw e;
+            }
+            pool.release(socket);
+        }
+
+        @Override public void close() {
+            pool.close();
         }
     }
 }
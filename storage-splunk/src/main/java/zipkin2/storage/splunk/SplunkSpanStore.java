@@ -4,16 +4,18 @@
  */
 package zipkin2.storage.splunk;
 
-import com.splunk.Event;
-import com.splunk.ResultsReaderXml;
+import com.splunk.Args;
 import com.splunk.Service;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.Call;
@@ -24,7 +26,6 @@ import zipkin2.storage.QueryRequest;
 import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanStore;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static zipkin2.storage.splunk.SplunkStorage.DECODER;
 
 public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
@@ -39,6 +40,13 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
 
     @Override public Call<List<String>> getServiceNames() {
         LOG.debug("getServiceNames: {}");
+        if (storage.nameCatalog != null) {
+            return new NameCatalog.NamesCall(storage, NameCatalog::serviceNames);
+        }
+        if (storage.indexedFields) {
+            return new GetNamesCall(storage, IndexedFields.namesQuery(storage,
+                    IndexedFields.LOCAL_SERVICE, null), IndexedFields.LOCAL_SERVICE);
+        }
         final String query = "search * index=\"" + storage.indexName + "\" "
                 + " sourcetype=" + storage.sourceType + ""
                 + "| table localEndpoint.serviceName "
@@ -48,6 +56,14 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
 
     @Override public Call<List<String>> getRemoteServiceNames(String serviceName) {
         LOG.debug("getRemoteServiceNames: {}");
+        if (storage.nameCatalog != null) {
+            return new NameCatalog.NamesCall(storage,
+                    catalog -> catalog.remoteServiceNames(serviceName));
+        }
+        if (storage.indexedFields) {
+            return new GetNamesCall(storage, IndexedFields.namesQuery(storage,
+                    IndexedFields.REMOTE_SERVICE, serviceName), IndexedFields.REMOTE_SERVICE);
+        }
         final String query = "search * index=\"" + storage.indexName + "\" "
                 + "localEndpoint " + serviceName + " "
                 + "| table remoteEndpoint.serviceName "
@@ -57,6 +73,13 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
 
     @Override public Call<List<String>> getSpanNames(String serviceName) {
         LOG.debug("getSpanNames: {}",serviceName);
+        if (storage.nameCatalog != null) {
+            return new NameCatalog.NamesCall(storage, catalog -> catalog.spanNames(serviceName));
+        }
+        if (storage.indexedFields) {
+            return new GetNamesCall(storage, IndexedFields.namesQuery(storage,
+                    IndexedFields.SPAN_NAME, serviceName), IndexedFields.SPAN_NAME);
+        }
         final String query = "search * index=\"" + storage.indexName + "\" "
                 + "localEndpoint " + serviceName + " "
                 + "| table name "
@@ -64,93 +87,58 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
         return new GetNamesCall(storage, query, "name");
     }
 
-    @Override public Call<List<List<Span>>> getTraces(QueryRequest request)
-    {
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
         LOG.debug("getTraces query: {}", request);
-        String startQuery = "search * index=" + storage.indexName
-                + " sourcetype=" + storage.sourceType + ""
-                + " earliest=" + (request.lookback() / 1000) + ""
-                + " latest=" + (request.endTs() / 1000) + ""
-                + " | transaction traceId | ";
-        String endQuery = " head " + request.limit();
-        StringBuilder queryBuilder = new StringBuilder(startQuery);
-        if (request.serviceName() != null && !request.serviceName().equalsIgnoreCase("all")) {
-            queryBuilder.append(" where \'localEndpoint.serviceName\' = \"")
-                    .append(request.serviceName())
-                    .append("\" | ");
-        }
-        if (request.spanName() != null && !request.spanName().equalsIgnoreCase("all")) {
-            queryBuilder.append("  where name = \"")
-                    .append(request.spanName())
-                    .append("\" | ");
-        }
-        if (request.remoteServiceName() != null && !request.remoteServiceName()
-                .equalsIgnoreCase("all")) {
-            queryBuilder.append(" where \'remoteEndpoint.serviceName\' = \"")
-                    .append(request.remoteServiceName())
-                    .append("\" | ");
-        }
-        for (Map.Entry<String, String> tag : request.annotationQuery().entrySet()) {
-            queryBuilder.append(" where \'tags.").append(tag.getKey()).append("\' = \"")
-                    .append(tag.getValue())
-                    .append("\" | ");
-        }
-        if (request.minDuration() != null) {
-            queryBuilder.append(" where duration > ")
-                    .append(request.minDuration())
-                    .append(" | ");
-        }
-        if (request.maxDuration() != null) {
-            queryBuilder.append(" where duration < ")
-                    .append(request.maxDuration())
-                    .append(" | ");
-        }
-        queryBuilder.append(endQuery);
-        final String query = queryBuilder.toString();
-        LOG.debug("getTraces query: {}", query);
-        return new GetTracesCall(storage, query);
+        return storage.queryCache.getTraces(TraceQueryPlanner.narrow(storage, request),
+                bucketed -> TraceQueryPlanner.getTraces(storage, bucketed,
+                        SplunkSpanStore::decodeLines));
     }
 
     @Override public Call<List<Span>> getTrace(String traceId) {
         LOG.debug("getTrace: {}", traceId);
-        final String query = "search * index=\"" + storage.indexName + "\" "
+        final String query = storage.indexedFields
+                ? IndexedFields.traceQuery(storage, traceId)
+                : "search * index=\"" + storage.indexName + "\" "
                 + "sourcetype=\"" + storage.sourceType + "\" "
                 + "traceid " + traceId;
         LOG.debug("getTrace query: {}", query);
-        return new GetTraceCall(storage, query, traceId);
+        return storage.traceCache.getTrace(traceId, new GetTraceCall(storage, query, traceId));
     }
 
-    // -------------------------------------------------------------------------------------------
-
-    // -------------------------------------------------------------------------------------------------------------
+    /**
+     * Records names from one search of the default lookback, aggregated to a row per combination
+     * of names, so every name is found rather than those in a sample of events.
+     */
+    void seedNames(NameCatalog catalog) throws IOException {
+        seedNames(catalog, SplunkSpanStore::decodeLines);
+    }
 
-    static class GetTracesCall extends RawSplunkSearchCall<List<Span>> {
+    void seedNames(NameCatalog catalog, BiConsumer<ByteBuffer, List<Span>> decoder)
+            throws IOException {
+        final String query = storage.indexedFields
+                ? IndexedFields.seedNamesQuery(storage, storage.nameCatalogSeedLimit)
+                : seedNamesQuery();
+        LOG.debug("seedNames query: {}", query);
+        new SeedNamesCall(storage, query, catalog, decoder).search();
+    }
 
-        GetTracesCall(SplunkStorage storage, String query) {
-            super(storage, query);
-        }
+    /** Combinations of names extracted from the JSON of spans, newest first. */
+    String seedNamesQuery() {
+        return "search index=" + IndexedFields.quote(storage.indexName)
+                + " sourcetype=" + IndexedFields.quote(storage.sourceType)
+                + " earliest=-" + (storage.defaultLookback / 1000) + "s"
+                + " | fillnull value=\"\" name remoteEndpoint.serviceName"
+                + " | stats max(_time) as _time by localEndpoint.serviceName name"
+                + " remoteEndpoint.serviceName"
+                + " | rename localEndpoint.serviceName as " + IndexedFields.LOCAL_SERVICE
+                + " name as " + IndexedFields.SPAN_NAME
+                + " remoteEndpoint.serviceName as " + IndexedFields.REMOTE_SERVICE
+                + " | sort 0 -_time | head " + storage.nameCatalogSeedLimit;
+    }
 
-        @Override List<List<Span>> process(ResultsReaderXml results) {
-            LOG.debug("process: {}", results);
-            List<List<Span>> traces = new ArrayList<>();
-            for (Event event : results) {
-                String[] raws = event.get("_raw").split("\\n");
-                List<Span> trace = new ArrayList<>();
-                for (String raw : raws) {
-                    byte[] bytes = raw.getBytes(UTF_8);
-                    Span span = DECODER.decodeOne(bytes);
-                    trace.add(span);
-                }
-                traces.add(trace);
-            }
-            LOG.debug("process: {}", traces);
-            return traces;
-        }
+    // -------------------------------------------------------------------------------------------
 
-        @Override public Call<List<List<Span>>> clone() {
-            return new GetTracesCall(storage, query);
-        }
-    }
+    // -------------------------------------------------------------------------------------------------------------
 
     // ---------------------------------------------------------------------------------------------------------------
 
@@ -163,10 +151,8 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
             this.traceId = traceId;
         }
 
-        @Override Span parse(Event event) {
-            final String raw = event.get("_raw");
-            final byte[] bytes = raw.getBytes(UTF_8);
-            return DECODER.decodeOne(bytes);
+        @Override Span parse(JsonResultsReader result) throws IOException {
+            return result.seek("_raw") ? DECODER.decodeOne(result.nextUtf8()) : null;
         }
 
         @Override public Call<List<Span>> clone() {
@@ -178,7 +164,74 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
 
 
 
-    static class GetNamesCall extends SplunkSearchCall<String> {
+    static class SeedNamesCall extends RawSplunkSearchCall<Void> {
+        final NameCatalog catalog;
+        final BiConsumer<ByteBuffer, List<Span>> decoder;
+
+        SeedNamesCall(SplunkStorage storage, String query, NameCatalog catalog,
+                      BiConsumer<ByteBuffer, List<Span>> decoder) {
+            super(storage, query);
+            this.catalog = catalog;
+            this.decoder = decoder;
+        }
+
+        /** Records into this call's catalog, so can't be shared. */
+        @Override String flightKey() {
+            return null;
+        }
+
+        /** Records each row into the catalog rather than returning it. */
+        @Override List<Void> process(JsonResultsReader results) throws IOException {
+            while (results.nextResult()) recordRow(results);
+            return Collections.emptyList();
+        }
+
+        /** Records a row of names, or the spans of a row holding an event. */
+        void recordRow(JsonResultsReader result) throws IOException {
+            String serviceName = null, spanName = null, remoteServiceName = null, time = null;
+            for (String name; (name = result.nextField()) != null; ) {
+                switch (name) {
+                    case IndexedFields.LOCAL_SERVICE:
+                        serviceName = result.nextText();
+                        break;
+                    case IndexedFields.SPAN_NAME:
+                        spanName = result.nextText();
+                        break;
+                    case IndexedFields.REMOTE_SERVICE:
+                        remoteServiceName = result.nextText();
+                        break;
+                    case "_time":
+                        time = result.nextText();
+                        break;
+                    case "_raw":
+                        recordSpans(result.nextUtf8());
+                        break;
+                    default:
+                }
+            }
+            if (serviceName == null) return;
+            long timestamp = time != null
+                    ? (long) (Double.parseDouble(time) * 1000)
+                    : System.currentTimeMillis();
+            catalog.record(serviceName, spanName, remoteServiceName, timestamp);
+        }
+
+        void recordSpans(ByteBuffer raw) {
+            List<Span> spans = new ArrayList<>();
+            try {
+                decoder.accept(raw, spans);
+            } catch (RuntimeException e) {
+                LOG.debug("Skipping an event that isn't a span", e);
+            }
+            catalog.record(spans);
+        }
+
+        @Override public Call<List<Void>> clone() {
+            return new SeedNamesCall(storage, query, catalog, decoder);
+        }
+    }
+
+    static class GetNamesCall extends RawSplunkSearchCall<String> {
         final String fieldName;
 
         GetNamesCall(SplunkStorage storage, String query, String fieldName) {
@@ -186,8 +239,17 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
             this.fieldName = fieldName;
         }
 
-        @Override String parse(Event event) {
-            return event.get(fieldName);
+        @Override String flightKey() {
+            return super.flightKey() + ' ' + fieldName;
+        }
+
+        @Override List<String> process(JsonResultsReader results) throws IOException {
+            List<String> names = new ArrayList<>();
+            while (results.nextResult()) {
+                if (!results.seek(fieldName)) continue;
+                for (String name; (name = results.nextText()) != null; ) names.add(name);
+            }
+            return names;
         }
 
         @Override public Call<List<String>> clone() {
@@ -205,16 +267,35 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
             super(storage, query);
         }
 
-        @Override List<T> process(ResultsReaderXml results) {
+        @Override List<T> process(JsonResultsReader results) throws IOException {
             List<T> list = new ArrayList<>();
-            for (Event event : results) {
-                T item = parse(event);
-                list.add(item);
+            while (results.nextResult()) {
+                T item = parse(results);
+                if (item != null) list.add(item);
             }
             return list;
         }
 
-        abstract T parse(Event event);
+        /** Reads the current row, or returns null to skip it. */
+        abstract T parse(JsonResultsReader result) throws IOException;
+    }
+
+    /**
+     * Decodes each line of {@code _raw}, as {@code transaction} joins the events of a trace with
+     * newlines. Lines are decoded in place, without copying them out of the buffer.
+     */
+    static void decodeLines(ByteBuffer raw, List<Span> out) {
+        int end = raw.limit();
+        for (int start = raw.position(), i = start; i <= end; i++) {
+            if (i < end && raw.get(i) != '\n') continue;
+            if (i > start) {
+                raw.limit(i).position(start);
+                Span span = DECODER.decodeOne(raw);
+                if (span != null) out.add(span);
+                raw.limit(end);
+            }
+            start = i + 1;
+        }
     }
 
     // ---------------------------------------------------------------------------------------------------------
@@ -224,6 +305,13 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
         final Service splunk;
         final String query;
 
+        /** The response being read, closed by {@link #doCancel()} to abort the request. */
+        volatile InputStream response;
+        volatile PagedSearch pagedSearch;
+        /** ID of the oneshot search running, canceled on Splunk by {@link #doCancel()}. */
+        volatile String oneshotSid;
+        volatile boolean timedOut;
+
         RawSplunkSearchCall(SplunkStorage storage, String query) {
             this.storage = storage;
             this.splunk = storage.splunk();
@@ -231,27 +319,166 @@ public class SplunkSpanStore implements SpanStore, ServiceAndSpanNames {
         }
 
         @Override protected List<T> doExecute() throws IOException {
-            try (InputStream is =  splunk.oneshotSearch(query)) {
-                ResultsReaderXml xml = new ResultsReaderXml(is);
-                return process(xml);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return Collections.emptyList();
+            ScheduledFuture<?> deadline = startDeadline();
+            try {
+                return search();
+            } catch (IOException | RuntimeException e) {
+                if (timedOut) throw timedOut(e);
+                if (isCanceled()) throw new IOException("Canceled", e);
+                LOG.warn("Search failed: {}", query, e);
+                throw e;
+            } finally {
+                if (deadline != null) deadline.cancel(false);
             }
         }
 
+        /** Runs the search on the storage query executor, returning immediately. */
         @Override protected void doEnqueue(Callback<List<T>> callback) {
             LOG.debug("doEnqueue {}",callback);
-            try (InputStream is = splunk.oneshotSearch(query)) {
-                ResultsReaderXml xml = new ResultsReaderXml(is);
-                callback.onSuccess(process(xml));
-            } catch (Exception e) {
-                e.printStackTrace();
+            ScheduledFuture<?> deadline = startDeadline();
+            try {
+                storage.queryExecutor.execute(() -> {
+                    List<T> result;
+                    try {
+                        if (isCanceled()) throw new IOException("Canceled");
+                        result = search();
+                    } catch (Throwable e) {
+                        propagateIfFatal(e);
+                        callback.onError(timedOut ? timedOut(e)
+                                : isCanceled() ? new IOException("Canceled", e) : e);
+                        return;
+                    } finally {
+                        if (deadline != null) deadline.cancel(false);
+                    }
+                    callback.onSuccess(result);
+                });
+            } catch (RuntimeException e) {
+                if (deadline != null) deadline.cancel(false);
                 callback.onError(e);
             }
         }
 
-        abstract List<T> process(ResultsReaderXml results);
+        /**
+         * Cancels this call once the query timeout passes, returning null when there is none.
+         *
+         * <p>An enqueued call's deadline starts when it is queued, so includes time waiting for a
+         * query thread. Phases of a call have no deadline of their own, as canceling the call
+         * cancels them.
+         */
+        ScheduledFuture<?> startDeadline() {
+            if (storage.queryTimeout == 0L) return null;
+            return storage.queryExecutor.schedule(() -> {
+                if (isCanceled()) return;
+                timedOut = true;
+                storage.queryExecutor.timedOutQueries.incrementAndGet();
+                LOG.debug("Canceling a search running longer than {}ms: {}",
+                        storage.queryTimeout, query);
+                cancel();
+            }, storage.queryTimeout);
+        }
+
+        IOException timedOut(Throwable cause) {
+            return new IOException(
+                    "Search timed out after " + storage.queryTimeout + "ms: " + query, cause);
+        }
+
+        /** Closes the response, handing the cancel of the search on Splunk to another thread. */
+        @Override protected void doCancel() {
+            InputStream response = this.response;
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing a canceled search", e);
+                }
+            }
+            PagedSearch pagedSearch = this.pagedSearch;
+            if (pagedSearch != null) pagedSearch.close();
+            String oneshotSid = this.oneshotSid;
+            if (oneshotSid != null) cancelOneshot(oneshotSid);
+        }
+
+        /**
+         * True to page results through a search job when search jobs are enabled. Only calls that
+         * read every row page, as the job runs to the end anyway unless the call is canceled.
+         */
+        boolean paged() {
+            return false;
+        }
+
+        /**
+         * Identifies searches whose results are interchangeable, or returns null if {@link
+         * #process(JsonResultsReader)} has side effects particular to this call.
+         */
+        String flightKey() {
+            return getClass().getName() + ' ' + query;
+        }
+
+        /** Runs the search, or waits for an identical one already running. */
+        List<T> search() throws IOException {
+            String key = flightKey();
+            if (key == null) return doSearch();
+            return storage.singleFlight.run(key, this::isCanceled, this::doSearch);
+        }
+
+        List<T> doSearch() throws IOException {
+            if (storage.pagedSearch && paged()) return pagedSearch();
+            Args args = JsonResultsReader.outputArgs();
+            String sid = "zipkin_oneshot_" + UUID.randomUUID();
+            args.add("id", sid);
+            oneshotSid = sid;
+            try {
+                if (isCanceled()) throw new IOException("Canceled");
+                InputStream is = splunk.oneshotSearch(query, args);
+                response = is;
+                try (JsonResultsReader results = new JsonResultsReader(is)) {
+                    if (isCanceled()) throw new IOException("Canceled");
+                    return process(results);
+                }
+            } finally {
+                oneshotSid = null;
+                response = null;
+            }
+        }
+
+        /**
+         * Cancels a oneshot search on Splunk, as closing its response only frees this side. Doesn't
+         * wait for Splunk, as the deadline thread calls this.
+         */
+        void cancelOneshot(String sid) {
+            storage.queryExecutor.cancelOnSplunk(() -> {
+                Args args = new Args();
+                args.add("action", "cancel");
+                try {
+                    splunk.post("search/jobs/" + sid + "/control", args);
+                } catch (RuntimeException e) { // such as 404 when the search already finished
+                    LOG.debug("Could not cancel oneshot search {}", sid, e);
+                }
+            });
+        }
+
+        /** Decodes pages while the job runs and the next page is fetched. */
+        List<T> pagedSearch() throws IOException {
+            PagedSearch search = PagedSearch.start(splunk, query, storage.searchPageSize,
+                    storage.queryExecutor, this::isCanceled);
+            pagedSearch = search;
+            try {
+                List<T> result = new ArrayList<>();
+                byte[] page;
+                while ((page = search.nextPage()) != null) {
+                    if (isCanceled()) throw new IOException("Canceled");
+                    try (JsonResultsReader results = new JsonResultsReader(page)) {
+                        result.addAll(process(results));
+                    }
+                }
+                return result;
+            } finally {
+                pagedSearch = null;
+                search.close();
+            }
+        }
+
+        abstract List<T> process(JsonResultsReader results) throws IOException;
     }
 
     // -----------------------------------------------------------------------------------------------------------
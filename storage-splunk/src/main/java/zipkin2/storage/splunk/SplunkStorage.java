@@ -8,15 +8,27 @@ import com.splunk.Args;
 import com.splunk.SSLSecurityProtocol;
 import com.splunk.Service;
 import com.splunk.ServiceArgs;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import zipkin2.Call;
 import zipkin2.codec.SpanBytesDecoder;
 import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.AutocompleteTags;
 import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
+import zipkin2.storage.Traces;
 import zipkin2.storage.splunk.internal.LoginForm;
+import zipkin2.storage.splunk.internal.MetadataSnapshots;
+import zipkin2.storage.splunk.internal.OtelSpanBytesDecoder;
+import zipkin2.storage.splunk.internal.UrlServiceNames;
 
 public class SplunkStorage extends StorageComponent {
 
@@ -26,43 +38,137 @@ public class SplunkStorage extends StorageComponent {
     static final SpanBytesEncoder ENCODER = SpanBytesEncoder.JSON_V2;
 
     final ServiceArgs serviceArgs;
+    /** Management endpoints ingest is sharded across, or empty to write to {@link #splunk()}. */
+    final List<Indexer> indexers;
+    final long indexerCooldown;
     final String indexName;
     final Args indexArgs;
+    final String source;
     final String sourceType;
+    /** True when spans are read and written as OTLP JSON instead of Zipkin JSON. */
+    final boolean otel;
+    /** True when events carry {@link IndexedFields} and queries use them. */
+    final boolean indexedFields;
+    final long defaultLookback;
+    final int queuedMaxSpans;
+    final int messageMaxSpans;
+    final long messageTimeout;
+    final int attachPoolSize;
+    final long attachIdleTimeout;
+    final List<String> hecUrls;
+    final String hecToken;
+    final String hecEndpoint;
+    final boolean hecAck;
+    final long hecAckTimeout;
+    final int hecBatchBytes;
+    final int hecMaxInFlight;
+    final String spoolDirectory;
+    final long spoolMaxBytes;
+    final int spoolSegmentBytes;
 
-    final SpanStore spanStore;
-    final SpanConsumer spanConsumer;
+    final QueryExecutor queryExecutor;
+    final SingleFlight singleFlight = new SingleFlight();
+    final TraceCache traceCache;
+    final QueryCache queryCache;
+    /** Lookbacks longer than this are searched a slice of this length at a time. */
+    final long timeSlice;
+    final int timeSliceConcurrency;
+    /** Milliseconds before a search is canceled, or zero for no deadline. */
+    final long queryTimeout;
+    final long maxLookback;
+    final long maxUnfilteredLookback;
+    /** True when trace searches run as jobs read page by page, instead of oneshot. */
+    final boolean pagedSearch;
+    final int searchPageSize;
+    /** Names served to the UI from memory, or null to search for them. */
+    final NameCatalog nameCatalog;
+    final int nameCatalogSeedLimit;
+    /** Decodes events of the otel data model. */
+    final OtelSpanBytesDecoder otelDecoder;
+    final SplunkSpanStore spanStore;
+    final SplunkTraces traces;
+    final SplunkAutocompleteTags autocompleteTags;
+    final SplunkSpanConsumer spanConsumer;
     final ServiceAndSpanNames serviceAndSpanNames;
 
     volatile Service splunk;
 
     SplunkStorage(Builder builder) {
-        this.serviceArgs = new ServiceArgs();
-        this.serviceArgs.setHost(builder.host);
-        this.serviceArgs.setPort(builder.port);
-        this.serviceArgs.setUsername(builder.username);
-        this.serviceArgs.setPassword(builder.password);
-        if(builder.token !=null && !builder.token.isEmpty() && !builder.token.equalsIgnoreCase("_")) {
-            this.serviceArgs.setToken("Splunk " + builder.token);
+        this.serviceArgs = serviceArgs(builder, builder.host, builder.port);
+        List<Indexer> indexers = new ArrayList<>();
+        for (String indexer : builder.indexers) {
+            int colon = indexer.lastIndexOf(':');
+            if (colon > indexer.lastIndexOf(']')) { // not inside an IPv6 literal
+                String host = indexer.substring(0, colon);
+                int port = Integer.parseInt(indexer.substring(colon + 1));
+                indexers.add(new Indexer(indexer, serviceArgs(builder, host, port)));
+            } else {
+                indexers.add(new Indexer(indexer, serviceArgs(builder, indexer, builder.port)));
+            }
         }
-        this.serviceArgs.setScheme(builder.scheme);
-        this.serviceArgs.setSSLSecurityProtocol(SSLSecurityProtocol.TLSv1_2);
+        this.indexers = Collections.unmodifiableList(indexers);
+        this.indexerCooldown = builder.indexerCooldown;
         this.indexName = builder.indexName;
         this.indexArgs = new Args();
         this.indexArgs.add("source", builder.source);
         this.indexArgs.add("sourcetype", builder.sourceType);
+        this.source = builder.source;
         this.sourceType = builder.sourceType;
+        this.otel = builder.dataModel.equalsIgnoreCase("otel");
+        this.indexedFields = builder.indexedFields;
+        this.defaultLookback = builder.defaultLookBack;
+        this.queuedMaxSpans = builder.queuedMaxSpans;
+        this.messageMaxSpans = builder.messageMaxSpans;
+        this.messageTimeout = builder.messageTimeout;
+        this.attachPoolSize = builder.attachPoolSize;
+        this.attachIdleTimeout = builder.attachIdleTimeout;
+        this.hecUrls = builder.hecUrls;
+        this.hecToken = builder.hecToken;
+        this.hecEndpoint = builder.hecEndpoint;
+        this.hecAck = builder.hecAck;
+        this.hecAckTimeout = builder.hecAckTimeout;
+        this.hecBatchBytes = builder.hecBatchBytes;
+        this.hecMaxInFlight = builder.hecMaxInFlight;
+        this.spoolDirectory = builder.spoolDirectory;
+        this.spoolMaxBytes = builder.spoolMaxBytes;
+        this.spoolSegmentBytes = builder.spoolSegmentBytes;
+        this.queryExecutor = new QueryExecutor(builder.queryThreads, builder.queryQueueSize);
+        this.traceCache = new TraceCache(builder.traceCacheMaxTraces, builder.traceCacheMaxSpans,
+                builder.traceCacheTtl);
+        this.queryCache = new QueryCache(builder.queryCacheMaxEntries, builder.queryCacheMaxSpans,
+                builder.queryCacheBucket, builder.queryCacheSettledTtl);
+        this.timeSlice = builder.timeSlice;
+        this.timeSliceConcurrency = builder.timeSliceConcurrency;
+        this.queryTimeout = builder.queryTimeout;
+        this.maxLookback = builder.maxLookback;
+        this.maxUnfilteredLookback = builder.maxUnfilteredLookback;
+        this.pagedSearch = builder.searchMode.equalsIgnoreCase("job");
+        this.searchPageSize = builder.searchPageSize;
+        this.nameCatalog = builder.nameCatalog
+                ? new NameCatalog(builder.defaultLookBack, this::seedNames)
+                : null;
+        this.nameCatalogSeedLimit = builder.nameCatalogSeedLimit;
+        this.autocompleteTags = new SplunkAutocompleteTags(this, builder.autocompleteKeys,
+                builder.autocompleteCardinality, builder.autocompleteCollection);
+        if (builder.ingestMode.equalsIgnoreCase("hec")) {
+            LOG.debug("Ingesting via HEC: {}", builder.hecUrls);
+            this.spanConsumer = new SplunkHecSpanConsumer(this);
+        } else {
+            this.spanConsumer = new SplunkSpanConsumer(this);
+        }
+        this.otelDecoder = new OtelSpanBytesDecoder(
+                new UrlServiceNames(UrlServiceNames.rule(builder.urlRemoteServiceName)));
         LOG.debug("dataModel: {}", builder.dataModel);
-        if(builder.dataModel.equalsIgnoreCase("otel")){
+        if(otel){
             LOG.debug("Instatiate for otel: {}", builder.dataModel);
-            this.spanConsumer =  new SplunkSpanConsumer(this);
             this.spanStore = new SplunkOtelSpanStore(this,builder.defaultLookBack);
             this.serviceAndSpanNames = new SplunkOtelSpanStore(this,builder.defaultLookBack);
+            this.traces = new SplunkTraces(this, otelDecoder::decodeAll);
         }else{
             LOG.debug("dataModel: {}", builder.dataModel);
-            this.spanConsumer =  new SplunkSpanConsumer(this);
             this.spanStore = new SplunkSpanStore(this);
             this.serviceAndSpanNames = new SplunkSpanStore(this);
+            this.traces = new SplunkTraces(this, SplunkSpanStore::decodeLines);
         }
     }
 
@@ -74,33 +180,170 @@ public class SplunkStorage extends StorageComponent {
         return spanConsumer;
     }
 
+    /** Looks up many traces with one search, instead of one per trace. */
+    @Override public Traces traces() {
+        return traces;
+    }
+
+    /** Values of the autocomplete keys seen on ingest, without searching Splunk. */
+    @Override public AutocompleteTags autocompleteTags() {
+        return autocompleteTags;
+    }
+
+    /**
+     * Adds autocomplete values counted since the last save to the KV store, for other servers and
+     * restarts, after loading what other servers saved.
+     */
+    public Call<Void> saveAutocompleteTags() {
+        if (autocompleteTags.keys.isEmpty()) return Call.create(null);
+        return autocompleteTags.save();
+    }
+
+    /**
+     * Searches the names of recent spans at once, for the query API's snapshot. Also re-seeds the
+     * name catalog when there is one.
+     */
+    public Call<MetadataSnapshots.Names> refreshNames() {
+        return new NameCatalog.RefreshCall(this);
+    }
+
     @Override public ServiceAndSpanNames serviceAndSpanNames() {
         return  serviceAndSpanNames;
     }
 
+    /** Searches waiting for a query thread. */
+    public int queryQueueDepth() {
+        return queryExecutor.queueDepth();
+    }
+
+    /** Query threads currently running a search. */
+    public int activeQueries() {
+        return queryExecutor.activeThreads();
+    }
+
+    /** Searches run by query threads since startup. */
+    public long completedQueries() {
+        return queryExecutor.completedQueries.get();
+    }
+
+    /** Searches rejected because the query queue was full. */
+    public long rejectedQueries() {
+        return queryExecutor.rejectedQueries.get();
+    }
+
+    /** Total milliseconds searches waited for a query thread. */
+    public long queryQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(queryExecutor.queueWaitNanos.get());
+    }
+
+    /** Searches canceled for running past the query timeout. */
+    public long timedOutQueries() {
+        return queryExecutor.timedOutQueries.get();
+    }
+
+    /** Searches that waited for an identical search already running, instead of running. */
+    public long coalescedQueries() {
+        return singleFlight.coalesced.get();
+    }
+
+    /** {@code getTrace} calls answered from the trace cache. */
+    public long traceCacheHits() {
+        return traceCache.hits.get();
+    }
+
+    /** {@code getTrace} calls that had to search Splunk. */
+    public long traceCacheMisses() {
+        return traceCache.misses.get();
+    }
+
+    /** Traces dropped from the trace cache to stay within its bounds, or when expired. */
+    public long traceCacheEvictions() {
+        return traceCache.evictions.get();
+    }
+
+    /** {@code getTraces} calls answered from the query cache. */
+    public long queryCacheHits() {
+        return queryCache.hits.get();
+    }
+
+    /** {@code getTraces} calls that had to search Splunk. */
+    public long queryCacheMisses() {
+        return queryCache.misses.get();
+    }
+
+    void seedNames(NameCatalog catalog) throws IOException {
+        spanStore.seedNames(catalog);
+    }
+
+    /** Flushes spans still queued for ingest and stops query threads. */
+    @Override public void close() throws IOException {
+        try {
+            spanConsumer.close();
+        } finally {
+            queryExecutor.close();
+        }
+    }
+
     Service splunk() {
         if (splunk == null) {
             synchronized (this) {
                 if (splunk == null) {
-                    if(serviceArgs.token !=null ) {
-                        LOG.debug("Connected using Token");
-                        this.splunk = new Service(serviceArgs);
-                    }else{
-                        LOG.debug("Connected using UserName & Password");
-                        this.splunk = Service.connect(serviceArgs);
-                    }
+                    this.splunk = connect(serviceArgs);
                 }
             }
         }
         return splunk;
     }
 
+    static Service connect(ServiceArgs serviceArgs) {
+        if(serviceArgs.token !=null ) {
+            LOG.debug("Connected using Token");
+            return new Service(serviceArgs);
+        }else{
+            LOG.debug("Connected using UserName & Password");
+            return Service.connect(serviceArgs);
+        }
+    }
+
+    static ServiceArgs serviceArgs(Builder builder, String host, int port) {
+        ServiceArgs serviceArgs = new ServiceArgs();
+        serviceArgs.setHost(host);
+        serviceArgs.setPort(port);
+        serviceArgs.setUsername(builder.username);
+        serviceArgs.setPassword(builder.password);
+        if(builder.token !=null && !builder.token.isEmpty() && !builder.token.equalsIgnoreCase("_")) {
+            serviceArgs.setToken("Splunk " + builder.token);
+        }
+        serviceArgs.setScheme(builder.scheme);
+        serviceArgs.setSSLSecurityProtocol(SSLSecurityProtocol.TLSv1_2);
+        return serviceArgs;
+    }
+
+    /** An indexer's management endpoint, connected on first use with the same credentials. */
+    static final class Indexer implements Supplier<Service> {
+        final String name;
+        final ServiceArgs serviceArgs;
+        volatile Service splunk;
+
+        Indexer(String name, ServiceArgs serviceArgs) {
+            this.name = name;
+            this.serviceArgs = serviceArgs;
+        }
+
+        @Override public Service get() {
+            if (splunk == null) {
+                synchronized (this) {
+                    if (splunk == null) splunk = connect(serviceArgs);
+                }
+            }
+            return splunk;
+        }
+    }
+
     public Service login(LoginForm loginForm){
         serviceArgs.setUsername(loginForm.getUsername());
         serviceArgs.setPassword(loginForm.getPassword());
-        Service svc =  Service.connect(serviceArgs);
-        System.out.println(svc.getToken());
-        return svc;
+        return Service.connect(serviceArgs);
     }
 
     public static class Builder extends StorageComponent.Builder {
@@ -116,6 +359,47 @@ public class SplunkStorage extends StorageComponent {
         String sourceType = "span";
         String dataModel = "otel";
         long defaultLookBack = 86400000L;
+        int queuedMaxSpans = 100000;
+        int messageMaxSpans = 5000;
+        long messageTimeout = 1000L;
+        int attachPoolSize = 2;
+        long attachIdleTimeout = 60000L;
+        String ingestMode = "attach";
+        List<String> indexers = Collections.emptyList();
+        long indexerCooldown = 30000L;
+        List<String> hecUrls = Collections.emptyList();
+        String hecToken;
+        String hecEndpoint = "event";
+        boolean hecAck;
+        long hecAckTimeout = 30000L;
+        int hecBatchBytes = 1048576;
+        int hecMaxInFlight = 4;
+        String spoolDirectory;
+        long spoolMaxBytes = 1073741824L;
+        int spoolSegmentBytes = 67108864;
+        boolean indexedFields;
+        int queryThreads = 8;
+        int queryQueueSize = 256;
+        String searchMode = "oneshot";
+        int searchPageSize = 100;
+        int traceCacheMaxTraces = 1000;
+        List<String> autocompleteKeys = Collections.emptyList();
+        int autocompleteCardinality = 5 * 4000;
+        String autocompleteCollection = "zipkin_autocomplete";
+        boolean nameCatalog = true;
+        int nameCatalogSeedLimit = 10000;
+        long traceCacheMaxSpans = 100000L;
+        long traceCacheTtl = 60000L;
+        int queryCacheMaxEntries = 256;
+        long queryCacheMaxSpans = 100000L;
+        long queryCacheBucket = 30000L;
+        long queryCacheSettledTtl = 3600000L;
+        long timeSlice = 86400000L;
+        int timeSliceConcurrency = 4;
+        long queryTimeout = 11000L;
+        long maxLookback;
+        long maxUnfilteredLookback = 86400000L;
+        String urlRemoteServiceName = "last_segment";
         boolean strictTraceId = true;
         boolean searchEnabled = true;
 
@@ -196,8 +480,389 @@ public class SplunkStorage extends StorageComponent {
             return this;
         }
 
-        @Override public SplunkStorage build() {
+        /** Maximum spans held in memory waiting for the flusher. Further spans are dropped. */
+        public Builder queuedMaxSpans(int queuedMaxSpans) {
+            if (queuedMaxSpans <= 0) throw new IllegalArgumentException("queuedMaxSpans <= 0");
+            this.queuedMaxSpans = queuedMaxSpans;
+            return this;
+        }
+
+        /** Maximum spans written to Splunk in one batch. */
+        public Builder messageMaxSpans(int messageMaxSpans) {
+            if (messageMaxSpans <= 0) throw new IllegalArgumentException("messageMaxSpans <= 0");
+            this.messageMaxSpans = messageMaxSpans;
+            return this;
+        }
+
+        /** Maximum milliseconds a span waits in the queue before its batch is flushed. */
+        public Builder messageTimeout(long messageTimeout) {
+            if (messageTimeout <= 0) throw new IllegalArgumentException("messageTimeout <= 0");
+            this.messageTimeout = messageTimeout;
+            return this;
+        }
+
+        /** Maximum idle {@code Index.attach} streams kept open for reuse. */
+        public Builder attachPoolSize(int attachPoolSize) {
+            if (attachPoolSize <= 0) throw new IllegalArgumentException("attachPoolSize <= 0");
+            this.attachPoolSize = attachPoolSize;
+            return this;
+        }
+
+        /** Milliseconds an {@code Index.attach} stream may stay idle before it is closed. */
+        public Builder attachIdleTimeout(long attachIdleTimeout) {
+            if (attachIdleTimeout <= 0) throw new IllegalArgumentException("attachIdleTimeout <= 0");
+            this.attachIdleTimeout = attachIdleTimeout;
+            return this;
+        }
+
+        /**
+         * How spans are written: "attach" streams to the management port, "hec" posts to the HTTP
+         * Event Collector at {@link #hecUrl(String)}.
+         */
+        public Builder ingestMode(String ingestMode) {
+            if (ingestMode == null) throw new NullPointerException("ingestMode == null");
+            this.ingestMode = ingestMode;
+            return this;
+        }
+
+        /**
+         * Comma-separated "host:port" management endpoints of the indexers to shard "attach" ingest
+         * across by trace ID. The port defaults to {@link #port(int)}. Unset writes to {@link
+         * #host(String)}.
+         */
+        public Builder indexers(String indexers) {
+            if (indexers == null) throw new NullPointerException("indexers == null");
+            List<String> result = split(indexers);
+            for (String indexer : result) {
+                int colon = indexer.lastIndexOf(':');
+                if (colon <= indexer.lastIndexOf(']')) continue;
+                try {
+                    Integer.parseInt(indexer.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid port in indexer: " + indexer);
+                }
+            }
+            this.indexers = result;
+            return this;
+        }
+
+        /** Milliseconds an indexer or HEC endpoint is skipped after a failed write. */
+        public Builder indexerCooldown(long indexerCooldown) {
+            if (indexerCooldown <= 0) throw new IllegalArgumentException("indexerCooldown <= 0");
+            this.indexerCooldown = indexerCooldown;
+            return this;
+        }
+
+        /**
+         * Base URL of the HTTP Event Collector, ex. "https://splunk:8088". A comma-separated list
+         * shards ingest across the endpoints by trace ID.
+         */
+        public Builder hecUrl(String hecUrl) {
+            if (hecUrl == null) throw new NullPointerException("hecUrl == null");
+            this.hecUrls = split(hecUrl);
+            return this;
+        }
+
+        public Builder hecToken(String hecToken) {
+            if (hecToken == null) throw new NullPointerException("hecToken == null");
+            this.hecToken = hecToken;
+            return this;
+        }
+
+        /** "event" posts JSON envelopes to /services/collector/event, "raw" posts lines to /raw. */
+        public Builder hecEndpoint(String hecEndpoint) {
+            if (hecEndpoint == null) throw new NullPointerException("hecEndpoint == null");
+            this.hecEndpoint = hecEndpoint;
+            return this;
+        }
+
+        /** Waits for indexer acknowledgement of each request. The token must have acks enabled. */
+        public Builder hecAck(boolean hecAck) {
+            this.hecAck = hecAck;
+            return this;
+        }
+
+        /** Milliseconds to wait for a HEC response or acknowledgement. */
+        public Builder hecAckTimeout(long hecAckTimeout) {
+            if (hecAckTimeout <= 0) throw new IllegalArgumentException("hecAckTimeout <= 0");
+            this.hecAckTimeout = hecAckTimeout;
+            return this;
+        }
+
+        /** Maximum uncompressed bytes in one HEC request. */
+        public Builder hecBatchBytes(int hecBatchBytes) {
+            if (hecBatchBytes <= 0) throw new IllegalArgumentException("hecBatchBytes <= 0");
+            this.hecBatchBytes = hecBatchBytes;
+            return this;
+        }
+
+        /** Maximum concurrent HEC requests. */
+        public Builder hecMaxInFlight(int hecMaxInFlight) {
+            if (hecMaxInFlight <= 0) throw new IllegalArgumentException("hecMaxInFlight <= 0");
+            this.hecMaxInFlight = hecMaxInFlight;
+            return this;
+        }
+
+        /**
+         * Directory of the write-ahead spool that keeps spans Splunk couldn't accept. Unset means
+         * such spans are dropped.
+         */
+        public Builder spoolDirectory(String spoolDirectory) {
+            if (spoolDirectory == null) throw new NullPointerException("spoolDirectory == null");
+            this.spoolDirectory = spoolDirectory;
+            return this;
+        }
+
+        /** Maximum disk used by the spool. Spans that don't fit are dropped. */
+        public Builder spoolMaxBytes(long spoolMaxBytes) {
+            if (spoolMaxBytes <= 0) throw new IllegalArgumentException("spoolMaxBytes <= 0");
+            this.spoolMaxBytes = spoolMaxBytes;
+            return this;
+        }
+
+        /** Size of each memory-mapped spool segment file. */
+        public Builder spoolSegmentBytes(int spoolSegmentBytes) {
+            if (spoolSegmentBytes <= 0) throw new IllegalArgumentException("spoolSegmentBytes <= 0");
+            this.spoolSegmentBytes = spoolSegmentBytes;
+            return this;
+        }
+
+        /**
+         * Writes trace ID, service and span names, duration and error as index-time fields of HEC
+         * events, and queries them with {@code tstats} instead of extracting from raw JSON. Only HEC
+         * events carry these fields, so this requires {@code ingestMode=hec} and {@code
+         * hecEndpoint=event}.
+         */
+        public Builder indexedFields(boolean indexedFields) {
+            this.indexedFields = indexedFields;
+            return this;
+        }
+
+        /** Threads running searches for asynchronous calls. */
+        public Builder queryThreads(int queryThreads) {
+            if (queryThreads <= 0) throw new IllegalArgumentException("queryThreads <= 0");
+            this.queryThreads = queryThreads;
+            return this;
+        }
+
+        /** Maximum searches waiting for a query thread. Further searches fail immediately. */
+        public Builder queryQueueSize(int queryQueueSize) {
+            if (queryQueueSize <= 0) throw new IllegalArgumentException("queryQueueSize <= 0");
+            this.queryQueueSize = queryQueueSize;
+            return this;
+        }
+
+        /**
+         * How trace searches run: "oneshot" returns all results in one response, "job" creates a
+         * search job and reads its results {@link #searchPageSize(int)} at a time.
+         */
+        public Builder searchMode(String searchMode) {
+            if (searchMode == null) throw new NullPointerException("searchMode == null");
+            this.searchMode = searchMode;
+            return this;
+        }
+
+        /** Results read per request in the "job" search mode. */
+        public Builder searchPageSize(int searchPageSize) {
+            if (searchPageSize <= 0) throw new IllegalArgumentException("searchPageSize <= 0");
+            this.searchPageSize = searchPageSize;
+            return this;
+        }
+
+        /** Maximum traces kept by the {@code getTrace} cache. Zero disables it. */
+        public Builder traceCacheMaxTraces(int traceCacheMaxTraces) {
+            if (traceCacheMaxTraces < 0) {
+                throw new IllegalArgumentException("traceCacheMaxTraces < 0");
+            }
+            this.traceCacheMaxTraces = traceCacheMaxTraces;
+            return this;
+        }
+
+        /** Maximum spans, across all traces, kept by the {@code getTrace} cache. */
+        public Builder traceCacheMaxSpans(long traceCacheMaxSpans) {
+            if (traceCacheMaxSpans <= 0) {
+                throw new IllegalArgumentException("traceCacheMaxSpans <= 0");
+            }
+            this.traceCacheMaxSpans = traceCacheMaxSpans;
+            return this;
+        }
+
+        /** Milliseconds a cached trace with recent spans is served before searching again. */
+        public Builder traceCacheTtl(long traceCacheTtl) {
+            if (traceCacheTtl <= 0) throw new IllegalArgumentException("traceCacheTtl <= 0");
+            this.traceCacheTtl = traceCacheTtl;
+            return this;
+        }
+
+        /** Maximum {@code getTraces} results kept by the query cache. Zero disables it. */
+        public Builder queryCacheMaxEntries(int queryCacheMaxEntries) {
+            if (queryCacheMaxEntries < 0) {
+                throw new IllegalArgumentException("queryCacheMaxEntries < 0");
+            }
+            this.queryCacheMaxEntries = queryCacheMaxEntries;
+            return this;
+        }
+
+        /** Maximum spans, across all results, kept by the query cache. */
+        public Builder queryCacheMaxSpans(long queryCacheMaxSpans) {
+            if (queryCacheMaxSpans <= 0) {
+                throw new IllegalArgumentException("queryCacheMaxSpans <= 0");
+            }
+            this.queryCacheMaxSpans = queryCacheMaxSpans;
+            return this;
+        }
+
+        /**
+         * Milliseconds the ends of a {@code getTraces} time range are aligned to, so that repeated
+         * searches share results. Results of ranges with recent spans are served this long.
+         */
+        public Builder queryCacheBucket(long queryCacheBucket) {
+            if (queryCacheBucket <= 0) throw new IllegalArgumentException("queryCacheBucket <= 0");
+            this.queryCacheBucket = queryCacheBucket;
+            return this;
+        }
 
+        /** Milliseconds results of a range ending before recent spans are served. */
+        public Builder queryCacheSettledTtl(long queryCacheSettledTtl) {
+            if (queryCacheSettledTtl <= 0) {
+                throw new IllegalArgumentException("queryCacheSettledTtl <= 0");
+            }
+            this.queryCacheSettledTtl = queryCacheSettledTtl;
+            return this;
+        }
+
+        /**
+         * Milliseconds of a time slice. {@code getTraces} and {@code getDependencies} split longer
+         * lookbacks into slices, searched in parallel.
+         */
+        public Builder timeSlice(long timeSlice) {
+            if (timeSlice < 1000L) throw new IllegalArgumentException("timeSlice < 1000");
+            this.timeSlice = timeSlice;
+            return this;
+        }
+
+        /** Slices of one lookback searched at the same time. */
+        public Builder timeSliceConcurrency(int timeSliceConcurrency) {
+            if (timeSliceConcurrency <= 0) {
+                throw new IllegalArgumentException("timeSliceConcurrency <= 0");
+            }
+            this.timeSliceConcurrency = timeSliceConcurrency;
+            return this;
+        }
+
+        /**
+         * Milliseconds a search may run before it is canceled, on Splunk as well as here. For
+         * enqueued searches this includes time waiting for a query thread. Zero lets searches run
+         * until done.
+         */
+        public Builder queryTimeout(long queryTimeout) {
+            if (queryTimeout < 0) throw new IllegalArgumentException("queryTimeout < 0");
+            this.queryTimeout = queryTimeout;
+            return this;
+        }
+
+        /**
+         * Milliseconds {@code getTraces} and {@code getDependencies} search back at most, longer
+         * lookbacks are narrowed to this. Zero is no limit.
+         */
+        public Builder maxLookback(long maxLookback) {
+            if (maxLookback < 0) throw new IllegalArgumentException("maxLookback < 0");
+            this.maxLookback = maxLookback;
+            return this;
+        }
+
+        /**
+         * Like {@link #maxLookback(long)}, for {@code getTraces} without any filter, which reads
+         * every event in the range. Zero is no limit.
+         */
+        public Builder maxUnfilteredLookback(long maxUnfilteredLookback) {
+            if (maxUnfilteredLookback < 0) {
+                throw new IllegalArgumentException("maxUnfilteredLookback < 0");
+            }
+            this.maxUnfilteredLookback = maxUnfilteredLookback;
+            return this;
+        }
+
+        /**
+         * How the otel data model names the remote service of a span with a {@code url.full}
+         * attribute: "last_segment" or "first_segment" of the URL's path, or its "host". Path
+         * rules fall back to the host when the path is empty.
+         */
+        public Builder urlRemoteServiceName(String urlRemoteServiceName) {
+            if (urlRemoteServiceName == null) {
+                throw new NullPointerException("urlRemoteServiceName == null");
+            }
+            try {
+                UrlServiceNames.rule(urlRemoteServiceName);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Invalid urlRemoteServiceName: " + urlRemoteServiceName);
+            }
+            this.urlRemoteServiceName = urlRemoteServiceName;
+            return this;
+        }
+
+        /** Tag keys whose values are counted on ingest and suggested by autocomplete. */
+        @Override public Builder autocompleteKeys(List<String> autocompleteKeys) {
+            if (autocompleteKeys == null) throw new NullPointerException("autocompleteKeys == null");
+            this.autocompleteKeys = autocompleteKeys;
+            return this;
+        }
+
+        /** Most frequent values kept, and suggested, per autocomplete key. */
+        @Override public Builder autocompleteCardinality(int autocompleteCardinality) {
+            if (autocompleteCardinality <= 0) {
+                throw new IllegalArgumentException("autocompleteCardinality <= 0");
+            }
+            this.autocompleteCardinality = autocompleteCardinality;
+            return this;
+        }
+
+        /** KV store collection, in the search app, autocomplete values are saved to. */
+        public Builder autocompleteCollection(String autocompleteCollection) {
+            if (autocompleteCollection == null) {
+                throw new NullPointerException("autocompleteCollection == null");
+            }
+            this.autocompleteCollection = autocompleteCollection;
+            return this;
+        }
+
+        /**
+         * Answers service, span and remote service name queries from names seen by this server in
+         * the default lookback, instead of searching the index each time. Names ingested elsewhere
+         * are added by a search run before the first query and by each
+         * {@link SplunkStorage#refreshNames()}.
+         */
+        public Builder nameCatalog(boolean nameCatalog) {
+            this.nameCatalog = nameCatalog;
+            return this;
+        }
+
+        /** Combinations of service, span and remote service names read to seed the catalog. */
+        public Builder nameCatalogSeedLimit(int nameCatalogSeedLimit) {
+            if (nameCatalogSeedLimit <= 0) {
+                throw new IllegalArgumentException("nameCatalogSeedLimit <= 0");
+            }
+            this.nameCatalogSeedLimit = nameCatalogSeedLimit;
+            return this;
+        }
+
+        static List<String> split(String list) {
+            List<String> result = new ArrayList<>();
+            for (String element : list.split(",", -1)) {
+                element = element.trim();
+                if (!element.isEmpty()) result.add(element);
+            }
+            return Collections.unmodifiableList(result);
+        }
+
+        @Override public SplunkStorage build() {
+            // Attach ingest and HEC raw write only span JSON, which name queries would miss.
+            if (indexedFields && (!ingestMode.equalsIgnoreCase("hec")
+                    || !hecEndpoint.equalsIgnoreCase("event"))) {
+                throw new IllegalArgumentException(
+                        "indexedFields requires ingestMode=hec and hecEndpoint=event");
+            }
             return new SplunkStorage(this);
         }
     }
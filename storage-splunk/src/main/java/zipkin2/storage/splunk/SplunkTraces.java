@@ -0,0 +1,192 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.Traces;
+import zipkin2.storage.splunk.SplunkSpanStore.RawSplunkSearchCall;
+
+/**
+ * Looks up many traces with one search per {@link #MAX_TRACE_IDS_PER_SEARCH} IDs, instead of one
+ * search per trace. Traces in the trace cache aren't searched for at all.
+ */
+final class SplunkTraces implements Traces {
+
+    static final Logger LOG = LoggerFactory.getLogger(SplunkTraces.class);
+
+    /** Bounds the length of the search string, and the results of one search. */
+    static final int MAX_TRACE_IDS_PER_SEARCH = 100;
+
+    final SplunkStorage storage;
+    final BiConsumer<ByteBuffer, List<Span>> decoder;
+
+    SplunkTraces(SplunkStorage storage, BiConsumer<ByteBuffer, List<Span>> decoder) {
+        this.storage = storage;
+        this.decoder = decoder;
+    }
+
+    @Override public Call<List<Span>> getTrace(String traceId) {
+        return storage.spanStore.getTrace(traceId);
+    }
+
+    /**
+     * Keys each trace ID by its {@link TraceCache#key(String)}, which decoded spans carry, along
+     * with the lowercase IDs as requested, which are searched along with the key.
+     */
+    @Override public Call<List<List<Span>>> getTraces(Iterable<String> traceIds) {
+        Map<String, Set<String>> written = new LinkedHashMap<>();
+        for (String traceId : traceIds) {
+            String key = TraceCache.key(traceId);
+            if (key == null) throw new IllegalArgumentException("invalid trace ID: " + traceId);
+            written.computeIfAbsent(key, k -> new LinkedHashSet<>())
+                    .add(traceId.trim().toLowerCase(Locale.ROOT));
+        }
+        return new GetTracesByIdCall(storage, written, decoder);
+    }
+
+    /**
+     * Adds the forms a trace ID may be indexed as. Zipkin spans are written with the normalized
+     * ID, but other writers keep 128 bits when the upper 64 are zero, which a search for the lower
+     * 64 alone wouldn't match.
+     */
+    static void addSearchIds(String key, Set<String> written, Collection<String> ids) {
+        ids.addAll(written);
+        ids.add(key);
+        if (key.length() == 16) ids.add("0000000000000000" + key);
+    }
+
+    /** Returns the traces found in the order requested, omitting those not found. */
+    static final class GetTracesByIdCall extends RawSplunkSearchCall<List<Span>> {
+        /** Trace IDs as requested, by their key. */
+        final Map<String, Set<String>> traceIds;
+        final BiConsumer<ByteBuffer, List<Span>> decoder;
+        /** The batch being searched, canceled along with this call. */
+        volatile Call<?> batch;
+
+        GetTracesByIdCall(SplunkStorage storage, Map<String, Set<String>> traceIds,
+                          BiConsumer<ByteBuffer, List<Span>> decoder) {
+            super(storage, "traceMany " + traceIds.keySet());
+            this.traceIds = traceIds;
+            this.decoder = decoder;
+        }
+
+        @Override List<List<Span>> doSearch() throws IOException {
+            Map<String, List<Span>> cached = new LinkedHashMap<>();
+            Map<String, List<Span>> found = new LinkedHashMap<>();
+            for (String traceId : traceIds.keySet()) {
+                List<Span> trace = storage.traceCache.get(traceId);
+                if (trace != null) {
+                    cached.put(traceId, trace);
+                } else {
+                    found.put(traceId, new ArrayList<>());
+                }
+            }
+
+            List<String> missing = new ArrayList<>(found.keySet());
+            for (int i = 0; i < missing.size(); i += MAX_TRACE_IDS_PER_SEARCH) {
+                Set<String> ids = new LinkedHashSet<>();
+                for (String key : missing.subList(i,
+                        Math.min(i + MAX_TRACE_IDS_PER_SEARCH, missing.size()))) {
+                    addSearchIds(key, traceIds.get(key), ids);
+                }
+                String query = TraceQueryPlanner.fetchQuery(storage, ids);
+                LOG.debug("getTraces query: {}", query);
+                GroupSpansCall call = new GroupSpansCall(storage, query, decoder, found);
+                batch = call;
+                call.search();
+                if (isCanceled()) throw new IOException("Canceled");
+            }
+
+            List<List<Span>> result = new ArrayList<>(traceIds.size());
+            for (String traceId : traceIds.keySet()) {
+                List<Span> trace = cached.get(traceId);
+                if (trace == null) {
+                    trace = found.get(traceId);
+                    if (trace.isEmpty()) continue;
+                    storage.traceCache.put(traceId, trace);
+                }
+                result.add(trace);
+            }
+            return result;
+        }
+
+        @Override protected void doCancel() {
+            Call<?> batch = this.batch;
+            if (batch != null) batch.cancel();
+            super.doCancel();
+        }
+
+        @Override List<List<Span>> process(JsonResultsReader results) {
+            throw new AssertionError("doSearch() runs each batch");
+        }
+
+        @Override public Call<List<List<Span>>> clone() {
+            return new GetTracesByIdCall(storage, traceIds, decoder);
+        }
+    }
+
+    /**
+     * Adds each span to its trace as results stream in, dropping spans of other traces an event
+     * may hold.
+     */
+    static final class GroupSpansCall extends RawSplunkSearchCall<Void> {
+        final BiConsumer<ByteBuffer, List<Span>> decoder;
+        final Map<String, List<Span>> traces;
+        final List<Span> spans = new ArrayList<>();
+
+        GroupSpansCall(SplunkStorage storage, String query,
+                       BiConsumer<ByteBuffer, List<Span>> decoder, Map<String, List<Span>> traces) {
+            super(storage, query);
+            this.decoder = decoder;
+            this.traces = traces;
+        }
+
+        @Override boolean paged() {
+            return true;
+        }
+
+        /** Results go to this call's map, so can't be shared. */
+        @Override String flightKey() {
+            return null;
+        }
+
+        @Override List<Void> process(JsonResultsReader results) throws IOException {
+            while (results.nextResult()) {
+                if (!results.seek("_raw")) continue;
+                spans.clear();
+                try {
+                    decoder.accept(results.nextUtf8(), spans);
+                } catch (RuntimeException e) {
+                    LOG.debug("Skipping an event that isn't a span", e);
+                }
+                for (int i = 0, length = spans.size(); i < length; i++) {
+                    Span span = spans.get(i);
+                    List<Span> trace = traces.get(span.traceId());
+                    if (trace != null) trace.add(span);
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        @Override public Call<List<Void>> clone() {
+            return new GroupSpansCall(storage, query, decoder, traces);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import zipkin2.Call;
+import zipkin2.Span;
+
+/**
+ * Least-recently-used cache of {@code getTrace} results, so reopening or refreshing a trace in the
+ * UI doesn't search Splunk again.
+ *
+ * <p>The cache holds at most {@code maxTraces} traces and {@code maxSpans} spans in total, so a few
+ * huge traces can't take all the memory. A trace with a span in the last {@link
+ * #SETTLED_AFTER_MILLIS} may still be receiving spans, so it expires after {@code ttlMillis}.
+ * Older traces stay until evicted. Empty results aren't cached, as the trace may not be indexed
+ * yet.
+ */
+final class TraceCache {
+
+    static final long SETTLED_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static final class Entry {
+        final List<Span> trace;
+        final long expiresAtMillis; // Long.MAX_VALUE when settled
+
+        Entry(List<Span> trace, long expiresAtMillis) {
+            this.trace = trace;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    final int maxTraces;
+    final long maxSpans;
+    final long ttlMillis;
+
+    /** In access order, so iteration starts at the least recently used. Guarded by this. */
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    long spanCount; // guarded by this
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong evictions = new AtomicLong();
+
+    TraceCache(int maxTraces, long maxSpans, long ttlMillis) {
+        this.maxTraces = maxTraces;
+        this.maxSpans = maxSpans;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Returns the cached trace if present, otherwise the call, caching what it returns. */
+    Call<List<Span>> getTrace(String traceId, Call<List<Span>> call) {
+        if (maxTraces == 0) return call;
+        String key = key(traceId);
+        if (key == null) return call; // let the search report the invalid ID
+        List<Span> trace = get(key);
+        if (trace != null) return Call.create(trace);
+        return call.map(result -> {
+            put(key, result);
+            return result;
+        });
+    }
+
+    /** Returns the ID as spans hold it, or null if it isn't one. */
+    static String key(String traceId) {
+        try {
+            return Span.normalizeTraceId(traceId.trim().toLowerCase(Locale.ROOT));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Returns the trace, or null if not cached. The ID must be a {@link #key(String)}. */
+    List<Span> get(String traceId) {
+        if (maxTraces == 0) return null;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = entries.get(traceId);
+            if (entry != null && entry.expiresAtMillis > now) {
+                hits.incrementAndGet();
+                return entry.trace;
+            }
+            if (entry != null) remove(traceId, entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String traceId, List<Span> trace) {
+        if (maxTraces == 0 || trace.isEmpty() || trace.size() > maxSpans) return;
+        long now = System.currentTimeMillis();
+        long newestMillis = 0L;
+        for (Span span : trace) {
+            newestMillis = Math.max(newestMillis, span.timestampAsLong() / 1000L);
+        }
+        long expiresAtMillis = now - newestMillis < SETTLED_AFTER_MILLIS
+                ? now + ttlMillis
+                : Long.MAX_VALUE;
+        Entry entry = new Entry(Collections.unmodifiableList(new ArrayList<>(trace)),
+                expiresAtMillis);
+        synchronized (this) {
+            Entry replaced = entries.put(traceId, entry);
+            if (replaced != null) spanCount -= replaced.trace.size();
+            spanCount += trace.size();
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (entries.size() > maxTraces || spanCount > maxSpans) {
+                Entry evicted = eldest.next().getValue();
+                eldest.remove();
+                spanCount -= evicted.trace.size();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    void remove(String traceId, Entry entry) {
+        entries.remove(traceId);
+        spanCount -= entry.trace.size();
+        evictions.incrementAndGet();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.splunk.SplunkSpanStore.GetNamesCall;
+import zipkin2.storage.splunk.SplunkSpanStore.RawSplunkSearchCall;
+
+import static zipkin2.storage.splunk.IndexedFields.quote;
+
+/**
+ * Plans {@code getTraces} as two searches instead of one {@code transaction} over every span in
+ * the lookback.
+ *
+ * <p>The first search pushes the request's filters into the base search, so Splunk only reads
+ * matching events, and reduces them to the newest {@code limit} trace IDs with {@code stats}. The
+ * second fetches the spans of just those traces, which are grouped in Java. Events of the otel
+ * model hold many spans, so some filters can only narrow the events searched: every trace is
+ * checked against {@link QueryRequest#test(List)} before it is returned.
+ */
+final class TraceQueryPlanner {
+
+    static final Logger LOG = LoggerFactory.getLogger(TraceQueryPlanner.class);
+
+    static final String TRACE_ID = "traceId";
+    /** Spans of a matching trace may be outside the lookback, so fetches search a wider range. */
+    static final long FETCH_MARGIN_SECONDS = 3600L;
+
+    static Call<List<List<Span>>> getTraces(SplunkStorage storage, QueryRequest request,
+                                            BiConsumer<ByteBuffer, List<Span>> decoder) {
+        return new TracesCall(storage, traceIdsQuery(storage, request), request, decoder);
+    }
+
+    /**
+     * Narrows the lookback to the configured limits before planning, as the cost of a search grows
+     * with the events in its range.
+     */
+    static QueryRequest narrow(SplunkStorage storage, QueryRequest request) {
+        long maxLookback = unfiltered(request) && storage.maxUnfilteredLookback > 0L
+                ? storage.maxUnfilteredLookback
+                : storage.maxLookback;
+        if (maxLookback == 0L || request.lookback() <= maxLookback) return request;
+        if (storage.maxLookback > 0L) maxLookback = Math.min(maxLookback, storage.maxLookback);
+        LOG.debug("Narrowing the lookback of {} to {}ms", request, maxLookback);
+        return request.toBuilder().lookback(maxLookback).build();
+    }
+
+    /** True when every event in the range is read, as nothing is filtered. */
+    static boolean unfiltered(QueryRequest request) {
+        return all(request.serviceName()) && all(request.remoteServiceName())
+                && all(request.spanName()) && request.annotationQuery().isEmpty()
+                && request.minDuration() == null && request.maxDuration() == null;
+    }
+
+    static boolean all(String name) {
+        return name == null || name.equalsIgnoreCase("all");
+    }
+
+    /** The newest {@code limit} IDs of traces with a span matching the request. */
+    static String traceIdsQuery(SplunkStorage storage, QueryRequest request) {
+        if (storage.indexedFields && request.annotationQuery().isEmpty()) {
+            return IndexedFields.traceIdsQuery(storage, request);
+        }
+        StringBuilder query = new StringBuilder("search ");
+        IndexedFields.appendSource(query, storage);
+        query.append(" earliest=").append((request.endTs() - request.lookback()) / 1000)
+                .append(" latest=").append(request.endTs() / 1000);
+        if (storage.otel) {
+            appendOtelFilters(query, request);
+            query.append(" | rename \"scopeSpans{}.spans{}.traceId\" as ").append(TRACE_ID);
+        } else {
+            appendZipkinFilters(query, request);
+        }
+        return query.append(" | stats max(_time) as _time by ").append(TRACE_ID)
+                .append(" | sort 0 -_time | head ").append(request.limit())
+                .append(" | fields ").append(TRACE_ID).toString();
+    }
+
+    static void appendZipkinFilters(StringBuilder query, QueryRequest request) {
+        IndexedFields.appendFilter(query, "localEndpoint.serviceName", request.serviceName());
+        IndexedFields.appendFilter(query, "remoteEndpoint.serviceName",
+                request.remoteServiceName());
+        IndexedFields.appendFilter(query, "name", request.spanName());
+        for (Map.Entry<String, String> entry : request.annotationQuery().entrySet()) {
+            String tag = quote("tags." + entry.getKey());
+            if (entry.getValue().isEmpty()) { // a tag key or an annotation value
+                query.append(" (").append(tag).append("=* OR \"annotations{}.value\"=")
+                        .append(quote(entry.getKey())).append(')');
+            } else {
+                query.append(' ').append(tag).append('=').append(quote(entry.getValue()));
+            }
+        }
+        if (request.minDuration() != null) {
+            query.append(" duration>=").append(request.minDuration());
+        }
+        if (request.maxDuration() != null) {
+            query.append(" duration<=").append(request.maxDuration());
+        }
+    }
+
+    /**
+     * Names are fields of the event, but not tied to one span in it, and tags only narrow events
+     * by the raw text of their value. Remote service names and durations are derived while
+     * decoding, so only {@link QueryRequest#test(List)} applies them.
+     */
+    static void appendOtelFilters(StringBuilder query, QueryRequest request) {
+        IndexedFields.appendFilter(query, "\"resource.attributes{}.value.stringValue\"",
+                request.serviceName());
+        IndexedFields.appendFilter(query, "\"scopeSpans{}.spans{}.name\"", request.spanName());
+        for (Map.Entry<String, String> entry : request.annotationQuery().entrySet()) {
+            String text = entry.getValue().isEmpty() ? entry.getKey() : entry.getValue();
+            query.append(' ').append(quote(text));
+        }
+    }
+
+    /** Events holding spans of the traces, found by the trace IDs as index terms. */
+    static String fetchQuery(SplunkStorage storage, QueryRequest request,
+                             Collection<String> traceIds) {
+        long earliest = (request.endTs() - request.lookback()) / 1000 - FETCH_MARGIN_SECONDS;
+        long latest = request.endTs() / 1000 + FETCH_MARGIN_SECONDS;
+        return fetchQuery(storage, traceIds, " earliest=" + earliest + " latest=" + latest);
+    }
+
+    /** Like {@link #fetchQuery(SplunkStorage, QueryRequest, Collection)}, over all time. */
+    static String fetchQuery(SplunkStorage storage, Collection<String> traceIds) {
+        return fetchQuery(storage, traceIds, "");
+    }
+
+    static String fetchQuery(SplunkStorage storage, Collection<String> traceIds, String range) {
+        StringBuilder query = new StringBuilder("search ");
+        IndexedFields.appendSource(query, storage);
+        query.append(range).append(" (");
+        boolean first = true;
+        for (String traceId : traceIds) {
+            if (!first) query.append(" OR ");
+            first = false;
+            if (storage.indexedFields) query.append(IndexedFields.TRACE_ID).append("::");
+            query.append(traceId);
+        }
+        return query.append(") | fields _raw").toString();
+    }
+
+    /**
+     * Returns lowercase IDs as written, as that is how they are indexed, dropping any that aren't
+     * hex, as they are added to a search.
+     */
+    static List<String> validate(List<String> traceIds) {
+        List<String> result = new ArrayList<>(traceIds.size());
+        for (String traceId : traceIds) {
+            traceId = traceId.toLowerCase(Locale.ROOT);
+            try {
+                Span.normalizeTraceId(traceId);
+            } catch (RuntimeException e) {
+                LOG.debug("Skipping invalid trace ID {}", traceId);
+                continue;
+            }
+            if (!result.contains(traceId)) result.add(traceId);
+        }
+        return result;
+    }
+
+    /** Finds trace IDs with the query, then fetches and groups their spans. */
+    static final class TracesCall extends RawSplunkSearchCall<List<Span>> {
+        final QueryRequest request;
+        final BiConsumer<ByteBuffer, List<Span>> decoder;
+        /** The phase running, canceled along with this call. */
+        volatile Call<?> phase;
+        volatile SlicedSearch<?> slicedSearch;
+
+        TracesCall(SplunkStorage storage, String query, QueryRequest request,
+                   BiConsumer<ByteBuffer, List<Span>> decoder) {
+            super(storage, query);
+            this.request = request;
+            this.decoder = decoder;
+        }
+
+        /** Some filters apply only in Java, so the request matters as well as the query. */
+        @Override String flightKey() {
+            return super.flightKey() + ' ' + request;
+        }
+
+        @Override List<List<Span>> doSearch() throws IOException {
+            List<String> traceIds = validate(traceIds());
+            if (isCanceled()) throw new IOException("Canceled");
+            if (traceIds.isEmpty()) return Collections.emptyList();
+
+            String fetchQuery = fetchQuery(storage, request, traceIds);
+            LOG.debug("getTraces fetch query: {}", fetchQuery);
+            FetchSpansCall fetch = new FetchSpansCall(storage, fetchQuery, decoder);
+            phase = fetch;
+            List<Span> spans = fetch.search();
+            if (isCanceled()) throw new IOException("Canceled");
+            return group(traceIds, spans, request);
+        }
+
+        /**
+         * Groups spans into the traces, in the order of their IDs, keeping those that match the
+         * request. Spans of other traces an event holds are dropped.
+         */
+        static List<List<Span>> group(List<String> traceIds, List<Span> spans,
+                                      QueryRequest request) {
+            Map<String, List<Span>> traces = new LinkedHashMap<>(); // newest first
+            for (String traceId : traceIds) {
+                // decoded spans drop the upper 64 bits of a trace ID when they are zero
+                traces.putIfAbsent(Span.normalizeTraceId(traceId), new ArrayList<>());
+            }
+            for (Span span : spans) {
+                List<Span> trace = traces.get(span.traceId());
+                if (trace != null) trace.add(span);
+            }
+            List<List<Span>> result = new ArrayList<>(traces.size());
+            for (List<Span> trace : traces.values()) {
+                if (!trace.isEmpty() && request.test(trace)) result.add(trace);
+            }
+            return result;
+        }
+
+        /**
+         * Returns the newest {@code limit} trace IDs. A lookback longer than a time slice is
+         * searched a slice at a time, newest first, until slices hold {@code limit} IDs.
+         */
+        List<String> traceIds() throws IOException {
+            String idField = storage.indexedFields && request.annotationQuery().isEmpty()
+                    ? IndexedFields.TRACE_ID
+                    : TRACE_ID;
+            if (request.lookback() <= storage.timeSlice) {
+                GetNamesCall ids = new GetNamesCall(storage, query, idField);
+                phase = ids;
+                return ids.search();
+            }
+
+            SlicedSearch<String> search = new SlicedSearch<>(storage,
+                    SlicedSearch.slices(request.endTs(), request.lookback(), storage.timeSlice),
+                    (endTs, lookback) -> new GetNamesCall(storage, traceIdsQuery(storage,
+                            request.toBuilder().endTs(endTs).lookback(lookback).build()), idField),
+                    slices -> newest(slices, request.limit()).size() == request.limit(),
+                    this::isCanceled);
+            slicedSearch = search;
+            if (isCanceled()) search.cancel();
+            return newest(search.run(), request.limit());
+        }
+
+        /** IDs of newer slices come first, as each slice is sorted newest first. */
+        static List<String> newest(List<List<String>> slices, int limit) {
+            Set<String> result = new LinkedHashSet<>();
+            for (List<String> slice : slices) {
+                for (String traceId : slice) {
+                    if (result.size() == limit) return new ArrayList<>(result);
+                    result.add(traceId);
+                }
+            }
+            return new ArrayList<>(result);
+        }
+
+        @Override protected void doCancel() {
+            Call<?> phase = this.phase;
+            if (phase != null) phase.cancel();
+            SlicedSearch<?> slicedSearch = this.slicedSearch;
+            if (slicedSearch != null) slicedSearch.cancel();
+            super.doCancel();
+        }
+
+        @Override List<List<Span>> process(JsonResultsReader results) {
+            throw new AssertionError("doSearch() runs each phase");
+        }
+
+        @Override public Call<List<List<Span>>> clone() {
+            return new TracesCall(storage, query, request, decoder);
+        }
+    }
+
+    /** Decodes every span of the events found, paging through them in the "job" search mode. */
+    static final class FetchSpansCall extends RawSplunkSearchCall<Span> {
+        final BiConsumer<ByteBuffer, List<Span>> decoder;
+
+        FetchSpansCall(SplunkStorage storage, String query,
+                       BiConsumer<ByteBuffer, List<Span>> decoder) {
+            super(storage, query);
+            this.decoder = decoder;
+        }
+
+        @Override boolean paged() {
+            return true;
+        }
+
+        @Override List<Span> process(JsonResultsReader results) throws IOException {
+            List<Span> spans = new ArrayList<>();
+            while (results.nextResult()) {
+                if (!results.seek("_raw")) continue;
+                try {
+                    decoder.accept(results.nextUtf8(), spans);
+                } catch (RuntimeException e) {
+                    LOG.debug("Skipping an event that isn't a span", e);
+                }
+            }
+            return spans;
+        }
+
+        @Override public Call<List<Span>> clone() {
+            return new FetchSpansCall(storage, query, decoder);
+        }
+    }
+}
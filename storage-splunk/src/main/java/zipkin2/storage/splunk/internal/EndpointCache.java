@@ -0,0 +1,71 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import zipkin2.Endpoint;
+
+/**
+ * Interns endpoints by the service name, host and port they are built from, as traces repeat a
+ * few hundred combinations. Decoded spans then share one instance per combination, skipping the
+ * IP parsing of {@link Endpoint.Builder#ip(String)} and the heap of duplicates held by caches.
+ *
+ * <p>The cache is cleared when full rather than tracking use, so keys that churn can't grow it past
+ * {@code maxEntries} and the combinations in use are interned again at once. Hosts that aren't IP
+ * addresses aren't cached, as the endpoint drops them: each would be a key of the same endpoint.
+ */
+final class EndpointCache {
+
+    static final class Key {
+        final String serviceName, host;
+        final int port;
+        final int hashCode;
+
+        Key(String serviceName, String host, int port) {
+            this.serviceName = serviceName;
+            this.host = host;
+            this.port = port;
+            int h = serviceName.hashCode();
+            h = 31 * h + host.hashCode();
+            this.hashCode = 31 * h + port;
+        }
+
+        @Override public boolean equals(Object o) {
+            if (o == this) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return port == that.port && serviceName.equals(that.serviceName)
+                    && host.equals(that.host);
+        }
+
+        @Override public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    final int maxEntries;
+    final ConcurrentHashMap<Key, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    EndpointCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    Endpoint get(String serviceName, String host, int port) {
+        if (serviceName == null) serviceName = "";
+        if (host == null) host = "";
+        Key key = new Key(serviceName, host, port);
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint != null) return endpoint;
+
+        Endpoint.Builder builder = Endpoint.newBuilder().serviceName(serviceName).port(port);
+        if (!host.isEmpty() && !builder.parseIp(host)) {
+            return builder.build(); // a host name, which the endpoint drops, so isn't a key
+        }
+        endpoint = builder.build();
+        if (endpoints.size() >= maxEntries) endpoints.clear();
+        Endpoint existing = endpoints.putIfAbsent(key, endpoint);
+        return existing != null ? existing : endpoint;
+    }
+}
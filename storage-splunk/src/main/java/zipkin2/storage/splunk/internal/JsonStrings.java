@@ -0,0 +1,98 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import zipkin2.internal.JsonEscaper;
+import zipkin2.internal.WriteBuffer;
+
+/**
+ * Writes quoted JSON strings straight into a {@link WriteBuffer}, escaping as {@link JsonEscaper}
+ * does but without building an escaped copy of values that need it.
+ *
+ * <p>Output is byte-for-byte what {@code writeUtf8(jsonEscape(value))} writes, including '?' for an
+ * unpaired surrogate. Sizes are computed here too, as {@link JsonEscaper#jsonEscapedSizeInBytes}
+ * counts two bytes too many for each U+2028 and U+2029.
+ */
+public final class JsonStrings {
+
+    /** Escapes of ASCII characters, or null for those written as is. */
+    static final String[] REPLACEMENT_CHARS = new String[128];
+
+    static {
+        for (int i = 0; i < 0x20; i++) REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+        REPLACEMENT_CHARS['"'] = "\\\"";
+        REPLACEMENT_CHARS['\\'] = "\\\\";
+        REPLACEMENT_CHARS['\t'] = "\\t";
+        REPLACEMENT_CHARS['\b'] = "\\b";
+        REPLACEMENT_CHARS['\n'] = "\\n";
+        REPLACEMENT_CHARS['\r'] = "\\r";
+        REPLACEMENT_CHARS['\f'] = "\\f";
+    }
+
+    /** Size of the value once escaped and quoted. */
+    public static int sizeInBytes(CharSequence value) {
+        int size = 2;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                String replacement = REPLACEMENT_CHARS[c];
+                size += replacement == null ? 1 : replacement.length();
+            } else if (c == 0x2028 || c == 0x2029) {
+                size += 6;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (!Character.isSurrogate(c)) {
+                size += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size++; // '?'
+            }
+        }
+        return size;
+    }
+
+    /** Writes the value escaped and quoted. */
+    public static void write(CharSequence value, WriteBuffer b) {
+        b.writeByte('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                String replacement = REPLACEMENT_CHARS[c];
+                if (replacement == null) {
+                    b.writeByte(c);
+                } else {
+                    b.writeAscii(replacement);
+                }
+            } else if (c == 0x2028) {
+                b.writeAscii("\\u2028");
+            } else if (c == 0x2029) {
+                b.writeAscii("\\u2029");
+            } else if (c < 0x800) {
+                b.writeByte(0xc0 | (c >> 6));
+                b.writeByte(0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                b.writeByte(0xe0 | (c >> 12));
+                b.writeByte(0x80 | ((c >> 6) & 0x3f));
+                b.writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                b.writeByte(0xf0 | (codePoint >> 18));
+                b.writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                b.writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                b.writeByte(0x80 | (codePoint & 0x3f));
+            } else {
+                b.writeByte('?'); // unpaired surrogate
+            }
+        }
+        b.writeByte('"');
+    }
+
+    JsonStrings() {
+    }
+}
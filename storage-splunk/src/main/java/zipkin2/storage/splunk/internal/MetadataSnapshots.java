@@ -0,0 +1,107 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import zipkin2.DependencyLink;
+
+/**
+ * Names and dependency links refreshed in the background, so {@link ZipkinSplunkQueryApiV2} can
+ * answer without waiting on Splunk.
+ *
+ * <p>Each refresh publishes a whole immutable snapshot with one volatile write, so readers never
+ * see names from one refresh mixed with another. A snapshot older than its maximum age is ignored,
+ * so a refresh that keeps failing falls back to querying storage instead of serving stale data.
+ */
+public final class MetadataSnapshots {
+
+    public static final class Names {
+        final List<String> serviceNames;
+        final Map<String, List<String>> spanNames;
+        final Map<String, List<String>> remoteServiceNames;
+        final long refreshedAt;
+
+        /** Lists must be sorted and maps keyed by service name. Neither is copied. */
+        public Names(List<String> serviceNames, Map<String, List<String>> spanNames,
+                     Map<String, List<String>> remoteServiceNames, long refreshedAt) {
+            this.serviceNames = Collections.unmodifiableList(serviceNames);
+            this.spanNames = Collections.unmodifiableMap(spanNames);
+            this.remoteServiceNames = Collections.unmodifiableMap(remoteServiceNames);
+            this.refreshedAt = refreshedAt;
+        }
+    }
+
+    public static final class Dependencies {
+        final List<DependencyLink> links;
+        final long endTs;
+        final long lookback;
+
+        public Dependencies(List<DependencyLink> links, long endTs, long lookback) {
+            this.links = Collections.unmodifiableList(links);
+            this.endTs = endTs;
+            this.lookback = lookback;
+        }
+    }
+
+    final long namesMaxAge;
+    final long dependenciesMaxAge;
+    volatile Names names;
+    volatile Dependencies dependencies;
+
+    /** Zero disables a kind of snapshot. */
+    public MetadataSnapshots(long namesMaxAge, long dependenciesMaxAge) {
+        this.namesMaxAge = namesMaxAge;
+        this.dependenciesMaxAge = dependenciesMaxAge;
+    }
+
+    public void publish(Names names) {
+        this.names = names;
+    }
+
+    public void publish(Dependencies dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    /** Returns null unless a fresh snapshot is published. */
+    public List<String> serviceNames() {
+        Names names = freshNames();
+        return names != null ? names.serviceNames : null;
+    }
+
+    /** Returns null unless a fresh snapshot has the service. */
+    public List<String> spanNames(String serviceName) {
+        Names names = freshNames();
+        return names != null ? names.spanNames.get(serviceName) : null;
+    }
+
+    /** Returns null unless a fresh snapshot has the service. */
+    public List<String> remoteServiceNames(String serviceName) {
+        Names names = freshNames();
+        return names != null ? names.remoteServiceNames.get(serviceName) : null;
+    }
+
+    Names freshNames() {
+        Names names = this.names;
+        if (names == null) return null;
+        return System.currentTimeMillis() - names.refreshedAt <= namesMaxAge ? names : null;
+    }
+
+    /**
+     * Returns links for the window, or null unless a fresh snapshot covers about the same one.
+     * Windows match when they end, and start, within the snapshot's maximum age of each other,
+     * which is how far the snapshot may lag behind a request for "now".
+     */
+    public List<DependencyLink> dependencies(long endTs, long lookback) {
+        Dependencies dependencies = this.dependencies;
+        if (dependencies == null) return null;
+        if (System.currentTimeMillis() - dependencies.endTs > dependenciesMaxAge) return null;
+        if (Math.abs(endTs - dependencies.endTs) > dependenciesMaxAge) return null;
+        long start = endTs - lookback, snapshotStart = dependencies.endTs - dependencies.lookback;
+        if (Math.abs(start - snapshotStart) > dependenciesMaxAge) return null;
+        return dependencies.links;
+    }
+}
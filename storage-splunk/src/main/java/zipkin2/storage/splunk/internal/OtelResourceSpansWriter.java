@@ -0,0 +1,333 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import zipkin2.Annotation;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.internal.WriteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes spans of one service as an OTLP JSON ResourceSpans document, the inverse of {@link
+ * OtelSpanReader}. The service name is written once, as the "service.name" resource attribute,
+ * instead of once per span.
+ *
+ * <p>The local endpoint's address becomes the "net.host.ip" and "net.host.port" attributes. The
+ * remote endpoint becomes "peer.service", plus "server.address" and "server.port" where the remote
+ * side is the server, or "client.address" and "client.port" on server and consumer spans.
+ * Annotations become events, and the "error" tag also sets an error status.
+ */
+public final class OtelResourceSpansWriter implements WriteBuffer.Writer<List<Span>> {
+
+    /** Bounds the size of one event so a busy service doesn't produce a huge document. */
+    public static final int MAX_SPANS_PER_RESOURCE = 100;
+
+    static final byte[] RESOURCE_START = bytes(
+            "{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":");
+    static final byte[] RESOURCE_END = bytes("}}]},");
+    static final byte[] NO_RESOURCE = bytes("{\"resource\":{\"attributes\":[]},");
+    static final byte[] SCOPE_SPANS_START =
+            bytes("\"scopeSpans\":[{\"scope\":{\"name\":\"zipkin\"},\"spans\":[");
+    static final byte[] SCOPE_SPANS_END = bytes("]}]}");
+    static final byte[] TRACE_ID = bytes("{\"traceId\":\"");
+    static final byte[] SPAN_ID = bytes("\",\"spanId\":\"");
+    static final byte[] PARENT_SPAN_ID = bytes(",\"parentSpanId\":\"");
+    static final byte[] NAME = bytes(",\"name\":");
+    static final byte[] KIND = bytes(",\"kind\":");
+    static final byte[] START_TIME = bytes(",\"startTimeUnixNano\":");
+    static final byte[] END_TIME = bytes(",\"endTimeUnixNano\":");
+    static final byte[] ATTRIBUTES = bytes(",\"attributes\":[");
+    static final byte[] EVENTS = bytes(",\"events\":[");
+    static final byte[] ERROR_STATUS = bytes(",\"status\":{\"code\":2}");
+    static final byte[] KEY = bytes("{\"key\":");
+    static final byte[] STRING_VALUE = bytes(",\"value\":{\"stringValue\":");
+    static final byte[] INT_VALUE = bytes(",\"value\":{\"intValue\":");
+    static final byte[] VALUE_END = bytes("}}");
+    static final byte[] EVENT_TIME = bytes("{\"timeUnixNano\":");
+
+    /**
+     * Groups spans by local service name, preserving order, in runs of at most {@link
+     * #MAX_SPANS_PER_RESOURCE}.
+     */
+    public static List<List<Span>> groupByService(List<Span> spans) {
+        Map<String, List<Span>> byService = new LinkedHashMap<>();
+        List<List<Span>> result = new ArrayList<>();
+        for (int i = 0, length = spans.size(); i < length; i++) {
+            Span span = spans.get(i);
+            String serviceName = span.localServiceName();
+            if (serviceName == null) serviceName = "";
+            List<Span> group = byService.get(serviceName);
+            if (group == null || group.size() == MAX_SPANS_PER_RESOURCE) {
+                group = new ArrayList<>();
+                byService.put(serviceName, group);
+                result.add(group);
+            }
+            group.add(span);
+        }
+        return result;
+    }
+
+    @Override public int sizeInBytes(List<Span> spans) {
+        String serviceName = spans.get(0).localServiceName();
+        int size = serviceName != null
+                ? RESOURCE_START.length + stringSizeInBytes(serviceName) + RESOURCE_END.length
+                : NO_RESOURCE.length;
+        size += SCOPE_SPANS_START.length + SCOPE_SPANS_END.length;
+        for (int i = 0, length = spans.size(); i < length; i++) {
+            if (i > 0) size++; // ,
+            size += spanSizeInBytes(spans.get(i));
+        }
+        return size;
+    }
+
+    @Override public void write(List<Span> spans, WriteBuffer b) {
+        String serviceName = spans.get(0).localServiceName();
+        if (serviceName != null) {
+            b.write(RESOURCE_START);
+            writeString(serviceName, b);
+            b.write(RESOURCE_END);
+        } else {
+            b.write(NO_RESOURCE);
+        }
+        b.write(SCOPE_SPANS_START);
+        for (int i = 0, length = spans.size(); i < length; i++) {
+            if (i > 0) b.writeByte(',');
+            writeSpan(spans.get(i), b);
+        }
+        b.write(SCOPE_SPANS_END);
+    }
+
+    static int spanSizeInBytes(Span span) {
+        int size = TRACE_ID.length + span.traceId().length()
+                + SPAN_ID.length + span.id().length() + 1;
+        if (span.parentId() != null) size += PARENT_SPAN_ID.length + span.parentId().length() + 1;
+        if (span.name() != null) size += NAME.length + stringSizeInBytes(span.name());
+        size += KIND.length + 1;
+        long timestamp = span.timestampAsLong();
+        if (timestamp != 0L) {
+            size += START_TIME.length + WriteBuffer.asciiSizeInBytes(timestamp * 1000L);
+            long duration = span.durationAsLong();
+            if (duration != 0L) {
+                size += END_TIME.length
+                        + WriteBuffer.asciiSizeInBytes((timestamp + duration) * 1000L);
+            }
+        }
+        int attributeCount = 0;
+        for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+            if (attributeCount++ > 0) size++; // ,
+            size += stringAttributeSizeInBytes(tag.getKey(), tag.getValue());
+        }
+        Endpoint local = span.localEndpoint();
+        if (local != null) {
+            size += addressSizeInBytes(attributeCount, "net.host.ip", "net.host.port", local);
+            attributeCount += addressAttributeCount(local);
+        }
+        Endpoint remote = span.remoteEndpoint();
+        if (remote != null) {
+            if (remote.serviceName() != null) {
+                if (attributeCount++ > 0) size++;
+                size += stringAttributeSizeInBytes("peer.service", remote.serviceName());
+            }
+            if (isServer(span.kind())) {
+                size += addressSizeInBytes(attributeCount, "client.address", "client.port", remote);
+            } else {
+                size += addressSizeInBytes(attributeCount, "server.address", "server.port", remote);
+            }
+            attributeCount += addressAttributeCount(remote);
+        }
+        if (attributeCount > 0) size += ATTRIBUTES.length + 1;
+        List<Annotation> annotations = span.annotations();
+        if (!annotations.isEmpty()) {
+            size += EVENTS.length + 1 + annotations.size() - 1;
+            for (int i = 0, length = annotations.size(); i < length; i++) {
+                Annotation annotation = annotations.get(i);
+                size += EVENT_TIME.length
+                        + WriteBuffer.asciiSizeInBytes(annotation.timestamp() * 1000L)
+                        + NAME.length + stringSizeInBytes(annotation.value()) + 1;
+            }
+        }
+        if (span.tags().containsKey("error")) size += ERROR_STATUS.length;
+        return size + 1; // }
+    }
+
+    static void writeSpan(Span span, WriteBuffer b) {
+        b.write(TRACE_ID);
+        b.writeAscii(span.traceId());
+        b.write(SPAN_ID);
+        b.writeAscii(span.id());
+        b.writeByte('"');
+        if (span.parentId() != null) {
+            b.write(PARENT_SPAN_ID);
+            b.writeAscii(span.parentId());
+            b.writeByte('"');
+        }
+        if (span.name() != null) {
+            b.write(NAME);
+            writeString(span.name(), b);
+        }
+        b.write(KIND);
+        b.writeByte('0' + toOtelKind(span.kind()));
+        long timestamp = span.timestampAsLong();
+        if (timestamp != 0L) {
+            b.write(START_TIME);
+            b.writeAscii(timestamp * 1000L);
+            long duration = span.durationAsLong();
+            if (duration != 0L) {
+                b.write(END_TIME);
+                b.writeAscii((timestamp + duration) * 1000L);
+            }
+        }
+        int attributeCount = 0;
+        for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+            attributeCount = nextAttribute(attributeCount, b);
+            writeStringAttribute(tag.getKey(), tag.getValue(), b);
+        }
+        Endpoint local = span.localEndpoint();
+        if (local != null) {
+            attributeCount = writeAddress("net.host.ip", "net.host.port", local, attributeCount, b);
+        }
+        Endpoint remote = span.remoteEndpoint();
+        if (remote != null) {
+            if (remote.serviceName() != null) {
+                attributeCount = nextAttribute(attributeCount, b);
+                writeStringAttribute("peer.service", remote.serviceName(), b);
+            }
+            if (isServer(span.kind())) {
+                attributeCount =
+                        writeAddress("client.address", "client.port", remote, attributeCount, b);
+            } else {
+                attributeCount =
+                        writeAddress("server.address", "server.port", remote, attributeCount, b);
+            }
+        }
+        if (attributeCount > 0) b.writeByte(']');
+        List<Annotation> annotations = span.annotations();
+        if (!annotations.isEmpty()) {
+            b.write(EVENTS);
+            for (int i = 0, length = annotations.size(); i < length; i++) {
+                if (i > 0) b.writeByte(',');
+                Annotation annotation = annotations.get(i);
+                b.write(EVENT_TIME);
+                b.writeAscii(annotation.timestamp() * 1000L);
+                b.write(NAME);
+                writeString(annotation.value(), b);
+                b.writeByte('}');
+            }
+            b.writeByte(']');
+        }
+        if (span.tags().containsKey("error")) b.write(ERROR_STATUS);
+        b.writeByte('}');
+    }
+
+    /** Whether the remote endpoint of a span of this kind is a client rather than a server. */
+    static boolean isServer(Span.Kind kind) {
+        return kind == Span.Kind.SERVER || kind == Span.Kind.CONSUMER;
+    }
+
+    static String ip(Endpoint endpoint) {
+        return endpoint.ipv6() != null ? endpoint.ipv6() : endpoint.ipv4();
+    }
+
+    static int addressAttributeCount(Endpoint endpoint) {
+        return (ip(endpoint) != null ? 1 : 0) + (endpoint.portAsInt() != 0 ? 1 : 0);
+    }
+
+    /** Size of the attributes {@link #writeAddress} writes after {@code attributeCount} others. */
+    static int addressSizeInBytes(int attributeCount, String ipKey, String portKey,
+                                  Endpoint endpoint) {
+        int size = 0;
+        String ip = ip(endpoint);
+        if (ip != null) {
+            if (attributeCount++ > 0) size++; // ,
+            size += stringAttributeSizeInBytes(ipKey, ip);
+        }
+        if (endpoint.portAsInt() != 0) {
+            if (attributeCount > 0) size++;
+            size += KEY.length + stringSizeInBytes(portKey) + INT_VALUE.length
+                    + WriteBuffer.asciiSizeInBytes(endpoint.portAsInt()) + VALUE_END.length;
+        }
+        return size;
+    }
+
+    /** Writes the IP and port of an endpoint, if present, returning the new attribute count. */
+    static int writeAddress(String ipKey, String portKey, Endpoint endpoint, int attributeCount,
+                            WriteBuffer b) {
+        String ip = ip(endpoint);
+        if (ip != null) {
+            attributeCount = nextAttribute(attributeCount, b);
+            writeStringAttribute(ipKey, ip, b);
+        }
+        if (endpoint.portAsInt() != 0) {
+            attributeCount = nextAttribute(attributeCount, b);
+            b.write(KEY);
+            writeString(portKey, b);
+            b.write(INT_VALUE);
+            b.writeAscii(endpoint.portAsInt());
+            b.write(VALUE_END);
+        }
+        return attributeCount;
+    }
+
+    /** Opens the attribute list or separates the next attribute, returning the new count. */
+    static int nextAttribute(int attributeCount, WriteBuffer b) {
+        if (attributeCount == 0) {
+            b.write(ATTRIBUTES);
+        } else {
+            b.writeByte(',');
+        }
+        return attributeCount + 1;
+    }
+
+    static int stringAttributeSizeInBytes(String key, String value) {
+        return KEY.length + stringSizeInBytes(key) + STRING_VALUE.length + stringSizeInBytes(value)
+                + VALUE_END.length;
+    }
+
+    static void writeStringAttribute(String key, String value, WriteBuffer b) {
+        b.write(KEY);
+        writeString(key, b);
+        b.write(STRING_VALUE);
+        writeString(value, b);
+        b.write(VALUE_END);
+    }
+
+    static int stringSizeInBytes(String value) {
+        return JsonStrings.sizeInBytes(value);
+    }
+
+    static void writeString(String value, WriteBuffer b) {
+        JsonStrings.write(value, b);
+    }
+
+    // Ref https://github.com/open-telemetry/opentelemetry-proto/blob/main/opentelemetry/proto/trace/v1/trace.proto
+    static int toOtelKind(Span.Kind kind) {
+        if (kind == null) return 1; // Internal
+        switch (kind) {
+            case SERVER:
+                return 2;
+            case CLIENT:
+                return 3;
+            case PRODUCER:
+                return 4;
+            case CONSUMER:
+                return 5;
+        }
+        return 1;
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    @Override public String toString() {
+        return "OtelResourceSpansWriter";
+    }
+}
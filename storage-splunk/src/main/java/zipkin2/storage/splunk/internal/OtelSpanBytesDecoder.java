@@ -10,11 +10,28 @@ import zipkin2.codec.Encoding;
 import zipkin2.internal.JsonCodec;
 import zipkin2.internal.ReadBuffer;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+/**
+ * Decodes OTLP ResourceSpans documents, each holding any number of spans. Methods returning one
+ * span return the first span of the document. Each thread reuses one reader.
+ */
 public class OtelSpanBytesDecoder implements BytesDecoder<Span> {
+
+    final ThreadLocal<OtelSpanReader> readers;
+
+    public OtelSpanBytesDecoder() {
+        this(new UrlServiceNames(UrlServiceNames.Rule.LAST_SEGMENT));
+    }
+
+    /** @param urlServiceNames derives remote service names from {@code url.full} attributes */
+    public OtelSpanBytesDecoder(UrlServiceNames urlServiceNames) {
+        this.readers = ThreadLocal.withInitial(() -> new OtelSpanReader(urlServiceNames));
+    }
+
     @Override
     public Encoding encoding() {
         return Encoding.JSON;
@@ -22,18 +39,35 @@ public class OtelSpanBytesDecoder implements BytesDecoder<Span> {
 
     @Override
     public boolean decode(byte[] bytes, Collection<Span> collection) {
-        return JsonCodec.read(new OtelSpanReader(), ReadBuffer.wrap(bytes), collection);
-
+        return read(ReadBuffer.wrap(bytes), collection, false);
     }
 
     @Override
     public Span decodeOne(byte[] bytes) {
-        return (Span)JsonCodec.readOne(new OtelSpanReader(), ReadBuffer.wrap(bytes));
+        List<Span> spans = new ArrayList<>();
+        decode(bytes, spans);
+        return spans.isEmpty() ? null : spans.get(0);
+    }
+
+    /** Decodes from the buffer's position to its limit, without copying the bytes out. */
+    public Span decodeOne(ByteBuffer buffer) {
+        List<Span> spans = new ArrayList<>();
+        decodeAll(buffer, spans);
+        return spans.isEmpty() ? null : spans.get(0);
     }
 
+    /**
+     * Adds every span of the document between the buffer's position and limit to the collection,
+     * without copying the bytes out.
+     */
+    public void decodeAll(ByteBuffer buffer, Collection<Span> collection) {
+        read(ReadBuffer.wrapUnsafe(buffer), collection, false);
+    }
+
+    /** Decodes a JSON array of documents. */
     @Override
     public boolean decodeList(byte[] bytes, Collection<Span> collection) {
-        return JsonCodec.readList(new OtelSpanReader(), ReadBuffer.wrap(bytes), collection);
+        return read(ReadBuffer.wrap(bytes), collection, true);
     }
 
     @Override
@@ -42,4 +76,21 @@ public class OtelSpanBytesDecoder implements BytesDecoder<Span> {
         decodeList(bytes,spanList);
         return spanList;
     }
+
+    boolean read(ReadBuffer buffer, Collection<Span> collection, boolean list) {
+        OtelSpanReader reader = readers.get();
+        int size = collection.size();
+        reader.out = collection;
+        try {
+            if (list) {
+                JsonCodec.readList(reader, buffer, reader.documents);
+            } else {
+                JsonCodec.read(reader, buffer, reader.documents);
+            }
+        } finally {
+            reader.out = null; // don't hold the caller's collection
+            reader.documents.clear();
+        }
+        return collection.size() > size;
+    }
 }
@@ -12,240 +12,528 @@ import zipkin2.internal.JsonCodec;
 
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
-public class OtelSpanReader implements JsonCodec.JsonReaderAdapter<Span> {
+/**
+ * Reads every span of an OTLP ResourceSpans document into a collection, in one pass. Spans share
+ * the local service name of the document's resource, which may come before or after its spans.
+ *
+ * <p>Attributes that {@link OtelResourceSpansWriter} writes for endpoint addresses are read into
+ * the endpoints rather than tags, so spans it writes read back equal. Events become annotations.
+ *
+ * <p>A reader isn't thread-safe, but is meant to be reused by one thread: decoding keeps no state
+ * between documents besides buffers it clears. Attribute keys are classified with one table lookup,
+ * and scalar values become tags as the strings the parser already holds.
+ */
+public class OtelSpanReader implements JsonCodec.JsonReaderAdapter<Collection<Span>> {
 
     static final Logger LOG = LoggerFactory.getLogger(OtelSpanReader.class);
 
-    final Span.Builder builder = Span.newBuilder();
+    /**
+     * What an attribute says about an endpoint. The remote endpoint of a client or producer span is
+     * a server, and that of a server or consumer span a client.
+     */
+    enum Role {
+        REMOTE_PORT, REMOTE_IP, REMOTE_SERVICE_NAME, PEER_SERVICE, URL, CLIENT_PORT, CLIENT_IP,
+        LOCAL_PORT, LOCAL_IP
+    }
+
+    static final Map<String, Role> ROLES = new HashMap<>();
+
+    /** Shared by readers of all threads, as spans of every decoder repeat the same endpoints. */
+    static final EndpointCache ENDPOINTS = new EndpointCache(4096);
+
+    static {
+        for (String key : new String[] {"server.port", "network.peer.port", "server.socket.port",
+                "net.sock.peer.port"}) {
+            ROLES.put(key, Role.REMOTE_PORT);
+        }
+        for (String key : new String[] {"server.address", "net.peer.name", "network.peer.address",
+                "server.socket.domain", "server.socket.address", "net.sock.peer.name",
+                "net.sock.peer.addr", "peer.hostname", "peer.address"}) {
+            ROLES.put(key, Role.REMOTE_IP);
+        }
+        for (String key : new String[] {"db.name", "messaging.destination.name"}) {
+            ROLES.put(key, Role.REMOTE_SERVICE_NAME);
+        }
+        ROLES.put("peer.service", Role.PEER_SERVICE);
+        ROLES.put("url.full", Role.URL);
+        ROLES.put("client.port", Role.CLIENT_PORT);
+        ROLES.put("client.address", Role.CLIENT_IP);
+        ROLES.put("net.host.port", Role.LOCAL_PORT);
+        ROLES.put("net.host.ip", Role.LOCAL_IP);
+    }
+
+    /** Whether an attribute is only kept as a tag when it isn't read into an endpoint. */
+    static boolean isAddress(String key) {
+        switch (key) {
+            case "peer.service":
+            case "server.address":
+            case "server.port":
+            case "client.address":
+            case "client.port":
+            case "net.host.ip":
+            case "net.host.port":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Returns the role of an attribute key, matching case-insensitively, or null if none. */
+    static Role role(String key) {
+        Role role = ROLES.get(key);
+        if (role != null) return role;
+        for (int i = 0, length = key.length(); i < length; i++) {
+            if (Character.isUpperCase(key.charAt(i))) {
+                return ROLES.get(key.toLowerCase(Locale.ROOT));
+            }
+        }
+        return null;
+    }
+
+    final UrlServiceNames urlServiceNames;
+
+    public OtelSpanReader() {
+        this(new UrlServiceNames(UrlServiceNames.Rule.LAST_SEGMENT));
+    }
 
+    /** @param urlServiceNames derives remote service names from {@code url.full} attributes */
+    public OtelSpanReader(UrlServiceNames urlServiceNames) {
+        this.urlServiceNames = urlServiceNames;
+    }
+
+    /** A span read before the resource, completed once its service name is known. */
+    static final class PendingSpan {
+        final Span.Builder builder;
+        final String localIP;
+        final int localPort;
+
+        PendingSpan(Span.Builder builder, String localIP, int localPort) {
+            this.builder = builder;
+            this.localIP = localIP;
+            this.localPort = localPort;
+        }
+    }
+
+    /** Where spans of the document being read go. */
+    Collection<Span> out;
+    /** Receives {@link #out} once per document, as {@link JsonCodec} collects what is read. */
+    final List<Collection<Span>> documents = new ArrayList<>(1);
+    final Span.Builder builder = Span.newBuilder();
+    final List<PendingSpan> pending = new ArrayList<>();
+    String serviceName;
+    Endpoint localEndpoint;
+    boolean resourceRead;
+
+    // Fields of the span being read, which may come in any order
+    Span.Kind kind;
+    long startTime, endTime;
+    String remoteServiceName, remoteIP, peerService, clientIP, localIP;
+    int remotePort, clientPort, localPort;
+    /** Keys and values of {@link #isAddress address} attributes, tagged unless read. */
+    final List<String> addresses = new ArrayList<>();
+
+    /** Adds the spans of the document to {@link #out}, then returns it. */
     @Override
-    public Span fromJson(JsonCodec.JsonReader reader) throws IOException {
+    public Collection<Span> fromJson(JsonCodec.JsonReader reader) throws IOException {
         LOG.trace("fromJson");
 
-        this.builder.clear();
+        serviceName = null;
+        localEndpoint = null;
+        resourceRead = false;
+        pending.clear();
         reader.beginObject();
 
         while (reader.hasNext()) {
-            String nextName = reader.nextName();
-            if(nextName.equalsIgnoreCase("resource")){
-                processResource(reader);
-            }
-            else if(nextName.equalsIgnoreCase("scopeSpans")){
-                try {
+            switch (reader.nextName()) {
+                case "resource":
+                    processResource(reader);
+                    break;
+                case "scopeSpans":
                     processScopeSpans(reader);
-                } catch (URISyntaxException e) {
-                    throw new RuntimeException(e);
-                }
-            }else {
-                reader.skipValue();
+                    break;
+                default:
+                    reader.skipValue();
             }
         }
         reader.endObject();
-        return builder.build();
+        for (PendingSpan span : pending) {
+            Endpoint local = localEndpoint(span.localIP, span.localPort);
+            out.add(span.builder.localEndpoint(local).build());
+        }
+        pending.clear();
+        return out;
     }
 
 
     protected void processResource(JsonCodec.JsonReader reader) throws IOException {
-            String nextName;
             reader.beginObject();
             while (reader.hasNext()) {
-                nextName = reader.nextName();
-                if(nextName.equalsIgnoreCase("attributes")){
+                if (reader.nextName().equals("attributes")) {
                     processResourceAttributes(reader);
-                }else{
+                } else {
                     reader.skipValue();
                 }
-
             }
             reader.endObject();
+            resourceRead = true;
     }
 
     protected void processResourceAttributes(JsonCodec.JsonReader reader) throws IOException {
-        String nextName;
         reader.beginArray();
-        String keyValue;
         while (reader.hasNext()) {
             reader.beginObject();
+            String key = null, value = null;
             while (reader.hasNext()) {
-                nextName = reader.nextName();
-                if (nextName.equalsIgnoreCase("key")) {
-                    keyValue = reader.nextString();
-                    if (keyValue.equalsIgnoreCase("service.name")) {
-                        // Move to value
-                        reader.nextName();
-                        // Assuming it is always "value"
-                        reader.beginObject();
-                        // StringValue
-                        reader.nextName();
-                        String serviceName = reader.nextString();
-                        builder.localEndpoint(getEndpoint(serviceName,"",0));
-                        LOG.trace("Value {}", serviceName);
-                        reader.endObject();
-                    }
-                } else {
-                    reader.skipValue();
+                switch (reader.nextName()) {
+                    case "key":
+                        key = reader.nextString();
+                        break;
+                    case "value":
+                        value = readValue(reader);
+                        break;
+                    default:
+                        reader.skipValue();
                 }
             }
             reader.endObject();
+            if ("service.name".equals(key) && value != null) {
+                serviceName = value;
+                localEndpoint = getEndpoint(value, "", 0);
+                if (LOG.isTraceEnabled()) LOG.trace("Value {}", value);
+            }
         }
         reader.endArray();
 
     }
 
-    protected void processScopeSpans(JsonCodec.JsonReader reader) throws IOException, URISyntaxException {
-        String nextName;
-        Span.Kind kind = null;
+    protected void processScopeSpans(JsonCodec.JsonReader reader) throws IOException {
         reader.beginArray();
         while (reader.hasNext()) {
             reader.beginObject();
             while (reader.hasNext()){
-                nextName = reader.nextName();
-                if(nextName.equalsIgnoreCase("spans")){
-                    reader.beginArray();
+                if (!reader.nextName().equals("spans")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()){
+                    reader.beginObject();
+                    startSpan();
                     while (reader.hasNext()){
-                        reader.beginObject();
-                        long startTime =0L;
-                        while (reader.hasNext()){
-                            nextName = reader.nextName();
-                            if(nextName.equalsIgnoreCase("spanId")){
+                        switch (reader.nextName()) {
+                            case "spanId":
                                 builder.id(reader.nextString());
-                            }else if(nextName.equalsIgnoreCase("traceId")){
+                                break;
+                            case "traceId":
                                 builder.traceId(reader.nextString());
-                            }
-                            else if(nextName.equalsIgnoreCase("parentSpanId")){
+                                break;
+                            case "parentSpanId":
                                 builder.parentId(reader.nextString());
-                            }
-                            else if(nextName.equalsIgnoreCase("kind")){
+                                break;
+                            case "kind":
                                 kind = toSpanKind(reader.nextInt());
                                 builder.kind(kind);
-                            }else if(nextName.equalsIgnoreCase("name")){
+                                break;
+                            case "name":
                                 builder.name(reader.nextString());
-                            }
-                            else if(nextName.equalsIgnoreCase("startTimeUnixNano")){
+                                break;
+                            case "startTimeUnixNano":
                                 startTime = reader.nextLong();
-                                builder.timestamp(toEpochMicros(startTime));
-                            }
-                            else if(nextName.equalsIgnoreCase("endTimeUnixNano")){
-                                long endTime =  reader.nextLong();
-                                builder.duration( Math.max(1, toEpochMicros(endTime) - toEpochMicros(startTime)));
-                            }
-                            else if(nextName.equalsIgnoreCase("attributes")){
-                                processSpanAttributes(reader , kind);
-                            }
-                            else {
+                                break;
+                            case "endTimeUnixNano":
+                                endTime = reader.nextLong();
+                                break;
+                            case "attributes":
+                                processSpanAttributes(reader);
+                                break;
+                            case "events":
+                                processEvents(reader);
+                                break;
+                            default:
                                 reader.skipValue();
-                            }
                         }
-                        reader.endObject();
                     }
-                    reader.endArray();
-                }else {
-                    reader.skipValue();
+                    reader.endObject();
+                    endSpan();
                 }
+                reader.endArray();
             }
             reader.endObject();
         }
         reader.endArray();
     }
 
-    protected void processSpanAttributes(JsonCodec.JsonReader reader , Span.Kind kind) throws IOException, URISyntaxException {
-        String nextName;
-        int latestIntValue;
-        String latestStringValue;
+    void startSpan() {
+        builder.clear();
+        kind = null;
+        startTime = 0L;
+        endTime = 0L;
+        remoteServiceName = "Unknown";
+        remoteIP = "N/A";
+        remotePort = 0;
+        peerService = null;
+        clientIP = null;
+        clientPort = 0;
+        localIP = null;
+        localPort = 0;
+        addresses.clear();
+    }
+
+    /** Completes the span just read, or defers it until the resource is read. */
+    void endSpan() {
+        if (startTime != 0L) builder.timestamp(toEpochMicros(startTime));
+        if (endTime != 0L) {
+            builder.duration(Math.max(1, toEpochMicros(endTime) - toEpochMicros(startTime)));
+        }
+        boolean toServer = kind == Span.Kind.CLIENT || kind == Span.Kind.PRODUCER;
+        boolean toClient = (kind == Span.Kind.SERVER || kind == Span.Kind.CONSUMER)
+                && (peerService != null || clientIP != null || clientPort != 0);
+        if (toServer) {
+            builder.remoteEndpoint(getEndpoint(remoteServiceName, remoteIP, remotePort));
+        } else if (toClient) {
+            builder.remoteEndpoint(getEndpoint(peerService, clientIP, clientPort));
+        }
+        for (int i = 0, size = addresses.size(); i < size; i += 2) {
+            String key = addresses.get(i);
+            if (!isRead(key, toServer, toClient)) builder.putTag(key, addresses.get(i + 1));
+        }
+        if (resourceRead) {
+            out.add(builder.localEndpoint(localEndpoint(localIP, localPort)).build());
+        } else {
+            pending.add(new PendingSpan(builder.clone(), localIP, localPort));
+        }
+    }
 
-        // remote Endpoint
-        String remoteServiceName = "Unknown";
-        String remoteIP = "N/A";
-        int remotePort = 0;
+    /** Whether an address attribute was read into an endpoint of the span. */
+    static boolean isRead(String key, boolean toServer, boolean toClient) {
+        switch (key) {
+            case "peer.service":
+                return toServer || toClient;
+            case "server.address":
+            case "server.port":
+                return toServer;
+            case "client.address":
+            case "client.port":
+                return toClient;
+            default:
+                return true; // local
+        }
+    }
 
+    /** Returns the resource's endpoint, with the span's address if it has one. */
+    Endpoint localEndpoint(String ip, int port) {
+        if (ip == null && port == 0) return localEndpoint;
+        return getEndpoint(serviceName, ip, port);
+    }
+
+    protected void processSpanAttributes(JsonCodec.JsonReader reader) throws IOException {
         reader.beginArray();
         while (reader.hasNext()) {
             reader.beginObject();
+            String key = null, value = null;
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "key":
+                        key = reader.nextString();
+                        break;
+                    case "value":
+                        value = readValue(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (key == null || value == null) continue;
+            if (isAddress(key)) {
+                addresses.add(key);
+                addresses.add(value);
+            } else {
+                builder.putTag(key, value);
+            }
+            if (LOG.isTraceEnabled()) LOG.trace("key {}, value {}", key, value);
+
+            Role role = role(key);
+            if (role == null) continue;
+            switch (role) {
+                case REMOTE_PORT:
+                    remotePort = parsePort(value);
+                    break;
+                case REMOTE_IP:
+                    remoteIP = value;
+                    break;
+                case PEER_SERVICE:
+                    peerService = value;
+                    remoteServiceName = value;
+                    break;
+                case REMOTE_SERVICE_NAME:
+                    remoteServiceName = value;
+                    break;
+                case URL:
+                    String name = urlServiceNames.get(value);
+                    if (name != null) remoteServiceName = name;
+                    break;
+                case CLIENT_PORT:
+                    clientPort = parsePort(value);
+                    break;
+                case CLIENT_IP:
+                    clientIP = value;
+                    break;
+                case LOCAL_PORT:
+                    localPort = parsePort(value);
+                    break;
+                case LOCAL_IP:
+                    localIP = value;
+                    break;
+            }
+        }
+        reader.endArray();
+    }
 
-            //Reset
-            latestIntValue = 0;
-            latestStringValue= "";
+    /** Reads events as annotations, skipping those without a time or name. */
+    void processEvents(JsonCodec.JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            long time = 0L;
+            String name = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "timeUnixNano":
+                        time = reader.nextLong();
+                        break;
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (time != 0L && name != null) builder.addAnnotation(toEpochMicros(time), name);
+        }
+        reader.endArray();
+    }
 
-            String key = "";
-            nextName = reader.nextName();
-            if(nextName.equalsIgnoreCase("key")){
-                key = reader.nextString();
+    /**
+     * Returns an AnyValue as a tag value, or null if it has none. Scalars are returned as read:
+     * JSON numbers and OTLP's quoted 64-bit integers are both read as their text.
+     */
+    static String readValue(JsonCodec.JsonReader reader) throws IOException {
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String type = reader.nextName();
+            if (reader.peekNull()) {
+                reader.skipValue();
+                continue;
             }
-            nextName = reader.nextName();
-            if(nextName.equalsIgnoreCase("value")) {
-                reader.beginObject();
-                String type = reader.nextName();
-                if(type.equalsIgnoreCase("intValue")){
-                    latestIntValue = reader.nextInt();
-                    builder.putTag(key, String.valueOf(latestIntValue));
-                } else if (type.equalsIgnoreCase("booleanValue")) {
-                    builder.putTag(key, String.valueOf(reader.nextBoolean()));
-                } else if (type.equalsIgnoreCase("stringValue")) {
-                    latestStringValue = reader.nextString();
-                    builder.putTag(key, latestStringValue);
-                }else{
+            switch (type) {
+                case "stringValue":
+                case "intValue":
+                case "doubleValue":
+                case "bytesValue":
+                    value = reader.nextString();
+                    break;
+                case "boolValue":
+                case "booleanValue":
+                    value = reader.nextBoolean() ? "true" : "false";
+                    break;
+                case "arrayValue":
+                    value = readArrayValue(reader);
+                    break;
+                case "kvlistValue":
+                    value = readKvListValue(reader);
+                    break;
+                default:
                     reader.skipValue();
-                }
+            }
+        }
+        reader.endObject();
+        return value;
+    }
 
-                LOG.trace("key {}, latestIntValue {}, latestStringValue {}",key, latestIntValue, latestStringValue);
-
-                // Remote EndPoint
-                if(key.equalsIgnoreCase("server.port") ||
-                        key.equalsIgnoreCase("network.peer.port") ||
-                        key.equalsIgnoreCase("server.socket.port") ||
-                        key.equalsIgnoreCase("net.sock.peer.port")
-                  ){
-                    remotePort = latestIntValue;
-                }else if(key.equalsIgnoreCase("server.address") ||
-                        key.equalsIgnoreCase("net.peer.name") ||
-                        key.equalsIgnoreCase("network.peer.address") ||
-                        key.equalsIgnoreCase("server.socket.domain") ||
-                        key.equalsIgnoreCase("server.socket.address") ||
-                        key.equalsIgnoreCase("net.sock.peer.name") ||
-                        key.equalsIgnoreCase("net.sock.peer.addr") ||
-                        key.equalsIgnoreCase("peer.hostname") ||
-                        key.equalsIgnoreCase("peer.address")
-                        ){
-                    remoteIP = latestStringValue;
-                }else if(key.equalsIgnoreCase("db.name") ||
-                        key.equalsIgnoreCase("peer.service") ||
-                        key.equalsIgnoreCase("url.full") ||
-                        key.equalsIgnoreCase("messaging.destination.name")){
-                    if( key.equalsIgnoreCase("url.full")){
-                        URI uri = new URI(latestStringValue);
-                        String path = uri.getPath();
-                        String[] segments = path.split("/");
-                        remoteServiceName = segments[segments.length - 1];
-                    }else {
-                        remoteServiceName = latestStringValue;
+    /** Joins the values of an array with commas. */
+    static String readArrayValue(JsonCodec.JsonReader reader) throws IOException {
+        StringBuilder result = new StringBuilder();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("values")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String value = readValue(reader);
+                if (value == null) continue;
+                if (result.length() > 0) result.append(',');
+                result.append(value);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return result.toString();
+    }
+
+    /** Joins the entries of a key-value list as {@code key=value} with commas. */
+    static String readKvListValue(JsonCodec.JsonReader reader) throws IOException {
+        StringBuilder result = new StringBuilder();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("values")) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String key = null, value = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "key":
+                            key = reader.nextString();
+                            break;
+                        case "value":
+                            value = readValue(reader);
+                            break;
+                        default:
+                            reader.skipValue();
                     }
                 }
-
                 reader.endObject();
+                if (key == null || value == null) continue;
+                if (result.length() > 0) result.append(',');
+                result.append(key).append('=').append(value);
             }
-            reader.endObject();
+            reader.endArray();
         }
-        reader.endArray();
-        // process for only type 3 & 4
-        if(kind !=null &&
-                (kind.equals(Span.Kind.CLIENT) ||  kind.equals(Span.Kind.PRODUCER))) {
-            builder.remoteEndpoint(getEndpoint(remoteServiceName, remoteIP, remotePort));
+        reader.endObject();
+        return result.toString();
+    }
+
+    static int parsePort(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
 
     protected Endpoint getEndpoint(String serviceNameValue, String host, int port) {
-        LOG.trace("serviceNameValue {}, host {}, port {}",serviceNameValue, host, port);
-        Endpoint.Builder endpoint = Endpoint.newBuilder();
-        endpoint.ip(host);
-        endpoint.serviceName(serviceNameValue);
-        endpoint.port(port);
-        return endpoint.build();
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("serviceNameValue {}, host {}, port {}",serviceNameValue, host, port);
+        }
+        return ENDPOINTS.get(serviceNameValue, host, port);
     }
 
     private static long toEpochMicros(long epochNanos) {
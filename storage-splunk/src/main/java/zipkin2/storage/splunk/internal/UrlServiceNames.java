@@ -0,0 +1,122 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives a remote service name from a {@code url.full} attribute, by a configured rule.
+ *
+ * <p>URLs are scanned once, without {@link java.net.URI}, so a malformed URL yields what can be
+ * found in it instead of an exception. When the rule finds nothing, such as a path rule given a URL
+ * without a path, the host is used instead. Names are remembered per URL, as clients call the same
+ * URLs over and over; the memo is cleared when full, to stay bounded.
+ */
+public final class UrlServiceNames {
+
+    public enum Rule {
+        /** The last non-empty path segment, as in "users" for "http://api/v1/users/". */
+        LAST_SEGMENT,
+        /** The first path segment, as in "v1" for "http://api/v1/users". */
+        FIRST_SEGMENT,
+        /** The host, as in "api" for "http://api:8080/v1/users". */
+        HOST
+    }
+
+    static final int MAX_MEMO_ENTRIES = 4096;
+    /** Stands for no name in the memo, which can't hold null. */
+    static final String NONE = "";
+
+    /** Parses a rule name such as "last_segment", ignoring case. */
+    public static Rule rule(String name) {
+        return Rule.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    final Rule rule;
+    final ConcurrentHashMap<String, String> memo = new ConcurrentHashMap<>();
+
+    public UrlServiceNames(Rule rule) {
+        if (rule == null) throw new NullPointerException("rule == null");
+        this.rule = rule;
+    }
+
+    /** Returns the remote service name of the URL, or null if there is none in it. */
+    public String get(String url) {
+        String name = memo.get(url);
+        if (name == null) {
+            name = extract(url);
+            if (name == null) name = NONE;
+            if (memo.size() >= MAX_MEMO_ENTRIES) memo.clear();
+            memo.put(url, name);
+        }
+        return name.isEmpty() ? null : name;
+    }
+
+    String extract(String url) {
+        int length = url.length();
+        int end = length; // of the URL without its query or fragment
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        int hostStart = -1, pathStart = 0;
+        int scheme = url.indexOf("://");
+        if (scheme >= 0 && scheme < end) {
+            hostStart = scheme + 3;
+        } else if (url.startsWith("//")) {
+            hostStart = 2;
+        }
+        if (hostStart >= 0) {
+            pathStart = url.indexOf('/', hostStart);
+            if (pathStart < 0 || pathStart > end) pathStart = end;
+        }
+
+        String name = null;
+        switch (rule) {
+            case LAST_SEGMENT:
+                name = lastSegment(url, pathStart, end);
+                break;
+            case FIRST_SEGMENT:
+                name = firstSegment(url, pathStart, end);
+                break;
+            case HOST:
+                break;
+        }
+        if (name == null && hostStart >= 0) name = host(url, hostStart, pathStart);
+        return name;
+    }
+
+    static String lastSegment(String url, int start, int end) {
+        while (end > start && url.charAt(end - 1) == '/') end--;
+        if (end == start) return null;
+        int segmentStart = url.lastIndexOf('/', end - 1) + 1;
+        return url.substring(Math.max(segmentStart, start), end);
+    }
+
+    static String firstSegment(String url, int start, int end) {
+        while (start < end && url.charAt(start) == '/') start++;
+        if (start == end) return null;
+        int segmentEnd = url.indexOf('/', start);
+        return url.substring(start, segmentEnd < 0 || segmentEnd > end ? end : segmentEnd);
+    }
+
+    /** Returns the host of an authority, without user info or port. */
+    static String host(String url, int start, int end) {
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) start = at + 1;
+        if (start < end && url.charAt(start) == '[') { // IPv6 literal
+            int close = url.indexOf(']', start);
+            return close > start && close < end ? url.substring(start + 1, close) : null;
+        }
+        int colon = url.indexOf(':', start);
+        if (colon >= 0 && colon < end) end = colon;
+        return end > start ? url.substring(start, end) : null;
+    }
+}
@@ -41,6 +41,7 @@ public class ZipkinSplunkQueryApiV2{
      */
     final int namesMaxAge;
     final List<String> autocompleteKeys;
+    final MetadataSnapshots snapshots;
 
     volatile int serviceCount; // used as a threshold to start returning cache-control headers
 
@@ -50,12 +51,25 @@ public class ZipkinSplunkQueryApiV2{
             long defaultLookback, // 1 day in millis
             int namesMaxAge, // 5 minutes
             List<String> autocompleteKeys
+    ) {
+        this(storage, storageType, defaultLookback, namesMaxAge, autocompleteKeys,
+                new MetadataSnapshots(0L, 0L));
+    }
+
+    public ZipkinSplunkQueryApiV2(
+            StorageComponent storage,
+            String storageType,
+            long defaultLookback,
+            int namesMaxAge,
+            List<String> autocompleteKeys,
+            MetadataSnapshots snapshots // names and links refreshed in the background
     ) {
         this.storage = (SplunkStorage)storage;
         this.storageType = storageType;
         this.defaultLookback = defaultLookback;
         this.namesMaxAge = namesMaxAge;
         this.autocompleteKeys = autocompleteKeys;
+        this.snapshots = snapshots;
     }
 
     @Post("/api/v2/login")
@@ -71,15 +85,23 @@ public class ZipkinSplunkQueryApiV2{
     public AggregatedHttpResponse getDependencies(
             @Param("endTs") long endTs,
             @Param("lookback") Optional<Long> lookback) throws IOException {
-        Call<List<DependencyLink>> call =
-                storage.spanStore().getDependencies(endTs, lookback.orElse(defaultLookback));
-        return jsonResponse(DependencyLinkBytesEncoder.JSON_V1.encodeList(call.execute()));
+        List<DependencyLink> links =
+                snapshots.dependencies(endTs, lookback.orElse(defaultLookback));
+        if (links == null) {
+            Call<List<DependencyLink>> call =
+                    storage.spanStore().getDependencies(endTs, lookback.orElse(defaultLookback));
+            links = call.execute();
+        }
+        return jsonResponse(DependencyLinkBytesEncoder.JSON_V1.encodeList(links));
     }
 
     @Get("/api/v2/services")
     @Blocking
     public AggregatedHttpResponse getServiceNames(ServiceRequestContext ctx) throws IOException {
-        List<String> serviceNames = storage.serviceAndSpanNames().getServiceNames().execute();
+        List<String> serviceNames = snapshots.serviceNames();
+        serviceNames = serviceNames != null
+                ? new ArrayList<>(serviceNames) // sorted in place below
+                : storage.serviceAndSpanNames().getServiceNames().execute();
         serviceCount = serviceNames.size();
         return maybeCacheNames(serviceCount > 3, serviceNames, ctx.alloc());
     }
@@ -89,7 +111,10 @@ public class ZipkinSplunkQueryApiV2{
     public AggregatedHttpResponse getSpanNames(
             @Param("serviceName") String serviceName, ServiceRequestContext ctx)
             throws IOException {
-        List<String> spanNames = storage.serviceAndSpanNames().getSpanNames(serviceName).execute();
+        List<String> spanNames = snapshots.spanNames(serviceName);
+        spanNames = spanNames != null
+                ? new ArrayList<>(spanNames)
+                : storage.serviceAndSpanNames().getSpanNames(serviceName).execute();
         return maybeCacheNames(serviceCount > 3, spanNames, ctx.alloc());
     }
 
@@ -98,8 +123,10 @@ public class ZipkinSplunkQueryApiV2{
     public AggregatedHttpResponse getRemoteServiceNames(
             @Param("serviceName") String serviceName, ServiceRequestContext ctx)
             throws IOException {
-        List<String> remoteServiceNames =
-                storage.serviceAndSpanNames().getRemoteServiceNames(serviceName).execute();
+        List<String> remoteServiceNames = snapshots.remoteServiceNames(serviceName);
+        remoteServiceNames = remoteServiceNames != null
+                ? new ArrayList<>(remoteServiceNames)
+                : storage.serviceAndSpanNames().getRemoteServiceNames(serviceName).execute();
         return maybeCacheNames(serviceCount > 3, remoteServiceNames, ctx.alloc());
     }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.splunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A search job whose progress a test scripts, without a Splunk server. It lives in this package
+ * as the constructors of {@link Job} are package-private.
+ */
+public class StubJob extends Job {
+    /** Rows of the search as JSON objects, served by offset and count. */
+    public final List<String> rows = new ArrayList<>();
+    /** Each read as "preview|results offset+count thread". */
+    public final List<String> reads = Collections.synchronizedList(new ArrayList<>());
+    /** Times of each refresh, from {@link System#nanoTime()}. */
+    public final List<Long> refreshes = Collections.synchronizedList(new ArrayList<>());
+    public final CountDownLatch canceled = new CountDownLatch(1);
+    /** Advances the job on each refresh. */
+    public volatile Consumer<StubJob> onRefresh = job -> {
+    };
+
+    public volatile boolean ready = true, done;
+    public volatile int previewCount;
+
+    public StubJob() {
+        super(new Service("localhost", 8089), "search/jobs/stub");
+    }
+
+    @Override public Job refresh() {
+        refreshes.add(System.nanoTime());
+        onRefresh.accept(this);
+        return this;
+    }
+
+    @Override public boolean isReady() {
+        return ready;
+    }
+
+    @Override public boolean isDone() {
+        return done;
+    }
+
+    @Override public int getResultCount() {
+        return done ? rows.size() : 0;
+    }
+
+    @Override public int getResultPreviewCount() {
+        return previewCount;
+    }
+
+    @Override public String getSid() {
+        return "stub";
+    }
+
+    @Override public Job cancel() {
+        canceled.countDown();
+        return this;
+    }
+
+    @Override public InputStream getResults(Map args) {
+        return read("results", args);
+    }
+
+    @Override public InputStream getResultsPreview(Map args) {
+        return read("preview", args);
+    }
+
+    InputStream read(String kind, Map<?, ?> args) {
+        int offset = (Integer) args.get("offset"), count = (Integer) args.get("count");
+        reads.add(kind + ' ' + offset + '+' + count + ' ' + Thread.currentThread().getName());
+        StringBuilder json = new StringBuilder("{\"results\":[");
+        for (int i = offset; i < offset + count; i++) {
+            if (i > offset) json.append(',');
+            json.append(rows.get(i));
+        }
+        return new ByteArrayInputStream(json.append("]}").toString().getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.splunk;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Stands in for the KV store REST API of one collection, without a Splunk server. It lives in this
+ * package as the constructors of responses and {@link HttpException} are package-private.
+ */
+public class StubService extends Service {
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Documents of the collection by {@code _key}, or null until the collection is created. */
+    public volatile Map<String, ObjectNode> documents;
+    /** Each request as "METHOD path". */
+    public final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    /** When set, thrown by the next {@code batch_save}. */
+    public volatile RuntimeException batchSaveError;
+
+    public StubService() {
+        super("localhost", 8089);
+    }
+
+    /** Adds a document as another server would have saved it. */
+    public synchronized void putDocument(String key, String value, long count) {
+        if (documents == null) documents = new LinkedHashMap<>();
+        ObjectNode document = MAPPER.createObjectNode();
+        document.put("_key", key + '=' + value);
+        document.put("key", key);
+        document.put("value", value);
+        document.put("count", count);
+        document.put("_user", "nobody");
+        documents.put(key + '=' + value, document);
+    }
+
+    /** Returns the saved count of the value, or zero. */
+    public synchronized long count(String key, String value) {
+        ObjectNode document = documents == null ? null : documents.get(key + '=' + value);
+        return document == null ? 0L : document.get("count").asLong();
+    }
+
+    @Override public synchronized ResponseMessage get(String path, Map<String, Object> args) {
+        requests.add("GET " + path);
+        if (documents == null) {
+            throw new HttpException(404, "HTTP 404", "Could not find object.");
+        }
+        byte[] json = write(MAPPER.createArrayNode().addAll(documents.values()));
+        return new ResponseMessage(200, new ByteArrayInputStream(json));
+    }
+
+    @Override public synchronized ResponseMessage post(String path, Map<String, Object> args) {
+        requests.add("POST " + path);
+        if (path.endsWith("/storage/collections/config") && documents == null) {
+            documents = new LinkedHashMap<>();
+        }
+        return new ResponseMessage(201);
+    }
+
+    @Override public synchronized ResponseMessage send(String path, RequestMessage request) {
+        requests.add(request.getMethod() + ' ' + path);
+        if (path.endsWith("/batch_save")) {
+            RuntimeException error = batchSaveError;
+            batchSaveError = null;
+            if (error != null) throw error;
+            for (JsonNode document : read((String) request.getContent())) {
+                documents.put(document.get("_key").asText(), (ObjectNode) document);
+            }
+        } else if (request.getMethod().equals("DELETE")) {
+            String query = URLDecoder.decode(path.substring(path.indexOf("?query=") + 7), UTF_8);
+            JsonNode filter = read(query);
+            String key = filter.get("key").asText();
+            long below = filter.get("count").get("$lt").asLong();
+            documents.values().removeIf(document -> document.get("key").asText().equals(key)
+                    && document.get("count").asLong() < below);
+        }
+        return new ResponseMessage(200);
+    }
+
+    static JsonNode read(String json) {
+        try {
+            return MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static byte[] write(JsonNode json) {
+        try {
+            return MAPPER.writeValueAsBytes(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
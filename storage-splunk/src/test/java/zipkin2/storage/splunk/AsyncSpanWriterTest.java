@@ -0,0 +1,66 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AsyncSpanWriterTest {
+    final List<Span> sent = Collections.synchronizedList(new ArrayList<>());
+
+    // a long message timeout keeps offered spans in the flusher's batch until close
+    final AsyncSpanWriter writer = new AsyncSpanWriter(new AsyncSpanWriter.SpanSender() {
+        @Override public void send(List<Span> spans) {
+            sent.addAll(spans);
+        }
+
+        @Override public void close() {
+        }
+    }, 10, 100, 60000L, null);
+
+    @Test void offer_queuesWholeBatchOrNone() throws Exception {
+        assertThat(writer.offer(spans(8))).isZero();
+        assertThat(writer.offer(spans(5))).isEqualTo(5);
+        assertThat(writer.offer(spans(2))).isZero();
+
+        assertThat(writer.droppedSpans.get()).isEqualTo(5);
+
+        writer.close();
+        assertThat(sent).hasSize(10);
+        assertThat(writer.sentSpans.get()).isEqualTo(10);
+    }
+
+    @Test void offer_releasesSlotsOnceFlushed() throws Exception {
+        AsyncSpanWriter writer = new AsyncSpanWriter(new AsyncSpanWriter.SpanSender() {
+            @Override public void send(List<Span> spans) {
+                sent.addAll(spans);
+            }
+
+            @Override public void close() {
+            }
+        }, 10, 10, 60000L, null);
+
+        assertThat(writer.offer(spans(10))).isZero(); // a full batch flushes at once
+        while (sent.size() < 10) Thread.sleep(10L);
+        assertThat(writer.offer(spans(10))).isZero();
+
+        writer.close();
+        assertThat(sent).hasSize(20);
+        assertThat(writer.droppedSpans.get()).isZero();
+    }
+
+    static List<Span> spans(int count) {
+        List<Span> spans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            spans.add(Span.newBuilder().traceId("1").id(i).name("get").build());
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AttachSocketPoolTest {
+    static final long PROBE_AFTER_IDLE_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(AttachSocketPool.PROBE_AFTER_IDLE_MILLIS);
+
+    ServerSocket server;
+    Socket client, accepted;
+    AttachSocketPool pool;
+
+    @BeforeEach void connect() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(server.getInetAddress(), server.getLocalPort());
+        accepted = server.accept();
+    }
+
+    @AfterEach void close() throws Exception {
+        if (pool != null) pool.close();
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    @Test void isHealthy_openStream() throws Exception {
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+
+        assertThat(socket.isHealthy()).isTrue();
+        assertThat(socket.probe()).isTrue();
+    }
+
+    /** Only a probe sees a close, as the check on borrow doesn't block. */
+    @Test void probe_closedByServer() throws Exception {
+        accepted.close();
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+
+        assertThat(socket.probe()).isFalse();
+    }
+
+    @Test void isHealthy_serverWroteBack() throws Exception {
+        accepted.getOutputStream().write('!');
+        accepted.getOutputStream().flush();
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (socket.isHealthy() && System.nanoTime() < deadline) Thread.sleep(1L);
+        assertThat(socket.isHealthy()).isFalse();
+    }
+
+    @Test void isHealthy_closedByClient() throws Exception {
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+        socket.close();
+
+        assertThat(socket.isHealthy()).isFalse();
+        assertThat(socket.probe()).isFalse();
+    }
+
+    @Test void borrow_returnsMostRecentlyReleased() throws Exception {
+        pool = new AttachSocketPool(() -> null, "zipkin", null, 2, 60000L);
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+        pool.release(socket);
+
+        assertThat(pool.borrow()).isSameAs(socket);
+        assertThat(pool.idleCount()).isZero();
+    }
+
+    @Test void maintain_closesStreamClosedByServer() throws Exception {
+        pool = new AttachSocketPool(() -> null, "zipkin", null, 2, 60000L);
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+        pool.release(socket);
+        accepted.close();
+
+        pool.maintain(socket.lastUsedNanos + PROBE_AFTER_IDLE_NANOS - 1);
+        assertThat(pool.idleCount()).isOne(); // used too recently to probe
+
+        pool.maintain(socket.lastUsedNanos + PROBE_AFTER_IDLE_NANOS);
+        assertThat(pool.idleCount()).isZero();
+        assertThat(client.isClosed()).isTrue();
+    }
+
+    @Test void maintain_keepsOpenStream() throws Exception {
+        pool = new AttachSocketPool(() -> null, "zipkin", null, 2, 60000L);
+        AttachSocketPool.PooledSocket socket = new AttachSocketPool.PooledSocket(client);
+        pool.release(socket);
+
+        pool.maintain(socket.lastUsedNanos + PROBE_AFTER_IDLE_NANOS);
+
+        assertThat(pool.idleCount()).isOne();
+        assertThat(client.isClosed()).isFalse();
+    }
+
+    @Test void evictsIdleStreamsWithoutTraffic() throws Exception {
+        pool = new AttachSocketPool(() -> null, "zipkin", null, 2, 50L);
+        pool.release(new AttachSocketPool.PooledSocket(client));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pool.idleCount() > 0 && System.nanoTime() < deadline) Thread.sleep(10L);
+        assertThat(pool.idleCount()).isZero();
+        assertThat(client.isClosed()).isTrue();
+    }
+}
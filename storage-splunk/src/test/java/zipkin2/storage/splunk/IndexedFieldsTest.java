@@ -0,0 +1,141 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.internal.WriteBuffer;
+import zipkin2.storage.QueryRequest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class IndexedFieldsTest {
+    static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+    static final Endpoint BACKEND = Endpoint.newBuilder().serviceName("backend").build();
+    static final Span SPAN = Span.newBuilder()
+            .traceId("463ac35c9f6413ad")
+            .id("a2fb4a1d1a96d312")
+            .name("get \"/\"")
+            .localEndpoint(FRONTEND)
+            .remoteEndpoint(BACKEND)
+            .timestamp(1472470996199000L)
+            .duration(207000L)
+            .build();
+
+    final SplunkStorage storage = SplunkStorage.builder().token("token").build();
+
+    @AfterEach void close() throws Exception {
+        storage.close();
+    }
+
+    @Test void write_distinctValuesOfEachField() {
+        Span post = SPAN.toBuilder().id(2).name("post").remoteEndpoint(null).duration(null)
+                .putTag("error", "500").build();
+
+        assertThat(write(List.of(SPAN, post, SPAN.toBuilder().id(3).build()))).isEqualTo(
+                ",\"fields\":{\"trace_id\":[\"463ac35c9f6413ad\"],"
+                        + "\"local_service\":[\"frontend\"],"
+                        + "\"remote_service\":[\"backend\"],"
+                        + "\"span_name\":[\"get \\\"/\\\"\",\"post\"],"
+                        + "\"duration\":[\"207000\"],"
+                        + "\"error\":\"true\"}");
+    }
+
+    @Test void write_omitsAbsentFields() {
+        Span span = Span.newBuilder().traceId("463ac35c9f6413ad").id(1).build();
+
+        assertThat(write(List.of(span)))
+                .isEqualTo(",\"fields\":{\"trace_id\":[\"463ac35c9f6413ad\"]}");
+    }
+
+    @Test void namesQuery() {
+        assertThat(IndexedFields.namesQuery(storage, IndexedFields.LOCAL_SERVICE, null))
+                .isEqualTo("| tstats count where index=\"zipkin\" sourcetype=\"span\""
+                        + " earliest=-86400s by local_service");
+        assertThat(IndexedFields.namesQuery(storage, IndexedFields.SPAN_NAME, "front\"end"))
+                .isEqualTo("| tstats count where index=\"zipkin\" sourcetype=\"span\""
+                        + " earliest=-86400s local_service=\"front\\\"end\" by span_name");
+    }
+
+    @Test void seedNamesQuery() {
+        assertThat(IndexedFields.seedNamesQuery(storage, 100))
+                .isEqualTo("| tstats fillnull_value=\"\" max(_time) as _time"
+                        + " where index=\"zipkin\" sourcetype=\"span\" earliest=-86400s"
+                        + " by local_service span_name remote_service | sort 0 -_time | head 100");
+    }
+
+    @Test void traceQuery_findsIndexTerm() {
+        assertThat(IndexedFields.traceQuery(storage, "0000000000000000463AC35C9F6413AD"))
+                .isEqualTo("search index=\"zipkin\" sourcetype=\"span\""
+                        + " trace_id::463ac35c9f6413ad");
+    }
+
+    @Test void traceIdsQuery() {
+        QueryRequest request = QueryRequest.newBuilder()
+                .serviceName("frontend")
+                .spanName("get")
+                .remoteServiceName("all")
+                .minDuration(100L)
+                .maxDuration(200L)
+                .endTs(1472470996199L)
+                .lookback(3600000L)
+                .limit(10)
+                .build();
+
+        assertThat(IndexedFields.traceIdsQuery(storage, request))
+                .isEqualTo("| tstats max(_time) as _time max(duration) as duration"
+                        + " where index=\"zipkin\" sourcetype=\"span\""
+                        + " earliest=1472467396 latest=1472470996"
+                        + " local_service=\"frontend\" span_name=\"get\" by trace_id"
+                        + " | where duration>=100 | where duration<=200"
+                        + " | sort 0 -_time | head 10 | fields trace_id");
+    }
+
+    @Test void traceIdsQuery_withoutDuration() {
+        QueryRequest request = QueryRequest.newBuilder()
+                .endTs(1472470996199L)
+                .lookback(3600000L)
+                .limit(10)
+                .build();
+
+        assertThat(IndexedFields.traceIdsQuery(storage, request))
+                .isEqualTo("| tstats max(_time) as _time"
+                        + " where index=\"zipkin\" sourcetype=\"span\""
+                        + " earliest=1472467396 latest=1472470996 by trace_id"
+                        + " | sort 0 -_time | head 10 | fields trace_id");
+    }
+
+    @Test void quote_escapesBackslashAndQuote() {
+        assertThat(IndexedFields.quote("a\\\" | delete"))
+                .isEqualTo("\"a\\\\\\\" | delete\"");
+    }
+
+    @Test void build_requiresHecEvents() {
+        assertThatThrownBy(() -> SplunkStorage.builder().token("token").indexedFields(true).build())
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("indexedFields requires ingestMode=hec and hecEndpoint=event");
+        assertThatThrownBy(() -> SplunkStorage.builder().token("token").indexedFields(true)
+                .ingestMode("hec").hecEndpoint("raw").build())
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test void build_allowsHecEvents() throws Exception {
+        SplunkStorage.builder().token("token").indexedFields(true)
+                .ingestMode("hec").hecUrl("http://127.0.0.1:8088").hecToken("token")
+                .build().close();
+    }
+
+    static String write(List<Span> spans) {
+        IndexedFields writer = new IndexedFields();
+        byte[] bytes = new byte[writer.sizeInBytes(spans)];
+        writer.write(spans, WriteBuffer.wrap(bytes, 0)); // overflows if undersized
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JsonResultsReaderTest {
+
+    @Test void resultsAfterOtherFields() throws Exception {
+        try (JsonResultsReader results = reader("{\"preview\":false,\"init_offset\":0,"
+                + "\"messages\":[{\"type\":\"INFO\",\"text\":\"ok\"}],"
+                + "\"fields\":[{\"name\":\"_raw\"}],\"highlighted\":{},"
+                + "\"results\":[{\"_raw\":\"a\"},{\"_raw\":\"b\"}]}")) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("_raw")).isTrue();
+            assertThat(results.nextText()).isEqualTo("a");
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("_raw")).isTrue();
+            assertThat(results.nextText()).isEqualTo("b");
+            assertThat(results.nextResult()).isFalse();
+            assertThat(results.nextResult()).isFalse();
+        }
+    }
+
+    @Test void fromStream() throws Exception {
+        byte[] json = "{\"results\":[{\"_raw\":\"a\"}]}".getBytes(UTF_8);
+        try (JsonResultsReader results = new JsonResultsReader(new ByteArrayInputStream(json))) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.nextField()).isEqualTo("_raw");
+            assertThat(results.nextText()).isEqualTo("a");
+            assertThat(results.nextField()).isNull();
+            assertThat(results.nextResult()).isFalse();
+        }
+    }
+
+    @Test void arrayValuedField() throws Exception {
+        try (JsonResultsReader results = reader("{\"results\":[{"
+                + "\"tag\":[\"a\",null,{\"x\":[1]},[\"nested\"],\"b\",2],\"next\":\"c\"}]}")) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("tag")).isTrue();
+            assertThat(results.nextText()).isEqualTo("a");
+            assertThat(results.nextText()).isEqualTo("b");
+            assertThat(results.nextText()).isEqualTo("2");
+            assertThat(results.nextText()).isNull();
+            assertThat(results.nextField()).isEqualTo("next");
+            assertThat(results.nextText()).isEqualTo("c");
+        }
+    }
+
+    @Test void nullAndObjectValues() throws Exception {
+        try (JsonResultsReader results = reader("{\"results\":[{"
+                + "\"none\":null,\"object\":{\"x\":\"y\"},\"after\":\"z\"}]}")) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("none")).isTrue();
+            assertThat(results.nextText()).isNull();
+            assertThat(results.nextField()).isEqualTo("object");
+            assertThat(results.nextText()).isNull();
+            assertThat(results.nextField()).isEqualTo("after");
+            assertThat(results.nextText()).isEqualTo("z");
+        }
+    }
+
+    @Test void skipsUnreadValues() throws Exception {
+        try (JsonResultsReader results = reader("{\"results\":["
+                + "{\"a\":[\"1\",\"2\"],\"b\":{\"c\":[\"3\"]},\"_raw\":\"x\"},"
+                + "{\"a\":[\"4\",\"5\"],\"_raw\":\"y\"},"
+                + "{\"_raw\":\"z\",\"a\":{\"b\":[]}}]}")) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("_raw")).isTrue();
+            assertThat(results.nextText()).isEqualTo("x");
+
+            // leaves the row part way through an array
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("a")).isTrue();
+            assertThat(results.nextText()).isEqualTo("4");
+
+            // leaves the row without reading a field at all
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.nextResult()).isFalse();
+        }
+    }
+
+    @Test void seek_missingField() throws Exception {
+        try (JsonResultsReader results = reader("{\"results\":[{\"a\":\"1\"},{\"_raw\":\"x\"}]}")) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("_raw")).isFalse();
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("_raw")).isTrue();
+            assertThat(results.nextText()).isEqualTo("x");
+        }
+    }
+
+    @Test void nextUtf8_unescapes() throws Exception {
+        String raw = "{\"name\":\"caf\u00e9 \ud83d\ude00\",\"path\":\"a\\\\b\nc\u2028\"}";
+        try (JsonResultsReader results = reader("{\"results\":[{\"_raw\":"
+                + "\"{\\\"name\\\":\\\"caf\u00e9 \\ud83d\\ude00\\\",\\\"path\\\":"
+                + "\\\"a\\\\\\\\b\\nc\\u2028\\\"}\"}]}")) {
+            assertThat(results.nextResult()).isTrue();
+            assertThat(results.seek("_raw")).isTrue();
+            assertThat(bytes(results.nextUtf8())).isEqualTo(raw.getBytes(UTF_8));
+            assertThat(results.nextUtf8()).isNull();
+        }
+    }
+
+    @Test void nextUtf8_reusesBufferUntilLarger() throws Exception {
+        String large = "x".repeat(10000);
+        try (JsonResultsReader results = reader("{\"results\":["
+                + "{\"_raw\":\"a\"},{\"_raw\":\"b\"},{\"_raw\":\"" + large + "\"}]}")) {
+            results.nextResult();
+            results.seek("_raw");
+            ByteBuffer first = results.nextUtf8();
+            results.nextResult();
+            results.seek("_raw");
+            ByteBuffer second = results.nextUtf8();
+            assertThat(second).isSameAs(first);
+            assertThat(bytes(second)).isEqualTo("b".getBytes(UTF_8));
+
+            results.nextResult();
+            results.seek("_raw");
+            assertThat(bytes(results.nextUtf8())).isEqualTo(large.getBytes(UTF_8));
+        }
+    }
+
+    @Test void emptyResults() throws Exception {
+        for (String json : new String[] {"{\"results\":[]}", "{\"preview\":false}", "{}", ""}) {
+            try (JsonResultsReader results = reader(json)) {
+                assertThat(results.nextResult()).as(json).isFalse();
+            }
+        }
+    }
+
+    @Test void errorMessage() throws Exception {
+        try (JsonResultsReader results = reader("{\"messages\":["
+                + "{\"type\":\"WARN\",\"text\":\"slow\"},"
+                + "{\"type\":\"FATAL\",\"text\":\"Unknown search command 'bogus'.\"}],"
+                + "\"results\":[{\"_raw\":\"a\"}]}")) {
+            assertThatThrownBy(results::nextResult)
+                    .isInstanceOf(IOException.class)
+                    .hasMessage("Splunk search failed: Unknown search command 'bogus'.");
+        }
+    }
+
+    static JsonResultsReader reader(String json) throws IOException {
+        return new JsonResultsReader(json.getBytes(UTF_8));
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
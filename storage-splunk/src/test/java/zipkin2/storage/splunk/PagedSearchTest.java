@@ -0,0 +1,163 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.splunk.StubJob;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PagedSearchTest {
+    final StubJob job = new StubJob();
+    final CountDownLatch unblock = new CountDownLatch(1);
+    QueryExecutor executor = new QueryExecutor(1, 1);
+
+    @AfterEach void close() {
+        unblock.countDown();
+        executor.close();
+    }
+
+    @Test void readsPreviewWhileRunningThenResults() throws Exception {
+        addRows(5);
+        job.onRefresh = job -> {
+            if (job.previewCount == 0) {
+                job.previewCount = 2;
+            } else {
+                job.done = true;
+            }
+        };
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        assertThat(readAll(search)).containsExactly("0", "1", "2", "3", "4");
+        assertThat(job.reads).extracting(PagedSearchTest::withoutThread)
+                .containsExactlyInAnyOrder("preview 0+2", "results 2+2", "results 4+1");
+    }
+
+    @Test void nextPage_emptyJob() throws Exception {
+        job.onRefresh = job -> job.done = true;
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        assertThat(search.nextPage()).isNull();
+        assertThat(job.reads).isEmpty();
+    }
+
+    @Test void prefetchesOnQueryThread() throws Exception {
+        addRows(4);
+        job.onRefresh = job -> job.done = true;
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        search.nextPage();
+        awaitReads(2);
+        search.nextPage();
+
+        assertThat(job.reads).containsExactlyInAnyOrder(
+                "results 0+2 " + Thread.currentThread().getName(),
+                "results 2+2 zipkin-splunk-query-1");
+    }
+
+    /** A prefetch no query thread picked up is fetched by the caller, and only once. */
+    @Test void callerClaimsQueuedPrefetch() throws Exception {
+        addRows(4);
+        job.onRefresh = job -> job.done = true;
+        executor.execute(this::block);
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        assertThat(readAll(search)).containsExactly("0", "1", "2", "3");
+        unblock.countDown();
+        while (executor.completedQueries.get() < 2) Thread.sleep(10L);
+
+        String caller = Thread.currentThread().getName();
+        assertThat(job.reads).containsExactly("results 0+2 " + caller, "results 2+2 " + caller);
+    }
+
+    @Test void fetchesInlineWhenPrefetchRejected() throws Exception {
+        addRows(4);
+        job.onRefresh = job -> job.done = true;
+        executor.execute(this::block);
+        executor.execute(this::block);
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        assertThat(readAll(search)).containsExactly("0", "1", "2", "3");
+        assertThat(executor.rejectedQueries.get()).isEqualTo(1);
+    }
+
+    @Test void awaitRows_backsOff() throws Exception {
+        addRows(1);
+        job.ready = false;
+        job.onRefresh = job -> {
+            if (job.refreshes.size() == 5) {
+                job.ready = true;
+                job.done = true;
+            }
+        };
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        assertThat(search.nextPage()).isNotNull();
+
+        long expectedMillis = PagedSearch.MIN_POLL_MILLIS;
+        for (int i = 1; i < job.refreshes.size(); i++) {
+            long gapNanos = job.refreshes.get(i) - job.refreshes.get(i - 1);
+            assertThat(gapNanos).isGreaterThanOrEqualTo(
+                    TimeUnit.MILLISECONDS.toNanos(expectedMillis) * 9 / 10);
+            expectedMillis = Math.min(expectedMillis * 2, PagedSearch.MAX_POLL_MILLIS);
+        }
+    }
+
+    @Test void awaitRows_stopsWhenCanceled() {
+        job.ready = false;
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> job.refreshes.size() == 2);
+
+        assertThatThrownBy(search::nextPage).isInstanceOf(IOException.class).hasMessage("Canceled");
+        assertThat(job.reads).isEmpty();
+    }
+
+    @Test void close_cancelsJobOffThread() throws Exception {
+        PagedSearch search = new PagedSearch(job, 2, executor, () -> false);
+
+        search.close();
+
+        assertThat(job.canceled.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    void addRows(int count) {
+        for (int i = 0; i < count; i++) job.rows.add("{\"_raw\":\"" + i + "\"}");
+    }
+
+    void awaitReads(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (job.reads.size() < count && System.nanoTime() < deadline) Thread.sleep(10L);
+    }
+
+    void block() {
+        try {
+            unblock.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static List<String> readAll(PagedSearch search) throws IOException {
+        List<String> values = new ArrayList<>();
+        for (byte[] page; (page = search.nextPage()) != null; ) {
+            try (JsonResultsReader results = new JsonResultsReader(page)) {
+                while (results.nextResult()) {
+                    if (results.seek("_raw")) values.add(results.nextText());
+                }
+            }
+        }
+        return values;
+    }
+
+    static String withoutThread(String read) {
+        return read.substring(0, read.lastIndexOf(' '));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryCacheTest {
+    static final long MINUTE = 60_000L;
+    static final Span SPAN = Span.newBuilder().traceId("1").id("1").name("get").build();
+
+    final AtomicInteger searches = new AtomicInteger();
+
+    @Test void bucketed_widensToWholeBuckets() {
+        QueryCache cache = new QueryCache(10, 1000, MINUTE, MINUTE);
+
+        QueryRequest bucketed = cache.bucketed(request(10 * MINUTE + 1, 5 * MINUTE));
+
+        assertThat(bucketed.endTs()).isEqualTo(11 * MINUTE);
+        assertThat(bucketed.lookback()).isEqualTo(6 * MINUTE);
+    }
+
+    @Test void bucketed_keepsWholeBuckets() {
+        QueryCache cache = new QueryCache(10, 1000, MINUTE, MINUTE);
+
+        QueryRequest bucketed = cache.bucketed(request(10 * MINUTE, 5 * MINUTE));
+
+        assertThat(bucketed.endTs()).isEqualTo(10 * MINUTE);
+        assertThat(bucketed.lookback()).isEqualTo(5 * MINUTE);
+    }
+
+    @Test void getTraces_sameBucketSearchesOnce() throws Exception {
+        QueryCache cache = new QueryCache(10, 1000, MINUTE, MINUTE);
+        long endTs = 10 * MINUTE;
+
+        List<List<Span>> first = getTraces(cache, request(endTs + 1000, MINUTE));
+        List<List<Span>> second = getTraces(cache, request(endTs + 2000, MINUTE));
+
+        assertThat(second).isEqualTo(first);
+        assertThat(searches).hasValue(1);
+        assertThat(cache.hits).hasValue(1);
+        assertThat(cache.misses).hasValue(1);
+    }
+
+    @Test void getTraces_otherBucketSearchesAgain() throws Exception {
+        QueryCache cache = new QueryCache(10, 1000, MINUTE, MINUTE);
+
+        getTraces(cache, request(10 * MINUTE + 1000, MINUTE));
+        getTraces(cache, request(11 * MINUTE + 1000, MINUTE));
+
+        assertThat(searches).hasValue(2);
+    }
+
+    @Test void getTraces_disabled() throws Exception {
+        QueryCache cache = new QueryCache(0, 1000, MINUTE, MINUTE);
+
+        getTraces(cache, request(10 * MINUTE, MINUTE));
+        getTraces(cache, request(10 * MINUTE, MINUTE));
+
+        assertThat(searches).hasValue(2);
+        assertThat(cache.entries).isEmpty();
+    }
+
+    @Test void put_recentWindowExpiresAfterBucket() throws Exception {
+        QueryCache cache = new QueryCache(10, 1000, 1L, MINUTE);
+
+        cache.put("recent", System.currentTimeMillis(), traces(1));
+        Thread.sleep(5L);
+
+        assertThat(cache.get("recent")).isNull();
+        assertThat(cache.entries).isEmpty();
+        assertThat(cache.spanCount).isZero();
+    }
+
+    @Test void put_settledWindowExpiresAfterTtl() throws Exception {
+        QueryCache cache = new QueryCache(10, 1000, 1L, MINUTE);
+        long settled = System.currentTimeMillis() - TraceCache.SETTLED_AFTER_MILLIS - MINUTE;
+
+        cache.put("settled", settled, traces(1));
+        Thread.sleep(5L);
+
+        assertThat(cache.get("settled")).hasSize(1);
+    }
+
+    @Test void put_evictsLeastRecentlyUsed() {
+        QueryCache cache = new QueryCache(2, 1000, MINUTE, MINUTE);
+        long endTs = System.currentTimeMillis();
+
+        cache.put("a", endTs, traces(1));
+        cache.put("b", endTs, traces(1));
+        cache.get("a");
+        cache.put("c", endTs, traces(1));
+
+        assertThat(cache.entries).containsOnlyKeys("a", "c");
+    }
+
+    @Test void put_evictsToMaxSpans() {
+        QueryCache cache = new QueryCache(10, 5, MINUTE, MINUTE);
+        long endTs = System.currentTimeMillis();
+
+        cache.put("a", endTs, traces(3));
+        cache.put("b", endTs, traces(3));
+
+        assertThat(cache.entries).containsOnlyKeys("b");
+        assertThat(cache.spanCount).isEqualTo(3);
+    }
+
+    @Test void put_skipsResultsOverMaxSpans() {
+        QueryCache cache = new QueryCache(10, 5, MINUTE, MINUTE);
+
+        cache.put("a", System.currentTimeMillis(), traces(6));
+
+        assertThat(cache.entries).isEmpty();
+        assertThat(cache.spanCount).isZero();
+    }
+
+    @Test void put_replacingAdjustsSpanCount() {
+        QueryCache cache = new QueryCache(10, 100, MINUTE, MINUTE);
+        long endTs = System.currentTimeMillis();
+
+        cache.put("a", endTs, traces(3));
+        cache.put("a", endTs, traces(2));
+
+        assertThat(cache.spanCount).isEqualTo(2);
+    }
+
+    List<List<Span>> getTraces(QueryCache cache, QueryRequest request) throws Exception {
+        return cache.getTraces(request, bucketed -> {
+            searches.incrementAndGet();
+            return Call.create(traces(1));
+        }).execute();
+    }
+
+    static QueryRequest request(long endTs, long lookback) {
+        return QueryRequest.newBuilder().endTs(endTs).lookback(lookback).limit(10).build();
+    }
+
+    /** One trace of {@code spans} spans. */
+    static List<List<Span>> traces(int spans) {
+        List<Span> trace = new ArrayList<>();
+        for (int i = 0; i < spans; i++) trace.add(SPAN);
+        List<List<Span>> traces = new ArrayList<>();
+        traces.add(trace);
+        return traces;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.splunk.ResponseMessage;
+import com.splunk.StubService;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RawSplunkSearchCallTest {
+    final CompletableFuture<String> cancel = new CompletableFuture<>();
+    final StubService service = new StubService() {
+        @Override public ResponseMessage post(String path, Map<String, Object> args) {
+            cancel.complete(path + ' ' + args.get("action") + ' '
+                    + Thread.currentThread().getName());
+            return super.post(path, args);
+        }
+    };
+    final SplunkStorage storage = SplunkStorage.builder().token("token").nameCatalog(false)
+            .queryThreads(1).queryQueueSize(1).queryTimeout(100L).build();
+
+    RawSplunkSearchCallTest() {
+        storage.splunk = service;
+    }
+
+    @AfterEach void close() throws Exception {
+        storage.close();
+    }
+
+    @Test void execute_propagatesSearchError() {
+        IOException error = new IOException("connection reset");
+
+        assertThatThrownBy(new SearchCall(storage, call -> {
+            throw error;
+        })::execute).isSameAs(error);
+    }
+
+    @Test void execute_propagatesRuntimeError() {
+        IllegalStateException error = new IllegalStateException("HTTP 400 -- bad search");
+
+        assertThatThrownBy(new SearchCall(storage, call -> {
+            throw error;
+        })::execute).isSameAs(error);
+    }
+
+    @Test void execute_returnsResults() throws Exception {
+        assertThat(new SearchCall(storage, call -> List.of("a")).execute()).containsExactly("a");
+        assertThat(storage.queryExecutor.timedOutQueries).hasValue(0L);
+    }
+
+    @Test void execute_timesOut() {
+        assertThatThrownBy(new SearchCall(storage, RawSplunkSearchCallTest::awaitCancel)::execute)
+                .isInstanceOf(IOException.class)
+                .hasMessage("Search timed out after 100ms: search index=zipkin");
+
+        assertThat(storage.queryExecutor.timedOutQueries).hasValue(1L);
+    }
+
+    @Test void enqueue_timesOut() {
+        CompletableFuture<List<String>> result = enqueue(
+                new SearchCall(storage, RawSplunkSearchCallTest::awaitCancel));
+
+        assertThatThrownBy(result::get).isInstanceOf(ExecutionException.class)
+                .cause().isInstanceOf(IOException.class)
+                .hasMessage("Search timed out after 100ms: search index=zipkin");
+        assertThat(storage.queryExecutor.timedOutQueries).hasValue(1L);
+    }
+
+    @Test void enqueue_finishedSearchDoesntTimeOut() throws Exception {
+        assertThat(enqueue(new SearchCall(storage, call -> List.of("a"))).get())
+                .containsExactly("a");
+        Thread.sleep(200L);
+
+        assertThat(storage.queryExecutor.timedOutQueries).hasValue(0L);
+    }
+
+    @Test void enqueue_rejectedWhenSaturated() throws Exception {
+        CountDownLatch running = new CountDownLatch(1), release = new CountDownLatch(1);
+        SplunkStorage storage = SplunkStorage.builder().token("token").nameCatalog(false)
+                .queryThreads(1).queryQueueSize(1).queryTimeout(0L).build();
+        try {
+            CompletableFuture<List<String>> first = enqueue(new SearchCall(storage, call -> {
+                running.countDown();
+                await(release);
+                return List.of("a");
+            }));
+            running.await();
+            CompletableFuture<List<String>> queued =
+                    enqueue(new SearchCall(storage, call -> List.of("b")));
+
+            CompletableFuture<List<String>> rejected =
+                    enqueue(new SearchCall(storage, call -> List.of("c")));
+
+            assertThatThrownBy(rejected::get).cause()
+                    .isInstanceOf(RejectedExecutionException.class);
+            assertThat(storage.queryExecutor.rejectedQueries).hasValue(1L);
+            release.countDown();
+            assertThat(first.get()).containsExactly("a");
+            assertThat(queued.get()).containsExactly("b");
+        } finally {
+            release.countDown();
+            storage.close();
+        }
+    }
+
+    /** The deadline thread only flags the call: the cancel on Splunk is a request of its own. */
+    @Test void cancel_cancelsOneshotOffThread() throws Exception {
+        SearchCall call = new SearchCall(storage, search -> List.of());
+        call.oneshotSid = "zipkin_oneshot_1";
+
+        call.cancel();
+
+        assertThat(cancel.get(10, TimeUnit.SECONDS)).isEqualTo(
+                "search/jobs/zipkin_oneshot_1/control cancel zipkin-splunk-query-cancel");
+    }
+
+    static CompletableFuture<List<String>> enqueue(Call<List<String>> call) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        call.enqueue(new Callback<>() {
+            @Override public void onSuccess(List<String> value) {
+                result.complete(value);
+            }
+
+            @Override public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /** Blocks like a search on a slow Splunk, until the call is canceled. */
+    static List<String> awaitCancel(SearchCall call) throws IOException {
+        while (!call.isCanceled()) {
+            try {
+                Thread.sleep(5L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new IOException("Canceled");
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    interface Search {
+        List<String> run(SearchCall call) throws IOException;
+    }
+
+    /** Runs a scripted search instead of one on Splunk. */
+    static final class SearchCall extends SplunkSpanStore.RawSplunkSearchCall<String> {
+        final Search search;
+
+        SearchCall(SplunkStorage storage, Search search) {
+            super(storage, "search index=zipkin");
+            this.search = search;
+        }
+
+        @Override List<String> doSearch() throws IOException {
+            return search.run(this);
+        }
+
+        /** Scripted searches differ even when their queries are the same. */
+        @Override String flightKey() {
+            return null;
+        }
+
+        @Override List<String> process(JsonResultsReader results) {
+            throw new AssertionError();
+        }
+
+        @Override public Call<List<String>> clone() {
+            return new SearchCall(storage, search);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ShardedSpanSenderTest {
+    static final long COOLDOWN_MILLIS = 60000L;
+
+    final FakeSender a = new FakeSender(), b = new FakeSender(), c = new FakeSender();
+    final ShardedSpanSender sender = new ShardedSpanSender(List.of(
+            new ShardedSpanSender.Node("a", a),
+            new ShardedSpanSender.Node("b", b),
+            new ShardedSpanSender.Node("c", c)), COOLDOWN_MILLIS);
+
+    @Test void route_stableAcrossInstances() {
+        ShardedSpanSender other = new ShardedSpanSender(List.of(
+                new ShardedSpanSender.Node("a", a),
+                new ShardedSpanSender.Node("b", b),
+                new ShardedSpanSender.Node("c", c)), COOLDOWN_MILLIS);
+
+        for (Span span : spans(1000)) {
+            assertThat(other.route(span.traceId(), 0L)).isEqualTo(sender.route(span.traceId(), 0L));
+        }
+    }
+
+    @Test void route_spreadsOverNodes() {
+        int[] counts = new int[3];
+        for (Span span : spans(3000)) counts[sender.route(span.traceId(), 0L)]++;
+
+        for (int count : counts) assertThat(count).isBetween(700, 1300);
+    }
+
+    @Test void send_keepsTraceOnOneNode() throws Exception {
+        List<Span> spans = new ArrayList<>();
+        for (Span span : spans(100)) {
+            spans.add(span);
+            spans.add(span.toBuilder().id(2).parentId(1).build());
+        }
+
+        sender.send(spans);
+
+        assertThat(a.sent.size() + b.sent.size() + c.sent.size()).isEqualTo(200);
+        for (FakeSender node : List.of(a, b, c)) {
+            for (Span span : node.sent) {
+                assertThat(node.sent)
+                        .filteredOn(s -> s.traceId().equals(span.traceId())).hasSize(2);
+            }
+        }
+    }
+
+    @Test void eject_movesOnlyTheNodesShare() {
+        List<Span> spans = spans(1000);
+        int[] before = routes(spans, 0L);
+
+        sender.eject(sender.nodes[1], 0L, new ConnectException());
+        int[] after = routes(spans, 0L);
+
+        for (int i = 0; i < spans.size(); i++) {
+            if (before[i] == 1) {
+                assertThat(after[i]).isNotEqualTo(1);
+            } else {
+                assertThat(after[i]).isEqualTo(before[i]);
+            }
+        }
+    }
+
+    @Test void eject_readmittedAfterCooldown() {
+        List<Span> spans = spans(1000);
+        int[] before = routes(spans, 0L);
+
+        sender.eject(sender.nodes[1], 0L, new ConnectException());
+
+        assertThat(sender.nodes[1].isHealthy(COOLDOWN_MILLIS - 1)).isFalse();
+        assertThat(routes(spans, COOLDOWN_MILLIS - 1)).doesNotContain(1);
+        assertThat(sender.nodes[1].isHealthy(COOLDOWN_MILLIS)).isTrue();
+        assertThat(routes(spans, COOLDOWN_MILLIS)).isEqualTo(before);
+    }
+
+    @Test void send_retriesFailedShardOnOtherNodes() throws Exception {
+        b.error = new ConnectException();
+        List<Span> spans = spans(300);
+
+        sender.send(spans);
+
+        assertThat(b.sent).isEmpty();
+        assertThat(a.sent.size() + c.sent.size()).isEqualTo(300);
+        assertThat(sender.nodes[1].isHealthy(System.currentTimeMillis())).isFalse();
+    }
+
+    /** Spans a node wrote before failing must not be written again elsewhere. */
+    @Test void send_retriesOnlyUnsentSpansOfPartialFailure() throws Exception {
+        b.partial = true;
+        List<Span> spans = spans(300);
+
+        sender.send(spans);
+
+        List<Span> all = new ArrayList<>(a.sent);
+        all.addAll(b.sent);
+        all.addAll(c.sent);
+        assertThat(b.sent).isNotEmpty();
+        assertThat(all).hasSize(300).containsExactlyInAnyOrderElementsOf(spans);
+    }
+
+    @Test void send_allEjected() {
+        IOException error = new ConnectException();
+        a.error = b.error = c.error = error;
+        List<Span> spans = spans(300);
+
+        assertThatThrownBy(() -> sender.send(spans))
+                .isInstanceOfSatisfying(AsyncSpanWriter.PartialSendException.class, e -> {
+                    assertThat(e.unsent).containsExactlyInAnyOrderElementsOf(spans);
+                    assertThat(e).hasCause(error);
+                });
+        assertThat(sender.hasHealthyNode(System.currentTimeMillis())).isFalse();
+    }
+
+    @Test void send_allEjectedKeepsWhatWasWritten() {
+        a.error = c.error = new ConnectException();
+        b.partial = true;
+        List<Span> spans = spans(300);
+
+        assertThatThrownBy(() -> sender.send(spans))
+                .isInstanceOfSatisfying(AsyncSpanWriter.PartialSendException.class, e -> {
+                    assertThat(e.unsent).hasSize(300 - b.sent.size())
+                            .doesNotContainAnyElementsOf(b.sent);
+                });
+    }
+
+    int[] routes(List<Span> spans, long now) {
+        int[] routes = new int[spans.size()];
+        for (int i = 0; i < routes.length; i++) {
+            routes[i] = sender.route(spans.get(i).traceId(), now);
+        }
+        return routes;
+    }
+
+    static List<Span> spans(int count) {
+        List<Span> spans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            spans.add(Span.newBuilder().traceId(0L, i * 0x9e3779b97f4a7c15L).id(1).name("get")
+                    .build());
+        }
+        return spans;
+    }
+
+    static final class FakeSender implements AsyncSpanWriter.SpanSender {
+        final List<Span> sent = new ArrayList<>();
+        IOException error;
+        /** Writes the first half of the first batch, then fails like a lost HEC request. */
+        boolean partial;
+
+        @Override public void send(List<Span> spans) throws IOException {
+            if (error != null) throw error;
+            if (partial) {
+                partial = false;
+                error = new ConnectException();
+                int half = spans.size() / 2;
+                sent.addAll(spans.subList(0, half));
+                throw new AsyncSpanWriter.PartialSendException("1 of 2 HEC requests failed",
+                        new ArrayList<>(spans.subList(half, spans.size())), error);
+            }
+            sent.addAll(spans);
+        }
+
+        @Override public void close() {
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+    final SingleFlight singleFlight = new SingleFlight();
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final AtomicInteger searches = new AtomicInteger();
+    final CountDownLatch leaderRunning = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test void waiterGetsLeadersResult() throws Exception {
+        Future<List<String>> leader = executor.submit(() -> singleFlight.run("key", () -> false,
+                () -> blockedSearch("leader")));
+        leaderRunning.await();
+        Future<List<String>> waiter = executor.submit(() -> singleFlight.run("key", () -> false,
+                () -> search("waiter")));
+        awaitCoalesced(1);
+        release.countDown();
+
+        assertThat(leader.get()).containsExactly("leader");
+        assertThat(waiter.get()).containsExactly("leader");
+        assertThat(searches).hasValue(1);
+        assertThat(singleFlight.flights).isEmpty();
+    }
+
+    @Test void eachCallerGetsItsOwnList() throws Exception {
+        List<String> result = new ArrayList<>(List.of("b", "a"));
+        List<String> copy = singleFlight.run("key", () -> false, () -> result);
+
+        copy.sort(null);
+
+        assertThat(result).containsExactly("b", "a");
+    }
+
+    @Test void leaderCanceled_waiterSearchesItself() throws Exception {
+        AtomicBoolean leaderCanceled = new AtomicBoolean();
+        Future<List<String>> leader = executor.submit(() -> singleFlight.run("key",
+                leaderCanceled::get, () -> {
+                    blockedSearch("leader");
+                    throw new IOException("Canceled");
+                }));
+        leaderRunning.await();
+        Future<List<String>> waiter = executor.submit(() -> singleFlight.run("key", () -> false,
+                () -> search("waiter")));
+        awaitCoalesced(1);
+        leaderCanceled.set(true);
+        release.countDown();
+
+        assertThat(waiter.get()).containsExactly("waiter");
+        assertThatThrownBy(leader::get).hasCauseInstanceOf(IOException.class);
+        assertThat(searches).hasValue(2);
+    }
+
+    @Test void leaderFailed_waiterFailsToo() throws Exception {
+        Future<List<String>> leader = executor.submit(() -> singleFlight.run("key", () -> false,
+                () -> {
+                    blockedSearch("leader");
+                    throw new IOException("Splunk is down");
+                }));
+        leaderRunning.await();
+        Future<List<String>> waiter = executor.submit(() -> singleFlight.run("key", () -> false,
+                () -> search("waiter")));
+        awaitCoalesced(1);
+        release.countDown();
+
+        assertThatThrownBy(waiter::get).cause()
+                .isInstanceOf(IOException.class)
+                .hasMessage("Splunk is down");
+        assertThatThrownBy(leader::get).hasCauseInstanceOf(IOException.class);
+        assertThat(searches).hasValue(1);
+    }
+
+    @Test void waiterCanceled() throws Exception {
+        AtomicBoolean waiterCanceled = new AtomicBoolean();
+        executor.submit(() -> singleFlight.run("key", () -> false,
+                () -> blockedSearch("leader")));
+        leaderRunning.await();
+        Future<List<String>> waiter = executor.submit(() -> singleFlight.run("key",
+                waiterCanceled::get, () -> search("waiter")));
+        awaitCoalesced(1);
+        waiterCanceled.set(true);
+
+        assertThatThrownBy(waiter::get).cause()
+                .isInstanceOf(IOException.class)
+                .hasMessage("Canceled");
+        release.countDown();
+    }
+
+    @Test void differentKeysDontCoalesce() throws Exception {
+        assertThat(singleFlight.run("a", () -> false, () -> search("a"))).containsExactly("a");
+        assertThat(singleFlight.run("b", () -> false, () -> search("b"))).containsExactly("b");
+
+        assertThat(searches).hasValue(2);
+        assertThat(singleFlight.coalesced).hasValue(0);
+    }
+
+    List<String> search(String result) {
+        searches.incrementAndGet();
+        return List.of(result);
+    }
+
+    List<String> blockedSearch(String result) throws IOException {
+        searches.incrementAndGet();
+        leaderRunning.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return List.of(result);
+    }
+
+    void awaitCoalesced(long count) throws InterruptedException {
+        while (singleFlight.coalesced.get() < count) Thread.sleep(1L);
+    }
+}
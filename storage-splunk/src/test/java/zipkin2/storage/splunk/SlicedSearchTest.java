@@ -0,0 +1,189 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.storage.splunk.SplunkSpanStore.RawSplunkSearchCall;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SlicedSearchTest {
+    static final long HOUR = 3_600_000L;
+
+    /** Slices searched, by end timestamp. */
+    final Map<Long, Slice> searched = new ConcurrentHashMap<>();
+    SplunkStorage storage;
+
+    @AfterEach void close() throws IOException {
+        if (storage != null) storage.close();
+    }
+
+    @Test void slices_newestFirst() {
+        assertThat(SlicedSearch.slices(10 * HOUR, 3 * HOUR, HOUR))
+                .containsExactly(new long[] {10 * HOUR, HOUR}, new long[] {9 * HOUR, HOUR},
+                        new long[] {8 * HOUR, HOUR});
+    }
+
+    @Test void slices_lastSliceIsPartial() {
+        assertThat(SlicedSearch.slices(10 * HOUR, 2 * HOUR + 1000, HOUR))
+                .containsExactly(new long[] {10 * HOUR, HOUR}, new long[] {9 * HOUR, HOUR},
+                        new long[] {8 * HOUR, 1000});
+    }
+
+    @Test void slices_stopAtEpoch() {
+        assertThat(SlicedSearch.slices(HOUR + 1000, 5 * HOUR, HOUR))
+                .containsExactly(new long[] {HOUR + 1000, HOUR}, new long[] {1000, 1000});
+    }
+
+    @Test void run_allSlicesNewestFirst() throws Exception {
+        SlicedSearch<String> search = search(3, 4, results -> false, this::found);
+
+        assertThat(search.run()).containsExactly(
+                List.of("10"), List.of("9"), List.of("8"), List.of("7"));
+        assertThat(searched).hasSize(4);
+    }
+
+    @Test void run_stopsOnceNewestAreEnough() throws Exception {
+        SlicedSearch<String> search = search(1, 4, results -> results.size() == 2, this::found);
+
+        assertThat(search.run()).containsExactly(List.of("10"), List.of("9"));
+        assertThat(searched).containsOnlyKeys(10 * HOUR, 9 * HOUR);
+    }
+
+    @Test void run_cancelsOlderSlicesOnceEnough() throws Exception {
+        SlicedSearch<String> search = search(2, 2, results -> results.size() == 1,
+                slice -> slice.endTs == 10 * HOUR ? found(slice) : untilCanceled(slice));
+
+        assertThat(search.run()).containsExactly(List.of("10"));
+        if (searched.containsKey(9 * HOUR)) { // unless the newest finished before it started
+            assertThat(searched.get(9 * HOUR).isCanceled()).isTrue();
+        }
+    }
+
+    @Test void run_failsWhenNewestSliceFails() {
+        SlicedSearch<String> search = search(1, 3, results -> false, slice -> {
+            throw new IOException("Splunk is down");
+        });
+
+        assertThatThrownBy(search::run)
+                .isInstanceOf(IOException.class)
+                .hasMessage("Splunk is down");
+        assertThat(searched).hasSize(1); // slices after a failure aren't started
+    }
+
+    @Test void run_failsOnGapBeforeEnough() {
+        SlicedSearch<String> search = search(1, 3, results -> results.size() == 3, slice -> {
+            if (slice.endTs == 9 * HOUR) throw new IOException("Splunk is down");
+            return found(slice);
+        });
+
+        assertThatThrownBy(search::run).hasMessage("Splunk is down");
+    }
+
+    @Test void run_ignoresFailureAfterEnough() throws Exception {
+        SlicedSearch<String> search = search(2, 2, results -> results.size() == 1, slice -> {
+            if (slice.endTs == 9 * HOUR) throw new IOException("Splunk is down");
+            return found(slice);
+        });
+
+        assertThat(search.run()).containsExactly(List.of("10"));
+    }
+
+    @Test void run_propagatesRuntimeExceptions() {
+        SlicedSearch<String> search = search(1, 2, results -> false, slice -> {
+            throw new IllegalStateException("bug");
+        });
+
+        assertThatThrownBy(search::run).isInstanceOf(IllegalStateException.class);
+    }
+
+    /** Like a call canceled while slices run, which cancels its search too. */
+    @Test void run_canceled() throws Exception {
+        AtomicBoolean canceled = new AtomicBoolean();
+        SlicedSearch<String> search = new SlicedSearch<>(storage(2),
+                SlicedSearch.slices(10 * HOUR, 2 * HOUR, HOUR),
+                (endTs, lookback) -> new Slice(storage, endTs, this::untilCanceled),
+                results -> false, canceled::get);
+        Thread canceler = new Thread(() -> {
+            while (searched.isEmpty()) Thread.onSpinWait();
+            canceled.set(true);
+            search.cancel();
+        });
+        canceler.start();
+
+        assertThatThrownBy(search::run).isInstanceOf(IOException.class).hasMessage("Canceled");
+        canceler.join();
+    }
+
+    SlicedSearch<String> search(int concurrency, int hours,
+                                Predicate<List<List<String>>> enough,
+                                Slice.Search search) {
+        return new SlicedSearch<>(storage(concurrency),
+                SlicedSearch.slices(10 * HOUR, hours * HOUR, HOUR),
+                (endTs, lookback) -> new Slice(storage, endTs, search), enough, () -> false);
+    }
+
+    SplunkStorage storage(int concurrency) {
+        return storage = SplunkStorage.builder()
+                .token("token")
+                .nameCatalog(false)
+                .timeSliceConcurrency(concurrency)
+                .build();
+    }
+
+    List<String> found(Slice slice) {
+        return List.of(Long.toString(slice.endTs / HOUR));
+    }
+
+    List<String> untilCanceled(Slice slice) throws IOException {
+        while (!slice.isCanceled()) {
+            try {
+                Thread.sleep(1L);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        throw new IOException("Canceled");
+    }
+
+    /** A slice answered by a function instead of Splunk. */
+    final class Slice extends RawSplunkSearchCall<String> {
+        interface Search {
+            List<String> run(Slice slice) throws IOException;
+        }
+
+        final long endTs;
+        final Search search;
+
+        Slice(SplunkStorage storage, long endTs, Search search) {
+            super(storage, "slice " + endTs);
+            this.endTs = endTs;
+            this.search = search;
+        }
+
+        @Override List<String> search() throws IOException {
+            searched.put(endTs, this);
+            return search.run(this);
+        }
+
+        @Override List<String> process(JsonResultsReader results) {
+            throw new AssertionError();
+        }
+
+        @Override public Call<List<String>> clone() {
+            return new Slice(storage, endTs, search);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.WriteBuffer;
+import zipkin2.storage.splunk.internal.OtelResourceSpansWriter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpanBatchEncoderTest {
+    static final byte[] NEWLINE = {'\n'};
+    static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+    static final Endpoint BACKEND = Endpoint.newBuilder().serviceName("backend").build();
+    static final Span SPAN = Span.newBuilder()
+            .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+            .id("5b4185666d50f68b")
+            .name("get \"/\"")
+            .kind(Span.Kind.SERVER)
+            .localEndpoint(FRONTEND)
+            .timestamp(1472470996199000L)
+            .duration(207000L)
+            .putTag("http.url", "/search?q=caf\u00e9\n\ud83d\ude00")
+            .putTag("error", "back\\slash")
+            .build();
+
+    @Test void zipkin_matchesCodec() throws Exception {
+        List<Span> spans = spans(3);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (Span span : spans) {
+            expected.write(SpanBytesEncoder.JSON_V2.encode(span));
+            expected.write(NEWLINE);
+        }
+
+        assertThat(encode(SpanBatchEncoder.zipkin(NEWLINE), spans))
+                .isEqualTo(expected.toByteArray());
+    }
+
+    /** The codec sizes U+2028 two bytes too long, which mustn't leave zeros in the batch. */
+    @Test void zipkin_lineSeparator() {
+        List<Span> spans = List.of(SPAN.toBuilder().name("a\u2028b").build(),
+                SPAN.toBuilder().id(2).putTag("text", "\u2029").build());
+
+        byte[] encoded = encode(SpanBatchEncoder.zipkin(NEWLINE), spans);
+
+        assertThat(new String(encoded, UTF_8)).doesNotContain("\u0000").endsWith("}\n");
+        List<Span> decoded = new ArrayList<>();
+        for (String line : new String(encoded, UTF_8).split("\n")) {
+            decoded.add(SpanBytesDecoder.JSON_V2.decodeOne(line.getBytes(UTF_8)));
+        }
+        assertThat(decoded).isEqualTo(spans);
+    }
+
+    @Test void encode_overwritesLongerBatch() {
+        SpanBatchEncoder<Span> encoder = SpanBatchEncoder.zipkin(NEWLINE);
+        encoder.encode(spans(3));
+
+        assertThat(Arrays.copyOf(encoder.buffer, encoder.encode(spans(1))))
+                .isEqualTo(encode(SpanBatchEncoder.zipkin(NEWLINE), spans(1)));
+    }
+
+    @Test void otel_documentPerService() throws Exception {
+        Span backend = SPAN.toBuilder().id(9).localEndpoint(BACKEND).build();
+        List<Span> spans = List.of(SPAN, backend, SPAN.toBuilder().id(2).build());
+        OtelResourceSpansWriter writer = new OtelResourceSpansWriter();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (List<Span> service : OtelResourceSpansWriter.groupByService(spans)) {
+            byte[] document = new byte[writer.sizeInBytes(service)];
+            writer.write(service, WriteBuffer.wrap(document, 0));
+            expected.write(document);
+            expected.write(NEWLINE);
+        }
+
+        assertThat(encode(SpanBatchEncoder.otel(NEWLINE), spans))
+                .isEqualTo(expected.toByteArray());
+    }
+
+    @Test void encode_reusesBuffer() {
+        SpanBatchEncoder<Span> encoder = SpanBatchEncoder.zipkin(NEWLINE);
+        byte[] buffer = encoder.buffer;
+
+        encoder.encode(spans(2));
+        encoder.encode(spans(1));
+
+        assertThat(encoder.buffer).isSameAs(buffer);
+    }
+
+    @Test void encode_growsBufferForLargerBatch() {
+        SpanBatchEncoder<Span> encoder = SpanBatchEncoder.zipkin(NEWLINE);
+        List<Span> spans = spans(100);
+
+        int length = encoder.encode(spans);
+
+        assertThat(length).isGreaterThan(SpanBatchEncoder.INITIAL_BYTES);
+        assertThat(encoder.buffer).hasSize(length);
+        byte[] grown = encoder.buffer;
+        encoder.encode(spans(1)); // smaller batches keep the grown buffer
+        assertThat(encoder.buffer).isSameAs(grown);
+    }
+
+    @Test void encode_dropsOversizedBuffer() {
+        SpanBatchEncoder<Span> encoder = SpanBatchEncoder.zipkin(NEWLINE);
+        char[] value = new char[SpanBatchEncoder.MAX_RETAINED_BYTES];
+        Arrays.fill(value, 'a');
+
+        encoder.encode(List.of(SPAN.toBuilder().putTag("big", new String(value)).build()));
+        assertThat(encoder.buffer.length).isGreaterThan(SpanBatchEncoder.MAX_RETAINED_BYTES);
+
+        int length = encoder.encode(spans(1));
+        assertThat(encoder.buffer).hasSize(SpanBatchEncoder.INITIAL_BYTES);
+        assertThat(Arrays.copyOf(encoder.buffer, length))
+                .isEqualTo(encode(SpanBatchEncoder.zipkin(NEWLINE), spans(1)));
+    }
+
+    @Test void encode_splitsAtMaxBytes() {
+        SpanBatchEncoder<Span> encoder = SpanBatchEncoder.zipkin(NEWLINE);
+        int spanBytes = SpanBytesEncoder.JSON_V2.sizeInBytes(SPAN) + 1;
+
+        assertThat(encoder.prepare(spans(5))).isEqualTo(5);
+        assertThat(encoder.encode(0, spanBytes * 2)).isEqualTo(2);
+        assertThat(encoder.length).isEqualTo(spanBytes * 2);
+        assertThat(encoder.encode(2, spanBytes * 2 + 1)).isEqualTo(4);
+        assertThat(encoder.encode(4, 1)).isEqualTo(5); // at least one event
+    }
+
+    @Test void addSpans_ofServiceEvents() {
+        SpanBatchEncoder<List<Span>> encoder = SpanBatchEncoder.otel(NEWLINE);
+        Span backend = SPAN.toBuilder().id(9).localEndpoint(BACKEND).build();
+        Span frontend = SPAN.toBuilder().id(2).build();
+        List<Span> spans = new ArrayList<>();
+
+        assertThat(encoder.prepare(List.of(SPAN, backend, frontend))).isEqualTo(2);
+        encoder.addSpans(1, 2, spans);
+
+        assertThat(spans).containsExactly(backend);
+    }
+
+    static byte[] encode(SpanBatchEncoder<?> encoder, List<Span> spans) {
+        return Arrays.copyOf(encoder.buffer, encoder.encode(spans));
+    }
+
+    static List<Span> spans(int count) {
+        List<Span> spans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) spans.add(SPAN.toBuilder().id(i).build());
+        return spans;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpanSpoolTest {
+    /** Fits three 12-byte records after the header. */
+    static final int SEGMENT_BYTES = SpanSpool.HEADER_BYTES + 3 * (SpanSpool.LENGTH_BYTES + 12);
+
+    @TempDir Path directory;
+    SpanSpool spool;
+
+    @AfterEach void close() {
+        if (spool != null) spool.close();
+    }
+
+    @Test void appendAndPeek() throws Exception {
+        spool = open(1024L);
+
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.peek()).isNull();
+        assertThat(spool.append(record(1))).isTrue();
+        assertThat(spool.append(record(2))).isTrue();
+
+        assertThat(spool.isEmpty()).isFalse();
+        assertThat(replay()).containsExactly("record-00001", "record-00002");
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test void replaysAfterRestart() throws Exception {
+        spool = open(1024L);
+        spool.append(record(1));
+        spool.append(record(2));
+        spool.close();
+
+        spool = open(1024L);
+        assertThat(replay()).containsExactly("record-00001", "record-00002");
+    }
+
+    @Test void commitSurvivesRestart() throws Exception {
+        spool = open(1024L);
+        spool.append(record(1));
+        spool.append(record(2));
+        spool.peek();
+        spool.commit();
+        spool.close();
+
+        spool = open(1024L);
+        assertThat(replay()).containsExactly("record-00002");
+    }
+
+    /** A crash after the bytes of a record, but before its length, loses only that record. */
+    @Test void recoversTornRecord() throws Exception {
+        spool = open(1024L);
+        spool.append(record(1));
+        spool.close();
+        Path segment = segments().get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(SpanSpool.HEADER_BYTES + 2 * SpanSpool.LENGTH_BYTES + 12);
+            file.write(record(2)); // length left zero
+        }
+
+        spool = open(1024L);
+        spool.append(record(3)); // overwrites the torn record
+        spool.close();
+
+        spool = open(1024L);
+        assertThat(replay()).containsExactly("record-00001", "record-00003");
+    }
+
+    @Test void ignoresLengthPastSegment() throws Exception {
+        spool = open(1024L);
+        spool.append(record(1));
+        spool.close();
+        try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            file.seek(SpanSpool.HEADER_BYTES + SpanSpool.LENGTH_BYTES + 12);
+            file.writeInt(SEGMENT_BYTES);
+        }
+
+        spool = open(1024L);
+        assertThat(replay()).containsExactly("record-00001");
+    }
+
+    @Test void deletesUnreadableSegment() throws Exception {
+        Files.write(directory.resolve(SpanSpool.fileName(7)), new byte[SEGMENT_BYTES]);
+
+        spool = open(1024L);
+
+        assertThat(segments()).isEmpty();
+        assertThat(spool.peek()).isNull();
+    }
+
+    @Test void rotatesSegments() throws Exception {
+        spool = open(1024L);
+        for (int i = 1; i <= 4; i++) spool.append(record(i));
+
+        assertThat(segments()).extracting(path -> path.getFileName().toString())
+                .containsExactly(SpanSpool.fileName(0), SpanSpool.fileName(1));
+        assertThat(spool.sizeInBytes()).isEqualTo(2L * SEGMENT_BYTES);
+        assertThat(replay())
+                .containsExactly("record-00001", "record-00002", "record-00003", "record-00004");
+        // the segment still appended to is kept
+        assertThat(segments()).extracting(path -> path.getFileName().toString())
+                .containsExactly(SpanSpool.fileName(1));
+    }
+
+    @Test void rotatesAfterRestart() throws Exception {
+        spool = open(1024L);
+        for (int i = 1; i <= 4; i++) spool.append(record(i));
+        spool.close();
+
+        spool = open(1024L);
+        spool.append(record(5));
+        assertThat(replay()).containsExactly(
+                "record-00001", "record-00002", "record-00003", "record-00004", "record-00005");
+    }
+
+    @Test void refusesPastMaxBytes() throws Exception {
+        spool = open(2L * SEGMENT_BYTES);
+        for (int i = 1; i <= 6; i++) assertThat(spool.append(record(i))).isTrue();
+
+        assertThat(spool.append(record(7))).isFalse();
+        assertThat(spool.sizeInBytes()).isEqualTo(2L * SEGMENT_BYTES);
+
+        spool.peek();
+        spool.commit();
+        assertThat(spool.append(record(7))).isFalse(); // the first segment isn't replayed yet
+        for (int i = 0; i < 2; i++) {
+            spool.peek();
+            spool.commit();
+        }
+        assertThat(spool.append(record(7))).isTrue();
+    }
+
+    @Test void refusesRecordLargerThanSegment() throws Exception {
+        spool = open(1024L);
+
+        assertThat(spool.append(new byte[SEGMENT_BYTES])).isFalse();
+        assertThat(segments()).isEmpty();
+    }
+
+    SpanSpool open(long maxBytes) throws Exception {
+        return new SpanSpool(directory, maxBytes, SEGMENT_BYTES);
+    }
+
+    /** Reads and commits every record. */
+    List<String> replay() throws Exception {
+        List<String> records = new ArrayList<>();
+        ByteBuffer record;
+        while ((record = spool.peek()) != null) {
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            records.add(new String(bytes, UTF_8));
+            spool.commit();
+        }
+        return records;
+    }
+
+    List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    static byte[] record(int i) {
+        return String.format("record-%05d", i).getBytes(UTF_8);
+    }
+}
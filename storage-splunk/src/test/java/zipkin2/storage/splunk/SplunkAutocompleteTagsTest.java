@@ -0,0 +1,174 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.splunk.StubService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SplunkAutocompleteTagsTest {
+    static final String DATA_PATH =
+            "/servicesNS/nobody/search/storage/collections/data/zipkin_autocomplete";
+
+    final StubService service = new StubService();
+    final SplunkStorage storage = SplunkStorage.builder().token("token").nameCatalog(false).build();
+    final SplunkAutocompleteTags tags = new SplunkAutocompleteTags(storage,
+            List.of("environment", "region"), 2, "zipkin_autocomplete");
+
+    SplunkAutocompleteTagsTest() {
+        storage.splunk = service;
+    }
+
+    @AfterEach void close() throws Exception {
+        storage.close();
+    }
+
+    @Test void record_countsConfiguredKeys() {
+        tags.record(List.of(
+                span(Map.of("environment", "prod", "other", "x")),
+                span(Map.of("environment", "prod", "region", "")),
+                span(Map.of("environment", "dev", "region", "x".repeat(257)))));
+
+        assertThat(counts(tags.values.get("environment"))).isEqualTo(Map.of("prod", 2L, "dev", 1L));
+        assertThat(tags.values.get("region")).isEmpty();
+        assertThat(counts(tags.unsaved.get("environment")))
+                .isEqualTo(Map.of("prod", 2L, "dev", 1L));
+        assertThat(tags.values).doesNotContainKey("other");
+    }
+
+    @Test void record_prunesAtTwiceCardinality() {
+        record("a", 3);
+        record("b", 2);
+        record("c", 1);
+        record("d", 1);
+        assertThat(tags.values.get("environment")).containsOnlyKeys("a", "b", "c", "d");
+
+        record("e", 1);
+
+        assertThat(tags.values.get("environment")).containsOnlyKeys("a", "b", "e");
+    }
+
+    @Test void getValues_createsMissingCollection() throws Exception {
+        record("a", 1);
+        record("b", 3);
+        record("c", 2);
+
+        assertThat(tags.getValues("environment").execute()).containsExactly("b", "c");
+        assertThat(tags.getValues("other").execute()).isEmpty();
+        assertThat(service.requests).containsExactly("GET " + DATA_PATH,
+                "POST /servicesNS/nobody/search/storage/collections/config");
+    }
+
+    @Test void getValues_mergesSavedCounts() throws Exception {
+        service.putDocument("environment", "staging", 10L);
+        service.putDocument("environment", "prod", 1L);
+        service.putDocument("unknown", "x", 100L);
+        record("prod", 2);
+
+        assertThat(tags.getValues("environment").execute()).containsExactly("staging", "prod");
+        assertThat(tags.values.get("environment").get("prod").sum()).isEqualTo(3L);
+        assertThat(tags.values).doesNotContainKey("unknown");
+    }
+
+    @Test void save_addsCountsSinceLastSave() throws Exception {
+        service.putDocument("environment", "prod", 5L);
+        record("prod", 2);
+        record("dev", 1);
+
+        tags.save().execute();
+
+        assertThat(service.count("environment", "prod")).isEqualTo(7L);
+        assertThat(service.count("environment", "dev")).isEqualTo(1L);
+        assertThat(tags.unsaved.get("environment")).isEmpty();
+
+        record("prod", 1);
+        tags.save().execute();
+
+        assertThat(service.count("environment", "prod")).isEqualTo(8L);
+        assertThat(service.count("environment", "dev")).isEqualTo(1L);
+    }
+
+    /** Servers that ingest nothing still see what others saved. */
+    @Test void save_reloadsWithoutWriting() throws Exception {
+        service.putDocument("environment", "prod", 5L);
+        tags.save().execute();
+        service.putDocument("region", "eu", 3L);
+
+        tags.save().execute();
+
+        assertThat(tags.getValues("region").execute()).containsExactly("eu");
+        assertThat(service.requests).noneMatch(request -> request.startsWith("POST " + DATA_PATH))
+                .allMatch(request -> request.equals("GET " + DATA_PATH));
+    }
+
+    @Test void save_keepsCountsThatFailed() throws Exception {
+        service.putDocument("environment", "prod", 5L);
+        record("prod", 2);
+        service.batchSaveError = new IllegalStateException("HTTP 503");
+
+        assertThatThrownBy(() -> tags.save().execute()).hasMessage("HTTP 503");
+        assertThat(counts(tags.unsaved.get("environment"))).isEqualTo(Map.of("prod", 2L));
+        record("prod", 1);
+
+        tags.save().execute();
+        assertThat(service.count("environment", "prod")).isEqualTo(8L);
+    }
+
+    @Test void save_deletesRareDocuments() throws Exception {
+        for (int i = 1; i <= 5; i++) service.putDocument("environment", "v" + i, i);
+        record("v5", 1);
+
+        tags.save().execute();
+
+        assertThat(service.requests).contains("DELETE " + DATA_PATH + "?query="
+                + "%7B%22key%22%3A%22environment%22%2C%22count%22%3A%7B%22%24lt%22%3A2%7D%7D");
+        assertThat(service.documents).containsOnlyKeys(
+                "environment=v2", "environment=v3", "environment=v4", "environment=v5");
+    }
+
+    /** Counts made while a save swaps the unsaved counts mustn't be lost. */
+    @Test void record_concurrentWithSave() throws Exception {
+        int threads = 4, spansPerThread = 20_000;
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < spansPerThread; i++) record("prod", 1);
+            });
+            recorders.add(thread);
+            thread.start();
+        }
+        while (recorders.stream().anyMatch(Thread::isAlive)) tags.sync();
+        for (Thread thread : recorders) thread.join();
+        tags.sync();
+
+        assertThat(service.count("environment", "prod")).isEqualTo((long) threads * spansPerThread);
+    }
+
+    void record(String environment, int count) {
+        List<Span> spans = List.of(span(Map.of("environment", environment)));
+        for (int i = 0; i < count; i++) tags.record(spans);
+    }
+
+    static Span span(Map<String, String> tags) {
+        Span.Builder builder = Span.newBuilder().traceId("1").id("1").name("get");
+        tags.forEach(builder::putTag);
+        return builder.build();
+    }
+
+    static Map<String, Long> counts(Map<String, LongAdder> counts) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        counts.forEach((value, count) -> result.put(value, count.sum()));
+        return result;
+    }
+}
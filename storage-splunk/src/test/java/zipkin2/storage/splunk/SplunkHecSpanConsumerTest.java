@@ -0,0 +1,240 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import com.linecorp.armeria.common.AggregatedHttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.server.ServerBuilder;
+import com.linecorp.armeria.testing.junit5.server.ServerExtension;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/** Sends to a stand-in HEC endpoint that records requests and answers from a script. */
+class SplunkHecSpanConsumerTest {
+    static final Queue<AggregatedHttpRequest> requests = new LinkedBlockingQueue<>();
+    /** Responses to the next requests, or 200 with an ack ID when empty. */
+    static final Queue<HttpResponse> responses = new ConcurrentLinkedQueue<>();
+
+    @RegisterExtension static final ServerExtension hec = new ServerExtension() {
+        @Override protected void configure(ServerBuilder sb) {
+            sb.service("prefix:/services/collector", (ctx, req) -> HttpResponse.of(
+                    req.aggregate().thenApply(request -> {
+                        requests.add(request);
+                        HttpResponse response = responses.poll();
+                        if (response != null) return response;
+                        return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                                "{\"text\":\"Success\",\"code\":0,\"ackId\":7}");
+                    })));
+        }
+    };
+
+    static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+    static final Span SPAN = Span.newBuilder()
+            .traceId("463ac35c9f6413ad")
+            .id("a2fb4a1d1a96d312")
+            .name("get")
+            .localEndpoint(FRONTEND)
+            .timestamp(1472470996199000L)
+            .duration(207000L)
+            .build();
+
+    SplunkStorage storage;
+    SplunkHecSpanConsumer.HecSender sender;
+
+    @BeforeEach void clear() {
+        requests.clear();
+        responses.clear();
+    }
+
+    @AfterEach void close() throws IOException {
+        if (sender != null) sender.close();
+        if (storage != null) storage.close();
+    }
+
+    SplunkHecSpanConsumer.HecSender sender(SplunkStorage.Builder builder) {
+        storage = builder.ingestMode("hec")
+                .hecUrl(hec.httpUri().toString())
+                .hecToken("token")
+                .dataModel("zipkin")
+                .nameCatalog(false)
+                .build();
+        return sender = new SplunkHecSpanConsumer.HecSender(storage, storage.hecUrls.get(0));
+    }
+
+    @Test void event_postsEnvelopes() throws Exception {
+        sender(SplunkStorage.builder().indexName("spans")).send(List.of(SPAN));
+
+        AggregatedHttpRequest request = requests.remove();
+        assertThat(request.path()).isEqualTo("/services/collector/event");
+        assertThat(request.headers().get("authorization")).isEqualTo("Splunk token");
+        assertThat(request.headers().get("content-encoding")).isEqualTo("gzip");
+        assertThat(request.headers().get("x-splunk-request-channel")).isNotEmpty();
+        assertThat(gunzip(request)).isEqualTo("{\"index\":\"spans\",\"source\":\"zipkin-server\","
+                + "\"sourcetype\":\"span\",\"event\":{\"traceId\":\"463ac35c9f6413ad\","
+                + "\"id\":\"a2fb4a1d1a96d312\",\"name\":\"get\",\"timestamp\":1472470996199000,"
+                + "\"duration\":207000,\"localEndpoint\":{\"serviceName\":\"frontend\"}},"
+                + "\"time\":1472470996.199000}");
+        assertThat(requests).isEmpty();
+    }
+
+    @Test void raw_postsLines() throws Exception {
+        sender(SplunkStorage.builder().hecEndpoint("raw")).send(List.of(SPAN, SPAN));
+
+        AggregatedHttpRequest request = requests.remove();
+        assertThat(request.path()).isEqualTo("/services/collector/raw"
+                + "?index=zipkin&source=zipkin-server&sourcetype=span");
+        assertThat(gunzip(request).split("\n")).hasSize(2).allSatisfy(
+                line -> assertThat(line).startsWith("{\"traceId\":\"463ac35c9f6413ad\""));
+    }
+
+    @Test void splitsBatchAtBatchBytes() throws Exception {
+        sender(SplunkStorage.builder().hecBatchBytes(100)).send(List.of(SPAN, SPAN, SPAN));
+
+        assertThat(requests).hasSize(3);
+    }
+
+    @Test void ack_pollsUntilAcknowledged() throws Exception {
+        SplunkHecSpanConsumer.HecSender sender = sender(SplunkStorage.builder().hecAck(true));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"text\":\"Success\",\"code\":0,\"ackId\":7}"));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"acks\":{\"7\":false}}"));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"acks\":{\"7\":true}}"));
+
+        sender.send(List.of(SPAN));
+
+        AggregatedHttpRequest event = requests.remove();
+        String channel = event.headers().get("x-splunk-request-channel");
+        for (int i = 0; i < 2; i++) {
+            AggregatedHttpRequest ack = requests.remove();
+            assertThat(ack.path()).isEqualTo("/services/collector/ack?channel=" + channel);
+            assertThat(ack.contentUtf8()).isEqualTo("{\"acks\":[7]}");
+        }
+        assertThat(requests).isEmpty();
+    }
+
+    @Test void ack_failsWhenNotAcknowledgedInTime() {
+        SplunkHecSpanConsumer.HecSender sender =
+                sender(SplunkStorage.builder().hecAck(true).hecAckTimeout(500L));
+        for (int i = 0; i < 10; i++) {
+            responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                    i == 0 ? "{\"text\":\"Success\",\"code\":0,\"ackId\":7}"
+                            : "{\"acks\":{\"7\":false}}"));
+        }
+
+        assertThatThrownBy(() -> sender.send(List.of(SPAN)))
+                .isInstanceOf(IOException.class)
+                .hasMessage("1 HEC requests weren't acknowledged");
+    }
+
+    @Test void retriesWhenBusy() throws Exception {
+        SplunkHecSpanConsumer.HecSender sender = sender(SplunkStorage.builder());
+        responses.add(HttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE, MediaType.JSON_UTF_8,
+                "{\"text\":\"Server is busy\",\"code\":9}"));
+
+        sender.send(List.of(SPAN));
+
+        AggregatedHttpRequest busy = requests.remove(), retry = requests.remove();
+        assertThat(gunzip(retry)).isEqualTo(gunzip(busy));
+        assertThat(requests).isEmpty();
+    }
+
+    @Test void doesntRetryOtherErrors() {
+        SplunkHecSpanConsumer.HecSender sender = sender(SplunkStorage.builder());
+        responses.add(HttpResponse.of(HttpStatus.BAD_REQUEST, MediaType.JSON_UTF_8,
+                "{\"text\":\"Invalid data format\",\"code\":6}"));
+
+        assertThatThrownBy(() -> sender.send(List.of(SPAN)))
+                .isInstanceOf(IOException.class)
+                .hasMessageStartingWith("HEC responded 400 Bad Request");
+        assertThat(requests).hasSize(1);
+    }
+
+    /** The first request was accepted, so only the spans of the second are handed back. */
+    @Test void partialFailure_onlyFailedRequestIsUnsent() throws Exception {
+        SplunkHecSpanConsumer.HecSender sender =
+                sender(SplunkStorage.builder().hecBatchBytes(100).hecMaxInFlight(1));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"text\":\"Success\",\"code\":0}"));
+        responses.add(HttpResponse.of(HttpStatus.BAD_REQUEST, MediaType.JSON_UTF_8,
+                "{\"text\":\"Invalid data format\",\"code\":6}"));
+        List<Span> spans = spans(3);
+
+        assertThatThrownBy(() -> sender.send(spans))
+                .isInstanceOfSatisfying(AsyncSpanWriter.PartialSendException.class,
+                        e -> assertThat(e.unsent).containsExactly(spans.get(1)));
+        assertThat(requests).hasSize(3);
+    }
+
+    @Test void partialFailure_notResentByWriter() throws Exception {
+        SplunkHecSpanConsumer.HecSender sender =
+                sender(SplunkStorage.builder().hecBatchBytes(100).hecMaxInFlight(1));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"text\":\"Success\",\"code\":0}"));
+        responses.add(HttpResponse.of(HttpStatus.BAD_REQUEST, MediaType.JSON_UTF_8,
+                "{\"text\":\"Invalid data format\",\"code\":6}"));
+        AsyncSpanWriter writer = new AsyncSpanWriter(sender, 10, 10, 60000L, null);
+
+        writer.flush(new ArrayList<>(spans(3)));
+
+        assertThat(requests).hasSize(3);
+        assertThat(gunzip(requests.remove())).contains("\"id\":\"0000000000000001\"");
+        assertThat(writer.sentSpans.get()).isEqualTo(2);
+        assertThat(writer.failedSpans.get()).isEqualTo(1);
+    }
+
+    @Test void partialFailure_unacknowledgedRequestIsUnsent() throws Exception {
+        SplunkHecSpanConsumer.HecSender sender = sender(SplunkStorage.builder()
+                .hecBatchBytes(100).hecMaxInFlight(1).hecAck(true).hecAckTimeout(300L));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"text\":\"Success\",\"code\":0,\"ackId\":1}"));
+        responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                "{\"text\":\"Success\",\"code\":0,\"ackId\":2}"));
+        for (int i = 0; i < 10; i++) {
+            responses.add(HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
+                    i == 0 ? "{\"acks\":{\"1\":true,\"2\":false}}" : "{\"acks\":{\"2\":false}}"));
+        }
+        List<Span> spans = spans(2);
+
+        assertThatThrownBy(() -> sender.send(spans))
+                .isInstanceOfSatisfying(AsyncSpanWriter.PartialSendException.class,
+                        e -> assertThat(e.unsent).containsExactly(spans.get(1)));
+    }
+
+    static List<Span> spans(int count) {
+        List<Span> spans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) spans.add(SPAN.toBuilder().id(i).build());
+        return spans;
+    }
+
+    static String gunzip(AggregatedHttpRequest request) {
+        try (GZIPInputStream in =
+                     new GZIPInputStream(new ByteArrayInputStream(request.content().array()))) {
+            return new String(in.readAllBytes(), UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SplunkSpanConsumerTest {
+    final List<Span> sent = Collections.synchronizedList(new ArrayList<>());
+
+    final SplunkStorage storage = SplunkStorage.builder().token("token")
+            .queuedMaxSpans(2)
+            .autocompleteKeys(List.of("environment"))
+            .build();
+    final SplunkSpanConsumer consumer =
+            new SplunkSpanConsumer(storage, new AsyncSpanWriter.SpanSender() {
+                @Override public void send(List<Span> spans) {
+                    sent.addAll(spans);
+                }
+
+                @Override public void close() {
+                }
+            });
+
+    @AfterEach void close() throws Exception {
+        consumer.close();
+        storage.close();
+    }
+
+    @Test void accept_recordsQueuedBatch() throws Exception {
+        consumer.accept(spans("frontend", 2)).execute();
+
+        assertThat(storage.nameCatalog.services).containsOnlyKeys("frontend");
+        assertThat(storage.autocompleteTags.values.get("environment")).containsKey("prod");
+    }
+
+    @Test void accept_doesntRecordDroppedBatch() {
+        assertThatThrownBy(() -> consumer.accept(spans("frontend", 3)).execute())
+                .isInstanceOf(RejectedExecutionException.class);
+
+        assertThat(storage.nameCatalog.services).isEmpty();
+        assertThat(storage.autocompleteTags.values.get("environment")).isNullOrEmpty();
+    }
+
+    static List<Span> spans(String serviceName, int count) {
+        List<Span> spans = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            spans.add(Span.newBuilder().traceId("1").id(i).name("get")
+                    .localEndpoint(Endpoint.newBuilder().serviceName(serviceName).build())
+                    .putTag("environment", "prod")
+                    .build());
+        }
+        return spans;
+    }
+}
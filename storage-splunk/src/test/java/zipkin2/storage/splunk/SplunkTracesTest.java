@@ -0,0 +1,42 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SplunkTracesTest {
+
+    @Test void addSearchIds_128BitWithZeroHighBits() {
+        String requested = "0000000000000000463ac35c9f6413ad";
+        String key = TraceCache.key(requested);
+        Set<String> ids = new LinkedHashSet<>();
+
+        SplunkTraces.addSearchIds(key, Set.of(requested), ids);
+
+        assertThat(key).isEqualTo("463ac35c9f6413ad");
+        assertThat(ids).containsExactly(requested, key);
+    }
+
+    @Test void addSearchIds_64Bit() {
+        Set<String> ids = new LinkedHashSet<>();
+
+        SplunkTraces.addSearchIds("463ac35c9f6413ad", Set.of("463ac35c9f6413ad"), ids);
+
+        assertThat(ids).containsExactly("463ac35c9f6413ad", "0000000000000000463ac35c9f6413ad");
+    }
+
+    @Test void addSearchIds_128Bit() {
+        String traceId = "7180c278b62e8f6a216a2aea45d08fc9";
+        Set<String> ids = new LinkedHashSet<>();
+
+        SplunkTraces.addSearchIds(traceId, Set.of(traceId), ids);
+
+        assertThat(ids).containsExactly(traceId);
+    }
+}
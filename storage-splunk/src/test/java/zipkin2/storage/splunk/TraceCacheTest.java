@@ -0,0 +1,183 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import zipkin2.Call;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TraceCacheTest {
+    static final long MINUTE = 60_000L;
+    static final String TRACE_ID = "463ac35c9f6413ad";
+
+    final AtomicInteger searches = new AtomicInteger();
+
+    @Test void getTrace_searchesOnce() throws Exception {
+        TraceCache cache = new TraceCache(10, 1000, MINUTE);
+        List<Span> trace = trace(2, settled());
+
+        assertThat(getTrace(cache, TRACE_ID, trace)).isEqualTo(trace);
+        assertThat(getTrace(cache, TRACE_ID, trace)).isEqualTo(trace);
+
+        assertThat(searches).hasValue(1);
+        assertThat(cache.hits).hasValue(1);
+        assertThat(cache.misses).hasValue(1);
+    }
+
+    @Test void getTrace_normalizesId() throws Exception {
+        TraceCache cache = new TraceCache(10, 1000, MINUTE);
+        List<Span> trace = trace(1, settled());
+
+        getTrace(cache, TRACE_ID, trace);
+        getTrace(cache, " 0000000000000000463AC35C9F6413AD ", trace);
+
+        assertThat(searches).hasValue(1);
+    }
+
+    @Test void getTrace_invalidIdNotCached() throws Exception {
+        TraceCache cache = new TraceCache(10, 1000, MINUTE);
+
+        getTrace(cache, "not a trace", trace(1, settled()));
+
+        assertThat(cache.size()).isZero();
+        assertThat(cache.misses).hasValue(0);
+    }
+
+    @Test void getTrace_emptyNotCached() throws Exception {
+        TraceCache cache = new TraceCache(10, 1000, MINUTE);
+
+        getTrace(cache, TRACE_ID, List.of());
+        getTrace(cache, TRACE_ID, List.of());
+
+        assertThat(searches).hasValue(2);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test void getTrace_disabled() throws Exception {
+        TraceCache cache = new TraceCache(0, 1000, MINUTE);
+        List<Span> trace = trace(1, settled());
+
+        getTrace(cache, TRACE_ID, trace);
+        getTrace(cache, TRACE_ID, trace);
+
+        assertThat(searches).hasValue(2);
+        assertThat(cache.entries).isEmpty();
+    }
+
+    @Test void put_recentTraceExpiresAfterTtl() throws Exception {
+        TraceCache cache = new TraceCache(10, 1000, 1L);
+
+        cache.put("a", trace(1, System.currentTimeMillis()));
+        Thread.sleep(5L);
+
+        assertThat(cache.get("a")).isNull();
+        assertThat(cache.entries).isEmpty();
+        assertThat(cache.spanCount).isZero();
+        assertThat(cache.misses).hasValue(1);
+        assertThat(cache.evictions).hasValue(1);
+    }
+
+    @Test void put_settledTraceNeverExpires() throws Exception {
+        TraceCache cache = new TraceCache(10, 1000, 1L);
+
+        cache.put("a", trace(1, settled()));
+        Thread.sleep(5L);
+
+        assertThat(cache.entries.get("a").expiresAtMillis).isEqualTo(Long.MAX_VALUE);
+        assertThat(cache.get("a")).hasSize(1);
+    }
+
+    /** A late span makes a trace recent again, even if its other spans are old. */
+    @Test void put_newestSpanDecidesSettled() {
+        TraceCache cache = new TraceCache(10, 1000, MINUTE);
+        List<Span> trace = new ArrayList<>(trace(2, settled()));
+        trace.add(trace.get(0).toBuilder().id(9).timestamp(System.currentTimeMillis() * 1000L)
+                .build());
+
+        cache.put("a", trace);
+
+        assertThat(cache.entries.get("a").expiresAtMillis).isLessThan(Long.MAX_VALUE);
+    }
+
+    @Test void put_evictsLeastRecentlyUsed() {
+        TraceCache cache = new TraceCache(2, 1000, MINUTE);
+
+        cache.put("a", trace(1, settled()));
+        cache.put("b", trace(1, settled()));
+        cache.get("a");
+        cache.put("c", trace(1, settled()));
+
+        assertThat(cache.entries).containsOnlyKeys("a", "c");
+        assertThat(cache.evictions).hasValue(1);
+    }
+
+    @Test void put_evictsToMaxSpans() {
+        TraceCache cache = new TraceCache(10, 5, MINUTE);
+
+        cache.put("a", trace(2, settled()));
+        cache.put("b", trace(2, settled()));
+        cache.put("c", trace(3, settled()));
+
+        assertThat(cache.entries).containsOnlyKeys("b", "c");
+        assertThat(cache.spanCount).isEqualTo(5);
+        assertThat(cache.evictions).hasValue(1);
+    }
+
+    @Test void put_skipsTraceOverMaxSpans() {
+        TraceCache cache = new TraceCache(10, 5, MINUTE);
+        cache.put("a", trace(2, settled()));
+
+        cache.put("b", trace(6, settled()));
+
+        assertThat(cache.entries).containsOnlyKeys("a");
+        assertThat(cache.spanCount).isEqualTo(2);
+    }
+
+    @Test void put_replacingAdjustsSpanCount() {
+        TraceCache cache = new TraceCache(10, 100, MINUTE);
+
+        cache.put("a", trace(3, settled()));
+        cache.put("a", trace(2, settled()));
+
+        assertThat(cache.spanCount).isEqualTo(2);
+        assertThat(cache.evictions).hasValue(0);
+    }
+
+    @Test void put_copiesTrace() {
+        TraceCache cache = new TraceCache(10, 100, MINUTE);
+        List<Span> trace = new ArrayList<>(trace(2, settled()));
+
+        cache.put("a", trace);
+        trace.clear();
+
+        assertThat(cache.get("a")).hasSize(2);
+    }
+
+    List<Span> getTrace(TraceCache cache, String traceId, List<Span> trace) throws Exception {
+        return cache.getTrace(traceId, Call.create(trace).map(result -> {
+            searches.incrementAndGet();
+            return result;
+        })).execute();
+    }
+
+    /** Older than {@link TraceCache#SETTLED_AFTER_MILLIS}. */
+    static long settled() {
+        return System.currentTimeMillis() - TraceCache.SETTLED_AFTER_MILLIS - MINUTE;
+    }
+
+    static List<Span> trace(int spans, long timestampMillis) {
+        List<Span> trace = new ArrayList<>();
+        for (int i = 1; i <= spans; i++) {
+            trace.add(Span.newBuilder().traceId(TRACE_ID).id(i).name("get")
+                    .timestamp(timestampMillis * 1000L).build());
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.QueryRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TraceQueryPlannerTest {
+    static final long END_TS = 1472470996199L;
+    static final QueryRequest REQUEST = QueryRequest.newBuilder()
+            .serviceName("frontend")
+            .remoteServiceName("backend")
+            .spanName("get")
+            .parseAnnotationQuery("error and http.path=/a\"b")
+            .minDuration(100L)
+            .maxDuration(200L)
+            .endTs(END_TS)
+            .lookback(3600000L)
+            .limit(10)
+            .build();
+    static final QueryRequest UNFILTERED =
+            QueryRequest.newBuilder().endTs(END_TS).lookback(3600000L).limit(10).build();
+
+    final List<SplunkStorage> storages = new ArrayList<>();
+
+    @AfterEach void close() throws Exception {
+        for (SplunkStorage storage : storages) storage.close();
+    }
+
+    @Test void traceIdsQuery_zipkin() {
+        assertThat(TraceQueryPlanner.traceIdsQuery(zipkin(), REQUEST)).isEqualTo(
+                "search index=\"zipkin\" sourcetype=\"span\" earliest=1472467396 latest=1472470996"
+                        + " localEndpoint.serviceName=\"frontend\""
+                        + " remoteEndpoint.serviceName=\"backend\" name=\"get\""
+                        + " (\"tags.error\"=* OR \"annotations{}.value\"=\"error\")"
+                        + " \"tags.http.path\"=\"/a\\\"b\" duration>=100 duration<=200"
+                        + " | stats max(_time) as _time by traceId | sort 0 -_time | head 10"
+                        + " | fields traceId");
+    }
+
+    @Test void traceIdsQuery_zipkinUnfiltered() {
+        assertThat(TraceQueryPlanner.traceIdsQuery(zipkin(), UNFILTERED)).isEqualTo(
+                "search index=\"zipkin\" sourcetype=\"span\" earliest=1472467396 latest=1472470996"
+                        + " | stats max(_time) as _time by traceId | sort 0 -_time | head 10"
+                        + " | fields traceId");
+    }
+
+    /** Remote service names and durations are only checked after decoding. */
+    @Test void traceIdsQuery_otel() {
+        assertThat(TraceQueryPlanner.traceIdsQuery(otel(), REQUEST)).isEqualTo(
+                "search index=\"zipkin\" sourcetype=\"span\" earliest=1472467396 latest=1472470996"
+                        + " \"resource.attributes{}.value.stringValue\"=\"frontend\""
+                        + " \"scopeSpans{}.spans{}.name\"=\"get\" \"error\" \"/a\\\"b\""
+                        + " | rename \"scopeSpans{}.spans{}.traceId\" as traceId"
+                        + " | stats max(_time) as _time by traceId | sort 0 -_time | head 10"
+                        + " | fields traceId");
+    }
+
+    @Test void traceIdsQuery_indexedFields() {
+        SplunkStorage storage = indexedFields();
+
+        assertThat(TraceQueryPlanner.traceIdsQuery(storage, UNFILTERED))
+                .isEqualTo(IndexedFields.traceIdsQuery(storage, UNFILTERED))
+                .startsWith("| tstats ");
+    }
+
+    /** Tags are only in the raw JSON, so aren't index-time fields. */
+    @Test void traceIdsQuery_indexedFieldsWithTags() {
+        assertThat(TraceQueryPlanner.traceIdsQuery(indexedFields(), REQUEST))
+                .isEqualTo(TraceQueryPlanner.traceIdsQuery(zipkin(), REQUEST));
+    }
+
+    @Test void traceIdsQuery_quotesInput() {
+        SplunkStorage storage = storage(SplunkStorage.builder().dataModel("zipkin")
+                .indexName("zip\"kin"));
+        QueryRequest request = UNFILTERED.toBuilder()
+                .serviceName("a\" | delete")
+                .parseAnnotationQuery("x\\=y\"")
+                .build();
+
+        assertThat(TraceQueryPlanner.traceIdsQuery(storage, request))
+                .startsWith("search index=\"zip\\\"kin\" sourcetype=\"span\"")
+                .contains(" localEndpoint.serviceName=\"a\\\" | delete\"")
+                .contains(" \"tags.x\\\\\"=\"y\\\"\" |");
+    }
+
+    @Test void fetchQuery_widensRange() {
+        assertThat(TraceQueryPlanner.fetchQuery(zipkin(), REQUEST, List.of("a1", "b2")))
+                .isEqualTo("search index=\"zipkin\" sourcetype=\"span\""
+                        + " earliest=" + (1472467396 - TraceQueryPlanner.FETCH_MARGIN_SECONDS)
+                        + " latest=" + (1472470996 + TraceQueryPlanner.FETCH_MARGIN_SECONDS)
+                        + " (a1 OR b2) | fields _raw");
+    }
+
+    @Test void fetchQuery_allTime() {
+        assertThat(TraceQueryPlanner.fetchQuery(otel(), List.of("a1")))
+                .isEqualTo("search index=\"zipkin\" sourcetype=\"span\" (a1) | fields _raw");
+    }
+
+    @Test void fetchQuery_indexedFields() {
+        assertThat(TraceQueryPlanner.fetchQuery(indexedFields(), List.of("a1", "b2")))
+                .isEqualTo("search index=\"zipkin\" sourcetype=\"span\""
+                        + " (trace_id::a1 OR trace_id::b2) | fields _raw");
+    }
+
+    @Test void validate_lowercasesAndDropsInvalid() {
+        assertThat(TraceQueryPlanner.validate(List.of("A1", "a1", "x OR *", "", "B2")))
+                .containsExactly("a1", "b2");
+    }
+
+    @Test void narrow_capsLookback() {
+        SplunkStorage storage = storage(SplunkStorage.builder().maxLookback(60000L));
+
+        assertThat(TraceQueryPlanner.narrow(storage, REQUEST)).usingRecursiveComparison()
+                .isEqualTo(REQUEST.toBuilder().lookback(60000L).build());
+    }
+
+    @Test void narrow_keepsShorterLookback() {
+        SplunkStorage storage = storage(SplunkStorage.builder().maxLookback(7200000L));
+
+        assertThat(TraceQueryPlanner.narrow(storage, REQUEST)).isSameAs(REQUEST);
+        assertThat(TraceQueryPlanner.narrow(zipkin(), REQUEST.toBuilder().lookback(Long.MAX_VALUE)
+                .build()).lookback()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test void narrow_capsUnfilteredLookback() {
+        SplunkStorage storage = storage(SplunkStorage.builder().maxUnfilteredLookback(60000L));
+
+        assertThat(TraceQueryPlanner.narrow(storage, UNFILTERED).lookback()).isEqualTo(60000L);
+        assertThat(TraceQueryPlanner.narrow(storage, REQUEST)).isSameAs(REQUEST);
+    }
+
+    /** The unfiltered cap can only narrow further than the overall one. */
+    @Test void narrow_unfilteredUsesSmallerCap() {
+        SplunkStorage storage = storage(SplunkStorage.builder().maxLookback(60000L)
+                .maxUnfilteredLookback(120000L));
+
+        assertThat(TraceQueryPlanner.narrow(storage, UNFILTERED).lookback()).isEqualTo(60000L);
+    }
+
+    @Test void narrow_zeroUnfilteredCapFallsBackToMaxLookback() {
+        SplunkStorage storage = storage(SplunkStorage.builder().maxLookback(60000L)
+                .maxUnfilteredLookback(0L));
+
+        assertThat(TraceQueryPlanner.narrow(storage, UNFILTERED).lookback()).isEqualTo(60000L);
+    }
+
+    @Test void group_postFiltersWithRequest() {
+        QueryRequest request = UNFILTERED.toBuilder().serviceName("frontend").spanName("get")
+                .build();
+        Span a = span("000000000000000a", "get"), b = span("000000000000000b", "post");
+
+        List<List<Span>> traces = TraceQueryPlanner.TracesCall.group(
+                List.of("0000000000000000000000000000000a", "000000000000000b", "000000000000000c"),
+                List.of(a, b, span("000000000000000d", "get")), request);
+
+        assertThat(traces).containsExactly(List.of(a));
+    }
+
+    @Test void group_keepsOrderOfIds() {
+        Span a = span("000000000000000a", "get"), b = span("000000000000000b", "get");
+        Span a2 = a.toBuilder().id(2).parentId(1).build();
+
+        List<List<Span>> traces = TraceQueryPlanner.TracesCall.group(
+                List.of("000000000000000b", "000000000000000a"), List.of(a, b, a2), UNFILTERED);
+
+        assertThat(traces).containsExactly(List.of(b), List.of(a, a2));
+    }
+
+    static Span span(String traceId, String name) {
+        return Span.newBuilder().traceId(traceId).id(1).name(name)
+                .localEndpoint(Endpoint.newBuilder().serviceName("frontend").build())
+                .timestamp((END_TS - 1000L) * 1000L).duration(150L)
+                .build();
+    }
+
+    SplunkStorage zipkin() {
+        return storage(SplunkStorage.builder().dataModel("zipkin"));
+    }
+
+    SplunkStorage otel() {
+        return storage(SplunkStorage.builder().dataModel("otel"));
+    }
+
+    SplunkStorage indexedFields() {
+        return storage(SplunkStorage.builder().dataModel("zipkin").indexedFields(true)
+                .ingestMode("hec").hecUrl("http://127.0.0.1:8088").hecToken("token"));
+    }
+
+    SplunkStorage storage(SplunkStorage.Builder builder) {
+        SplunkStorage storage = builder.token("token").nameCatalog(false).build();
+        storages.add(storage);
+        return storage;
+    }
+}
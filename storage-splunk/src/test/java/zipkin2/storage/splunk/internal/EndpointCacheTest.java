@@ -0,0 +1,55 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EndpointCacheTest {
+    final EndpointCache cache = new EndpointCache(3);
+
+    @Test void get_internsEndpoints() {
+        Endpoint endpoint = cache.get("frontend", "10.0.0.1", 8080);
+
+        assertThat(endpoint).isEqualTo(Endpoint.newBuilder().serviceName("frontend")
+                .ip("10.0.0.1").port(8080).build());
+        assertThat(cache.get("frontend", new String("10.0.0.1"), 8080)).isSameAs(endpoint);
+        assertThat(cache.get("frontend", "10.0.0.1", 8081)).isNotSameAs(endpoint);
+        assertThat(cache.get("backend", "10.0.0.1", 8080)).isNotSameAs(endpoint);
+    }
+
+    @Test void get_nullIsEmpty() {
+        Endpoint endpoint = cache.get(null, null, 0);
+
+        assertThat(endpoint).isEqualTo(Endpoint.newBuilder().build());
+        assertThat(cache.get("", "", 0)).isSameAs(endpoint);
+        assertThat(cache.get(null, "10.0.0.1", 0)).isSameAs(cache.get("", "10.0.0.1", 0))
+                .extracting(Endpoint::serviceName).isNull();
+        assertThat(cache.endpoints).hasSize(2);
+    }
+
+    /** The endpoint drops host names, so they'd only add keys of the same endpoint. */
+    @Test void get_hostNameNotCached() {
+        Endpoint endpoint = cache.get("frontend", "api.example.com", 8080);
+
+        assertThat(endpoint).isEqualTo(Endpoint.newBuilder().serviceName("frontend").port(8080)
+                .build());
+        assertThat(cache.endpoints).isEmpty();
+    }
+
+    @Test void get_clearsWhenFull() {
+        Endpoint first = cache.get("a", "10.0.0.1", 0);
+        cache.get("b", "10.0.0.1", 0);
+        cache.get("c", "10.0.0.1", 0);
+        assertThat(cache.endpoints).hasSize(3);
+
+        Endpoint fourth = cache.get("d", "10.0.0.1", 0);
+
+        assertThat(cache.endpoints).hasSize(1).containsValue(fourth);
+        assertThat(cache.get("a", "10.0.0.1", 0)).isNotSameAs(first).isEqualTo(first);
+    }
+}
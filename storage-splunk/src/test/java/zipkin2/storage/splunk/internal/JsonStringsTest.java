@@ -0,0 +1,42 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import org.junit.jupiter.api.Test;
+import zipkin2.internal.JsonEscaper;
+import zipkin2.internal.WriteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonStringsTest {
+
+    @Test void write_matchesJsonEscaper() {
+        for (String value : new String[] {"", "get /", "say \"hi\"\\",
+                "tab\tnew\nline\r\u0000\u001f", "caf\u00e9 \u4e2d\u6587", "emoji \ud83d\ude00",
+                "sep \u2028\u2029", "unpaired \ud83d x \ude00", "high at end \ud83d"}) {
+            assertThat(write(value)).as(value).isEqualTo(expected(value));
+        }
+    }
+
+    @Test void write_everyChar() {
+        StringBuilder value = new StringBuilder();
+        for (char c = 0; c < Character.MAX_VALUE; c++) value.append(c);
+
+        assertThat(write(value)).isEqualTo(expected(value));
+    }
+
+    static byte[] expected(CharSequence value) {
+        return ('"' + JsonEscaper.jsonEscape(value).toString() + '"').getBytes(UTF_8);
+    }
+
+    /** Writes into a buffer of the computed size, which throws if it is too small. */
+    static byte[] write(CharSequence value) {
+        byte[] bytes = new byte[JsonStrings.sizeInBytes(value)];
+        WriteBuffer b = WriteBuffer.wrap(bytes, 0);
+        JsonStrings.write(value, b);
+        return bytes;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.internal.WriteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OtelResourceSpansWriterTest {
+    static final Endpoint FRONTEND = Endpoint.newBuilder()
+            .serviceName("frontend").ip("172.17.0.13").port(8080).build();
+    static final Endpoint BACKEND = Endpoint.newBuilder()
+            .serviceName("backend").ip("2001:db8::c001").port(9000).build();
+    static final Endpoint BROWSER = Endpoint.newBuilder().ip("192.168.99.101").port(54321).build();
+
+    static final Span SERVER = Span.newBuilder()
+            .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+            .id("5b4185666d50f68b")
+            .name("get /")
+            .kind(Span.Kind.SERVER)
+            .localEndpoint(FRONTEND)
+            .remoteEndpoint(BROWSER)
+            .timestamp(1472470996199000L)
+            .duration(207000L)
+            .addAnnotation(1472470996238000L, "wr")
+            .putTag("http.path", "/")
+            .putTag("error", "500")
+            .build();
+    static final Span CLIENT = Span.newBuilder()
+            .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+            .parentId("5b4185666d50f68b")
+            .id("6b221d5bc9e6496c")
+            .name("get /api")
+            .kind(Span.Kind.CLIENT)
+            .localEndpoint(FRONTEND)
+            .remoteEndpoint(BACKEND)
+            .timestamp(1472470996250000L)
+            .duration(99000L)
+            .build();
+    static final Span INTERNAL = Span.newBuilder()
+            .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+            .parentId("5b4185666d50f68b")
+            .id("2b9f5e4a6a1d0c3e")
+            .name("render")
+            .localEndpoint(FRONTEND)
+            .timestamp(1472470996360000L)
+            .duration(4000L)
+            .build();
+
+    final OtelResourceSpansWriter writer = new OtelResourceSpansWriter();
+    final OtelSpanBytesDecoder decoder = new OtelSpanBytesDecoder();
+
+    @Test void readsBackSpansWritten() {
+        List<Span> spans = List.of(SERVER, CLIENT, INTERNAL);
+
+        assertThat(roundTrip(spans)).containsExactlyElementsOf(spans);
+    }
+
+    @Test void readsBackSpansWithoutServiceName() {
+        Span span = INTERNAL.toBuilder()
+                .localEndpoint(Endpoint.newBuilder().ip("172.17.0.13").build())
+                .build();
+
+        assertThat(roundTrip(List.of(span))).containsExactly(span);
+    }
+
+    @Test void readsBackServerSpanWithRemoteService() {
+        Span span = SERVER.toBuilder()
+                .remoteEndpoint(BROWSER.toBuilder().serviceName("browser").build())
+                .build();
+
+        assertThat(roundTrip(List.of(span))).containsExactly(span);
+    }
+
+    @Test void writesServiceNameOnce() {
+        String json = new String(write(List.of(SERVER, CLIENT, INTERNAL)), UTF_8);
+
+        assertThat(json).startsWith("{\"resource\":{\"attributes\":[{\"key\":\"service.name\","
+                + "\"value\":{\"stringValue\":\"frontend\"}}]},");
+        assertThat(json.split("\"frontend\"", -1)).hasSize(2);
+    }
+
+    @Test void writesAddressesByKind() {
+        String server = new String(write(List.of(SERVER)), UTF_8);
+        String client = new String(write(List.of(CLIENT)), UTF_8);
+
+        assertThat(server)
+                .contains("{\"key\":\"net.host.ip\",\"value\":{\"stringValue\":\"172.17.0.13\"}}")
+                .contains("{\"key\":\"net.host.port\",\"value\":{\"intValue\":8080}}")
+                .contains("{\"key\":\"client.address\","
+                        + "\"value\":{\"stringValue\":\"192.168.99.101\"}}")
+                .contains("{\"key\":\"client.port\",\"value\":{\"intValue\":54321}}")
+                .contains("\"events\":[{\"timeUnixNano\":1472470996238000000,\"name\":\"wr\"}]")
+                .contains("\"status\":{\"code\":2}");
+        assertThat(client)
+                .contains("{\"key\":\"peer.service\",\"value\":{\"stringValue\":\"backend\"}}")
+                .contains("{\"key\":\"server.address\","
+                        + "\"value\":{\"stringValue\":\"2001:db8::c001\"}}")
+                .contains("{\"key\":\"server.port\",\"value\":{\"intValue\":9000}}");
+    }
+
+    @Test void groupByService() {
+        Span backend = CLIENT.toBuilder().localEndpoint(BACKEND).build();
+
+        assertThat(OtelResourceSpansWriter.groupByService(List.of(SERVER, backend, CLIENT)))
+                .containsExactly(List.of(SERVER, CLIENT), List.of(backend));
+    }
+
+    @Test void groupByService_boundsSpansPerResource() {
+        List<Span> spans = new ArrayList<>();
+        for (int i = 1; i <= OtelResourceSpansWriter.MAX_SPANS_PER_RESOURCE + 1; i++) {
+            spans.add(INTERNAL.toBuilder().id(i).build());
+        }
+
+        assertThat(OtelResourceSpansWriter.groupByService(spans))
+                .extracting(List::size)
+                .containsExactly(OtelResourceSpansWriter.MAX_SPANS_PER_RESOURCE, 1);
+    }
+
+    /** Writes a document, checking its size was computed exactly. */
+    byte[] write(List<Span> spans) {
+        byte[] bytes = new byte[writer.sizeInBytes(spans)];
+        writer.write(spans, WriteBuffer.wrap(bytes, 0)); // throws if too small
+        assertThat(bytes[bytes.length - 1]).isEqualTo((byte) '}');
+        return bytes;
+    }
+
+    List<Span> roundTrip(List<Span> spans) {
+        List<Span> result = new ArrayList<>();
+        decoder.decodeAll(ByteBuffer.wrap(write(spans)), result);
+        return result;
+    }
+}
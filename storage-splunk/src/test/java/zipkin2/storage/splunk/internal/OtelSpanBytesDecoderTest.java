@@ -0,0 +1,188 @@
+/*
+ * Copyright The OpenZipkin Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package zipkin2.storage.splunk.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OtelSpanBytesDecoderTest {
+    static final String RESOURCE = "'resource':{'attributes':[{'key':'service.name',"
+            + "'value':{'stringValue':'frontend'}}]}";
+    static final Endpoint FRONTEND = Endpoint.newBuilder().serviceName("frontend").build();
+
+    final OtelSpanBytesDecoder decoder = new OtelSpanBytesDecoder();
+
+    @Test void decode_spansOfEveryScope() {
+        List<Span> spans = decode("{" + RESOURCE + ",'scopeSpans':["
+                + "{'scope':{'name':'a'},'spans':[" + span("1") + "," + span("2") + "]},"
+                + "{'spans':[" + span("3") + "]}]}");
+
+        assertThat(spans).extracting(Span::id)
+                .containsExactly("0000000000000001", "0000000000000002", "0000000000000003");
+        assertThat(spans).extracting(Span::localEndpoint).containsOnly(FRONTEND);
+    }
+
+    @Test void decode_resourceAfterSpans() {
+        List<Span> spans = decode("{'scopeSpans':[{'spans':[" + span("1") + ","
+                + "{'traceId':'7180c278b62e8f6a216a2aea45d08fc9','spanId':'2','name':'get',"
+                + "'attributes':[{'key':'net.host.ip','value':{'stringValue':'172.17.0.13'}}]}"
+                + "]}]," + RESOURCE + "}");
+
+        assertThat(spans).extracting(Span::localEndpoint).containsExactly(
+                FRONTEND, FRONTEND.toBuilder().ip("172.17.0.13").build());
+    }
+
+    @Test void decode_withoutResource() {
+        assertThat(decode("{'scopeSpans':[{'spans':[" + span("1") + "]}]}"))
+                .extracting(Span::localEndpoint).containsOnlyNulls();
+    }
+
+    /** Kind is known only at the end of the span, yet decides which endpoint addresses go to. */
+    @Test void decode_fieldsInAnyOrder() {
+        Span span = decoder.decodeOne(json("{'scopeSpans':[{'spans':[{"
+                + "'attributes':[{'value':{'stringValue':'backend'},'key':'peer.service'},"
+                + "{'value':{'intValue':'9000'},'key':'server.port'}],"
+                + "'endTimeUnixNano':'1472470996349000000','name':'get /api','kind':3,"
+                + "'startTimeUnixNano':'1472470996250000000','parentSpanId':'5b4185666d50f68b',"
+                + "'spanId':'6b221d5bc9e6496c','traceId':'7180c278b62e8f6a216a2aea45d08fc9'"
+                + "}]}]," + RESOURCE + "}"));
+
+        assertThat(span).isEqualTo(Span.newBuilder()
+                .traceId("7180c278b62e8f6a216a2aea45d08fc9")
+                .parentId("5b4185666d50f68b")
+                .id("6b221d5bc9e6496c")
+                .name("get /api")
+                .kind(Span.Kind.CLIENT)
+                .localEndpoint(FRONTEND)
+                .remoteEndpoint(Endpoint.newBuilder().serviceName("backend").port(9000).build())
+                .timestamp(1472470996250000L)
+                .duration(99000L)
+                .build());
+    }
+
+    @Test void decode_skipsUnknownFields() {
+        List<Span> spans = decode("{'schemaUrl':'x'," + RESOURCE + ",'scopeSpans':[{'spans':[{"
+                + "'traceId':'7180c278b62e8f6a216a2aea45d08fc9','spanId':'1',"
+                + "'status':{'code':2},'links':[{'traceId':'1','spanId':'2'}],'flags':1}]}]}");
+
+        assertThat(spans).hasSize(1);
+        assertThat(spans.get(0).tags()).isEmpty();
+    }
+
+    @Test void decodeOne_firstSpan() {
+        Span span = decoder.decodeOne(json("{" + RESOURCE + ",'scopeSpans':[{'spans':["
+                + span("1") + "," + span("2") + "]}]}"));
+
+        assertThat(span.id()).isEqualTo("0000000000000001");
+    }
+
+    @Test void decodeList_spansOfEveryDocument() {
+        List<Span> spans = decoder.decodeList(json("["
+                + "{" + RESOURCE + ",'scopeSpans':[{'spans':[" + span("1") + "]}]},"
+                + "{'scopeSpans':[{'spans':[" + span("2") + "]}],'resource':{'attributes':[{"
+                + "'key':'service.name','value':{'stringValue':'backend'}}]}}]"));
+
+        assertThat(spans).extracting(s -> s.localEndpoint().serviceName())
+                .containsExactly("frontend", "backend");
+    }
+
+    @Test void decode_attributeValueTypes() {
+        Span span = decodeAttributes("{'key':'string','value':{'stringValue':'a'}},"
+                + "{'key':'int','value':{'intValue':'9007199254740993'}},"
+                + "{'key':'intNumber','value':{'intValue':42}},"
+                + "{'key':'double','value':{'doubleValue':1.5}},"
+                + "{'key':'bool','value':{'boolValue':true}},"
+                + "{'key':'boolean','value':{'booleanValue':false}},"
+                + "{'key':'bytes','value':{'bytesValue':'AQI='}},"
+                + "{'key':'array','value':{'arrayValue':{'values':[{'stringValue':'a'},"
+                + "{'intValue':1},{'arrayValue':{'values':[{'boolValue':true}]}}]}}},"
+                + "{'key':'kvlist','value':{'kvlistValue':{'values':[{'key':'k',"
+                + "'value':{'stringValue':'v'}},{'value':{'doubleValue':2.0},'key':'n'}]}}}");
+
+        assertThat(span.tags())
+                .containsEntry("string", "a")
+                .containsEntry("int", "9007199254740993")
+                .containsEntry("intNumber", "42")
+                .containsEntry("double", "1.5")
+                .containsEntry("bool", "true")
+                .containsEntry("boolean", "false")
+                .containsEntry("bytes", "AQI=")
+                .containsEntry("array", "a,1,true")
+                .containsEntry("kvlist", "k=v,n=2.0")
+                .hasSize(9);
+    }
+
+    @Test void decode_skipsAttributesWithoutValue() {
+        Span span = decodeAttributes("{'key':'null','value':{'stringValue':null}},"
+                + "{'key':'empty','value':{}},{'key':'missing'},"
+                + "{'value':{'stringValue':'no key'}},"
+                + "{'key':'unknown','value':{'fooValue':'x'}}");
+
+        assertThat(span.tags()).isEmpty();
+    }
+
+    @Test void decode_addressesNotReadAreTags() {
+        Span span = decodeAttributes("{'key':'server.address','value':{'stringValue':'api'}},"
+                + "{'key':'server.port','value':{'intValue':8080}},"
+                + "{'key':'net.host.port','value':{'intValue':9000}}");
+
+        // an internal span has no remote endpoint, and local addresses are always read
+        assertThat(span.tags()).containsOnlyKeys("server.address", "server.port");
+        assertThat(span.remoteEndpoint()).isNull();
+        assertThat(span.localEndpoint()).isEqualTo(FRONTEND.toBuilder().port(9000).build());
+    }
+
+    @Test void decode_urlServiceName() {
+        OtelSpanBytesDecoder decoder =
+                new OtelSpanBytesDecoder(new UrlServiceNames(UrlServiceNames.Rule.HOST));
+        Span span = decoder.decodeOne(json("{" + RESOURCE + ",'scopeSpans':[{'spans':[{"
+                + "'traceId':'1','spanId':'1','kind':3,'attributes':[{'key':'url.full',"
+                + "'value':{'stringValue':'http://api:8080/v1/users?id=1'}}]}]}]}"));
+
+        assertThat(span.remoteServiceName()).isEqualTo("api");
+        assertThat(span.tags()).containsEntry("url.full", "http://api:8080/v1/users?id=1");
+    }
+
+    @Test void role() {
+        assertThat(OtelSpanReader.role("server.port")).isEqualTo(OtelSpanReader.Role.REMOTE_PORT);
+        assertThat(OtelSpanReader.role("Net.Peer.Name")).isEqualTo(OtelSpanReader.Role.REMOTE_IP);
+        assertThat(OtelSpanReader.role("PEER.SERVICE"))
+                .isEqualTo(OtelSpanReader.Role.PEER_SERVICE);
+        assertThat(OtelSpanReader.role("http.method")).isNull();
+        assertThat(OtelSpanReader.role("HTTP.Method")).isNull();
+    }
+
+    @Test void parsePort() {
+        assertThat(OtelSpanReader.parsePort("8080")).isEqualTo(8080);
+        assertThat(OtelSpanReader.parsePort("http")).isZero();
+        assertThat(OtelSpanReader.parsePort("1.5")).isZero();
+    }
+
+    Span decodeAttributes(String attributes) {
+        return decoder.decodeOne(json("{" + RESOURCE + ",'scopeSpans':[{'spans':[{"
+                + "'traceId':'1','spanId':'1','attributes':[" + attributes + "]}]}]}"));
+    }
+
+    static String span(String id) {
+        return "{'traceId':'7180c278b62e8f6a216a2aea45d08fc9','spanId':'" + id + "','name':'get'}";
+    }
+
+    /** Lets documents be written with single quotes. */
+    static byte[] json(String json) {
+        return json.replace('\'', '"').getBytes(UTF_8);
+    }
+
+    List<Span> decode(String json) {
+        List<Span> result = new ArrayList<>();
+        decoder.decode(json(json), result);
+        return result;
+    }
+}